@@ -1,18 +1,18 @@
 package io.nextop.v15.fragment;
 
 import android.os.Bundle;
-import android.support.annotation.Nullable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.*;
+import io.nextop.Id;
 import io.nextop.NextopAndroid;
 import io.nextop.v15.R;
 import io.nextop.client.MessageControlState;
 import rx.Observer;
 import rx.android.schedulers.AndroidSchedulers;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -56,42 +56,41 @@ public class DebugMessagesFragment extends DebugChildFragment {
         listView.setAdapter(messageAdapter);
 
         bind(
-                NextopAndroid.getActive(getActivity()).getMessageControlState().getObservable()
-
-//                .subscribeOn(AndroidSchedulers.mainThread())
+                NextopAndroid.getActive(getActivity()).getMessageControlState().getChangeObservable()
         )
-                .throttleLast(200, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
+                // the changes are applied in batches. Each batch is one pass over the rows
+                .buffer(200, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
         .subscribe(messageAdapter);
     }
 
 
-    final class MessageAdapter extends BaseAdapter implements Observer<MessageControlState> {
-        @Nullable
-        MessageControlState mcs = null;
+    final class MessageAdapter extends BaseAdapter implements Observer<List<MessageControlState.Change>> {
+        // mirrors the order of the mcs
+        final List<MessageControlState.Entry> entries = new ArrayList<MessageControlState.Entry>(32);
 
         // FIXME linger on remove, merge new state with lingering state
-        @Nullable
-        List<MessageControlState.GroupSnapshot> groups = null;
-        @Nullable
-        int[] groupNetSizes = null;
+        // a group id before the first entry of each group, then the entries
+        final List<Object> rows = new ArrayList<Object>(32);
 
 
 
         @Override
-        public void onNext(MessageControlState mcs) {
-            this.mcs = mcs;
-
-            if (null != mcs) {
-                groups = mcs.getGroups();
-                int n = groups.size();
-                groupNetSizes = new int[n + 1];
-                groupNetSizes[0] = 0;
-                for (int i = 0; i < n; ++i) {
-                    groupNetSizes[i + 1] = groupNetSizes[i] + 1 + groups.get(i).entries.size();
+        public void onNext(List<MessageControlState.Change> changes) {
+            if (changes.isEmpty()) {
+                return;
+            }
+            for (MessageControlState.Change change : changes) {
+                change.apply(entries);
+            }
+
+            rows.clear();
+            Id groupId = null;
+            for (MessageControlState.Entry entry : entries) {
+                if (!entry.groupId.equals(groupId)) {
+                    groupId = entry.groupId;
+                    rows.add(groupId);
                 }
-            } else {
-                groups = null;
-                groupNetSizes = null;
+                rows.add(entry);
             }
 
             notifyDataSetChanged();
@@ -99,63 +98,34 @@ public class DebugMessagesFragment extends DebugChildFragment {
 
         @Override
         public void onCompleted() {
-            mcs = null;
-            groups = null;
-            groupNetSizes = null;
+            entries.clear();
+            rows.clear();
             notifyDataSetChanged();
         }
 
         @Override
         public void onError(Throwable e) {
-            mcs = null;
-            groups = null;
-            groupNetSizes = null;
+            entries.clear();
+            rows.clear();
             notifyDataSetChanged();
         }
 
 
         @Override
         public int getCount() {
-            return null != mcs ? groupNetSizes[groupNetSizes.length - 1] : 0;
+            return rows.size();
         }
 
         @Override
         public Object getItem(int position) {
-//            if (position < 0 || getCount() <= position) {
-//                throw new IndexOutOfBoundsException();
-//            }
-            int si = Arrays.binarySearch(groupNetSizes, position);
-            if (0 <= si) {
-                // a group
-                return groups.get(si);
-            } else if (0 < ~si) {
-                // an entry
-                int i = (~si) - 1;
-                return groups.get(i).entries.get(position - groupNetSizes[i] - 1);
-            } else {
-                throw new IllegalArgumentException();
-            }
+            return rows.get(position);
         }
 
         @Override
         public long getItemId(int position) {
-//            if (position < 0 || getCount() <= position) {
-//                throw new IndexOutOfBoundsException();
-//            }
-//            int si = Arrays.binarySearch(groupNetSizes, position);
-//            if (0 <= si) {
-//                // a group
-//                return groups.get(si).groupId.longHashCode();
-//            } else if (0 < ~si) {
-//                // an entry
-//                int i = (~si) - 1;
-//                return groups.get(i).entries.get(position - groupNetSizes[i] - 1).id.longHashCode();
-//            } else {
-//                throw new IllegalArgumentException();
-//            }
             Object item = getItem(position);
-            if (item instanceof MessageControlState.GroupSnapshot) {
-                return ((MessageControlState.GroupSnapshot) item).groupId.longHashCode();
+            if (item instanceof Id) {
+                return ((Id) item).longHashCode();
             } else if (item instanceof MessageControlState.Entry) {
                 return ((MessageControlState.Entry) item).id.longHashCode();
             } else {
@@ -184,7 +154,7 @@ public class DebugMessagesFragment extends DebugChildFragment {
 //                throw new IllegalArgumentException();
 //            }
             Object item = getItem(position);
-            if (item instanceof MessageControlState.GroupSnapshot) {
+            if (item instanceof Id) {
                 return 0;
             } else if (item instanceof MessageControlState.Entry) {
                 return 1;
@@ -199,18 +169,18 @@ public class DebugMessagesFragment extends DebugChildFragment {
             // FIXME
             Object item = getItem(position);
 
-            if (item instanceof MessageControlState.GroupSnapshot) {
+            if (item instanceof Id) {
                 if (null == convertView) {
                     convertView = LayoutInflater.from(parent.getContext()).inflate(R.layout.view_debug_messages_group, parent, false);
                 }
 
-                MessageControlState.GroupSnapshot groupSnapshot = (MessageControlState.GroupSnapshot) item;
+                Id groupId = (Id) item;
 
                 TextView doctet1TextView = (TextView) convertView.findViewById(R.id.doctet1);
                 TextView doctet2TextView = (TextView) convertView.findViewById(R.id.doctet2);
                 TextView doctet3TextView = (TextView) convertView.findViewById(R.id.doctet3);
 
-                String idString = groupSnapshot.groupId.toString();
+                String idString = groupId.toString();
                 doctet1TextView.setText(idString.substring(0, 4));
                 doctet2TextView.setText(idString.substring(4, 8));
                 doctet3TextView.setText(idString.substring(8, 12));
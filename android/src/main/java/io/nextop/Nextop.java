@@ -20,6 +20,7 @@ import io.nextop.client.MessageContext;
 import io.nextop.client.MessageContexts;
 import io.nextop.client.MessageControlNode;
 import io.nextop.client.MessageControlState;
+import io.nextop.client.OutboxJournal;
 import io.nextop.client.node.Head;
 import io.nextop.client.node.MultiNode;
 import io.nextop.client.node.http.HttpNode;
@@ -36,6 +37,7 @@ import rx.subjects.BehaviorSubject;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Executor;
@@ -503,6 +505,7 @@ public class Nextop {
         private boolean cameraConnected = false;
         private BehaviorSubject<CameraAdapter> cameraSubject = BehaviorSubject.create();
 
+        MessageContext messageContext;
         Head head;
         MessageControlState mcs;
         MessageControlNode node;
@@ -514,8 +517,16 @@ public class Nextop {
 
             this.node = node;
 
-            MessageContext messageContext = MessageContexts.create();
+            messageContext = MessageContexts.create();
             mcs = new MessageControlState(messageContext);
+            // queued sends survive a process kill or reboot; restored in Head#init.
+            // the file io is on the context thread, not the main thread. posts run in order, so this is before the init
+            messageContext.post(new Runnable() {
+                @Override
+                public void run() {
+                    mcs.setJournal(new OutboxJournal(new File(GoNoded.this.context.getFilesDir(), "nextop.outbox")));
+                }
+            });
             head = Head.create(messageContext, mcs, node, /* FIXME */ AndroidSchedulers.mainThread());
             head.init(null);
             head.start();
@@ -536,6 +547,16 @@ public class Nextop {
         @Override
         public Nextop stop() {
             head.stop();
+            // after the stop
+            messageContext.post(new Runnable() {
+                @Override
+                public void run() {
+                    @Nullable OutboxJournal journal = mcs.getJournal();
+                    if (null != journal) {
+                        journal.close();
+                    }
+                }
+            });
             closeCamera();
 
             return Nextop.create(context, this);
@@ -702,7 +723,12 @@ public class Nextop {
                             BitmapFactory.Options opts = new BitmapFactory.Options();
                             opts.inSampleSize = 4;
 
-                            Bitmap bitmap = BitmapFactory.decodeByteArray(image.bytes, image.offset, image.length, opts);
+                            Bitmap bitmap;
+                            if (image.hasArray()) {
+                                bitmap = BitmapFactory.decodeByteArray(image.bytes, image.offset, image.length, opts);
+                            } else {
+                                bitmap = BitmapFactory.decodeStream(image.getInputStream(), null, opts);
+                            }
 
                             synchronized (cacheMutex) {
                                 // FIXME correct cache key
@@ -1,6 +1,7 @@
 package io.nextop;
 
-import java.io.ByteArrayInputStream;
+import io.nextop.util.ByteBufferInputStream;
+
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
@@ -58,14 +59,24 @@ public class EncodedImage {
                 bytes, offset, length);
     }
 
+    /** The image wraps the remaining bytes of the buffer (heap, direct or mapped) without a copy.
+     * The bytes must not change while the image is in use. */
+    public static EncodedImage create(Format format, Orientation orientation, int width, int height,
+                                      ByteBuffer buffer) {
+        return new EncodedImage(format, orientation, width, height, buffer);
+    }
+
 
     public final Format format;
     public final Orientation orientation;
     public final int width;
     public final int height;
+    /** null if the buffer is not backed by an accessible array (see {@link #hasArray}) */
     protected final byte[] bytes;
     protected final int offset;
     protected final int length;
+    // [0, length)
+    private final ByteBuffer buffer;
 
 
     protected EncodedImage(Format format, Orientation orientation,
@@ -78,15 +89,40 @@ public class EncodedImage {
         this.bytes = bytes;
         this.offset = offset;
         this.length = length;
+        buffer = ByteBuffer.wrap(bytes, offset, length).slice();
     }
 
+    protected EncodedImage(Format format, Orientation orientation,
+                           int width, int height,
+                           ByteBuffer buffer) {
+        this.format = format;
+        this.orientation = orientation;
+        this.width = width;
+        this.height = height;
+        this.buffer = buffer.slice();
+        if (this.buffer.hasArray()) {
+            bytes = this.buffer.array();
+            offset = this.buffer.arrayOffset();
+        } else {
+            bytes = null;
+            offset = 0;
+        }
+        length = this.buffer.remaining();
+    }
+
+
+    /** @return true if {@link #bytes} holds the image (otherwise use {@link #toBuffer}) */
+    public boolean hasArray() {
+        return null != bytes;
+    }
 
-    protected ByteBuffer toBuffer() {
-        return ByteBuffer.wrap(bytes, offset, length);
+    /** @return a read-only view of the image bytes. Direct if the image is over a direct buffer. */
+    public ByteBuffer toBuffer() {
+        return buffer.asReadOnlyBuffer();
     }
 
     public InputStream getInputStream() {
-        return new ByteArrayInputStream(bytes, offset, length);
+        return new ByteBufferInputStream(toBuffer());
     }
 
 
@@ -98,7 +134,7 @@ public class EncodedImage {
         c = 31 * c + height;
         c = 31 * c + length;
         for (int i = 0; i < length; ++i) {
-            c = 31 * c + bytes[offset + i];
+            c = 31 * c + buffer.get(i);
         }
         return c;
     }
@@ -119,7 +155,7 @@ public class EncodedImage {
         }
 
         for (int i = 0; i < length; ++i) {
-            if (bytes[offset + i] != b.bytes[b.offset + i]) {
+            if (buffer.get(i) != b.buffer.get(i)) {
                 return false;
             }
         }
@@ -726,7 +726,9 @@ public class Message {
                         EncodedImage image = content.asImage();
                         // FIXME 0.1.1
 //                        entity = new ByteArrayEntity(image.bytes, image.offset, image.length);
-                        entity = new ByteArrayEntity(Arrays.copyOfRange(image.bytes, image.offset, image.length));
+                        byte[] imageBytes = new byte[image.length];
+                        image.toBuffer().get(imageBytes);
+                        entity = new ByteArrayEntity(imageBytes);
 
                         if (0 < image.width || 0 < image.height) {
                             // attach headers for image width and height
@@ -838,7 +840,8 @@ public class Message {
         if (contentType.is(MediaType.JSON_UTF_8)) {
             RepetableEntity re = RepetableEntity.create(entity);
             try {
-                value = WireValue.valueOfJson(new InputStreamReader(re.entity.getContent(), Charsets.UTF_8));
+                // no per-node values for large bodies
+                value = WireValue.transcodeJson(new InputStreamReader(re.entity.getContent(), Charsets.UTF_8));
             } catch (IOException e) {
                 // return as text
                 try {
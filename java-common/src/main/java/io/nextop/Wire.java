@@ -2,6 +2,7 @@ package io.nextop;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 
 // the foundation of
@@ -24,6 +25,9 @@ public interface Wire {
     // messageBoundary indicates the read is up to a message boundary
     // this helps testing count messages, e.g. pass one message, fail at the nth message, etc
     void write(byte[] buffer, int offset, int length, int messageBoundary) throws IOException;
+    // gather write: the remaining bytes of each buffer, in order, as one write (e.g. one syscall or tls record)
+    // the positions of the buffers advance to their limits
+    void write(ByteBuffer[] buffers, int messageBoundary) throws IOException;
     void flush() throws IOException;
 
 
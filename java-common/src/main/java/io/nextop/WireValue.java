@@ -3,6 +3,7 @@ package io.nextop;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.collect.*;
+import com.google.common.io.ByteStreams;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -10,13 +11,15 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import io.nextop.org.apache.commons.codec.binary.Base64OutputStream;
+import io.nextop.util.NoCopyByteArrayOutputStream;
 import org.apache.commons.collections.Transformer;
 import org.apache.commons.collections.map.TransformedMap;
 
 import javax.annotation.Nullable;
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.nio.*;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.util.*;
@@ -41,11 +44,8 @@ import java.util.*;
 
 // FIXME look at sizes if the lut is stateful, and the lut didn't need to be resent each time
 
-// FIXME memory and compressed wire values should have same hashcode and equals
 
 
-// FIXME everywhere replace byte[] with ByteBuffer
-
 public abstract class WireValue {
     // just use int constants here
 
@@ -89,11 +89,43 @@ public abstract class WireValue {
 
 
     // FIXME rename to "fromBytes"
+    /** Parses a view of the buffer (heap, direct or mapped). Nothing is copied out:
+     * blobs and images are slices of the buffer, so the bytes must not change while the value is in use.
+     * The position of the buffer is advanced past the value. */
     public static WireValue valueOf(ByteBuffer bb) {
-        int n = bb.remaining();
-        byte[] bytes = new byte[n];
-        bb.get(bytes, 0, n);
-        return valueOf(bytes, 0);
+        ByteBuffer view = view(bb);
+        int offset = bb.position();
+        WireValue value = valueOf(view, offset, (SessionLutTable) null);
+        bb.position(offset + topByteSize(view, offset));
+        return value;
+    }
+
+    /** Streaming parse. Values are pulled from the stream as bytes arrive, so decoding can start
+     * before the last byte of the value is available (e.g. the source is fed by incoming chunks).
+     * Only the LUT header (if any) is buffered; the body is parsed into memory values as it is read.
+     * The stream is read exactly up to the end of the value. Wrap unbuffered sources
+     * (e.g. {@link java.util.zip.GZIPInputStream}) in a buffer for throughput.
+     * @param in value source. Not closed by this method. */
+    public static WireValue valueOf(InputStream in) throws IOException {
+        return valueOf(in, null);
+    }
+
+    /** @param session the table of the session that encoded the value (see {@link SessionLut}) */
+    public static WireValue valueOf(InputStream in, @Nullable SessionLutTable session) throws IOException {
+        return new StreamDecoder(in, session).decode();
+    }
+
+    /** Streaming access to one payload of a value, e.g. the content of a message as it arrives.
+     * Reads the stream up to the value at the path, where each key selects a value of a map.
+     * A message on the path is entered at its parameters. Values before it are skipped, not decoded.
+     * The value must be encoded without a LUT ({@link #toBytes(OutputStream, SessionLut)} with no session).
+     * @return the bytes of the blob, the utf8 bytes of the string, or the bytes of the image at the path,
+     *         limited to their length. Closing it closes the source.
+     *         null if the path is not in the value or ends at another type.
+     * @param in value source */
+    @Nullable
+    public static InputStream openPayload(InputStream in, WireValue... path) throws IOException {
+        return new StreamDecoder(in, null).openPayload(path);
     }
 
     // FIXME rename to "fromBytes"
@@ -102,7 +134,16 @@ public abstract class WireValue {
     }
 
     public static WireValue valueOf(byte[] bytes, int offset) {
-        int h = 0xFF & bytes[offset];
+        return valueOf(bytes, offset, (SessionLutTable) null);
+    }
+
+    /** @param session the table of the session that encoded the value (see {@link SessionLut}) */
+    public static WireValue valueOf(byte[] bytes, int offset, @Nullable SessionLutTable session) {
+        return valueOf(ByteBuffer.wrap(bytes), offset, session);
+    }
+
+    static WireValue valueOf(ByteBuffer bytes, int offset, @Nullable SessionLutTable session) {
+        int h = 0xFF & bytes.get(offset);
         if ((h & H_COMPRESSED) == H_COMPRESSED) {
             int nb = h & ~H_COMPRESSED;
             int size = getint(bytes, offset + 1);
@@ -116,21 +157,27 @@ public abstract class WireValue {
             }
 
 
-            CompressionState cs = new CompressionState(bytes, offset, offsets, nb);
+            CompressionState cs = new CompressionState(bytes, offset, offsets, nb, session);
             return valueOf(bytes, offsets[size], cs);
         }
-        return valueOf(bytes, offset, null);
+        return valueOf(bytes, offset, null != session ? new CompressionState(session) : null);
     }
 
 
-    static WireValue valueOf(byte[] bytes, int offset, CompressionState cs) {
-        int h = 0xFF & bytes[offset];
+    static WireValue valueOf(ByteBuffer bytes, int offset, CompressionState cs) {
+        int h = 0xFF & bytes.get(offset);
+        if ((h & H_SESSION_MASK) == H_SESSION) {
+            if (null == cs || null == cs.session) {
+                throw new IllegalArgumentException();
+            }
+            return cs.session.get(((h & ~H_SESSION_MASK) << 8) | (0xFF & bytes.get(offset + 1)));
+        }
         if ((h & H_COMPRESSED) == H_COMPRESSED) {
             int luti = h & ~H_COMPRESSED;
             for (int i = 1; i < cs.nb; ++i) {
-                luti = (luti << 8) | (0xFF & bytes[offset + i]);
+                luti = (luti << 8) | (0xFF & bytes.get(offset + i));
             }
-            return valueOf(cs.header, cs.offsets[luti], cs);
+            return cs.lutValue(luti);
         }
 
         switch (h) {
@@ -155,21 +202,13 @@ public abstract class WireValue {
             case H_LIST:
                 return new CListWireValue(bytes, offset, cs);
             case H_INT32_LIST:
-//                return new CInt32ListWireValue(bytes, offset, cs);
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return new CInt32ListWireValue(bytes, offset, cs);
             case H_INT64_LIST:
-//                return new CInt64ListWireValue(bytes, offset, cs);
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return new CInt64ListWireValue(bytes, offset, cs);
             case H_FLOAT32_LIST:
-//                return new CFloat32ListWireValue(bytes, offset, cs);
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return new CFloat32ListWireValue(bytes, offset, cs);
             case H_FLOAT64_LIST:
-//                return new CFloat64ListWireValue(bytes, offset, cs);
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return new CFloat64ListWireValue(bytes, offset, cs);
             case H_NULL:
                 return new NullWireValue();
             case H_MESSAGE:
@@ -184,12 +223,12 @@ public abstract class WireValue {
 
     // based on byte[] and views into the byte[] (parsing does not expand into a bunch of objects in memory)
     private static abstract class CompressedWireValue extends WireValue {
-        byte[] bytes;
-        int offset;
-        CompressionState cs;
+        final ByteBuffer bytes;
+        final int offset;
+        final CompressionState cs;
 
 
-        CompressedWireValue(Type type, byte[] bytes, int offset, CompressionState cs) {
+        CompressedWireValue(Type type, ByteBuffer bytes, int offset, CompressionState cs) {
             super(type);
             this.bytes = bytes;
             this.offset = offset;
@@ -201,14 +240,14 @@ public abstract class WireValue {
 
 
     private static class CUtf8WireValue extends CompressedWireValue{
-        CUtf8WireValue(byte[] bytes, int offset, CompressionState cs) {
+        CUtf8WireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.UTF8, bytes, offset, cs);
         }
 
         @Override
         public String asString() {
             int length = getint(bytes, offset + 1);
-            return new String(bytes, offset + 5, length, Charsets.UTF_8);
+            return utf8(bytes, offset + 5, length);
         }
         @Override
         public int asInt() {
@@ -253,7 +292,7 @@ public abstract class WireValue {
     }
 
     private static class CBlobWireValue extends CompressedWireValue{
-        CBlobWireValue(byte[] bytes, int offset, CompressionState cs) {
+        CBlobWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.BLOB, bytes, offset, cs);
         }
 
@@ -292,7 +331,7 @@ public abstract class WireValue {
         @Override
         public ByteBuffer asBlob() {
             int length = getint(bytes, offset + 1);
-            return ByteBuffer.wrap(bytes, offset + 5, length);
+            return slice(bytes, offset + 5, length);
         }
         @Override
         public Message asMessage() {
@@ -306,10 +345,19 @@ public abstract class WireValue {
 
 
     private static class CMapWireValue extends CompressedWireValue{
-        CMapWireValue(byte[] bytes, int offset, CompressionState cs) {
+        CMapWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.MAP, bytes, offset, cs);
         }
 
+        // in the order written (stable order)
+        List<WireValue> keys() {
+            return valueOf(bytes, offset + 5, cs).asList();
+        }
+        List<WireValue> values() {
+            int ds = offset + 5;
+            return valueOf(bytes, ds + byteSize(bytes, ds, cs), cs).asList();
+        }
+
         @Override
         public String asString() {
             throw new UnsupportedOperationException();
@@ -341,9 +389,8 @@ public abstract class WireValue {
         @Override
         public Map<WireValue, WireValue> asMap() {
             Map<WireValue, WireValue> map = new AbstractMap<WireValue, WireValue>() {
-                int ds = offset + 5;
-                List<WireValue> keys = valueOf(bytes, ds, cs).asList();
-                List<WireValue> values = valueOf(bytes, ds + byteSize(bytes, ds, cs), cs).asList();
+                List<WireValue> keys = CMapWireValue.this.keys();
+                List<WireValue> values = CMapWireValue.this.values();
                 int n = keys.size();
 
                 @Override
@@ -395,7 +442,7 @@ public abstract class WireValue {
     }
 
     private static class CListWireValue extends CompressedWireValue {
-        CListWireValue(byte[] bytes, int offset, CompressionState cs) {
+        CListWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.LIST, bytes, offset, cs);
         }
 
@@ -482,8 +529,179 @@ public abstract class WireValue {
     }
 
 
+    // primitive homogeneous lists
+    // [h][count][bytes][packed big-endian values]
+    // the primitive views (#asIntBuffer, etc) are zero-copy over the source bytes
+    private static abstract class CPrimitiveListWireValue extends CompressedWireValue {
+        final int h;
+        final int n;
+
+        CPrimitiveListWireValue(int h, ByteBuffer bytes, int offset, CompressionState cs) {
+            super(Type.LIST, bytes, offset, cs);
+            this.h = h;
+            n = getint(bytes, offset + 1);
+        }
+
+
+        abstract WireValue get(int index);
+
+
+        ByteBuffer values() {
+            return slice(bytes, offset + 9, getint(bytes, offset + 5)).asReadOnlyBuffer();
+        }
+
+
+        @Override
+        public String asString() {
+            return asList().toString();
+        }
+        @Override
+        public int asInt() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public long asLong() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public float asFloat() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public double asDouble() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public boolean asBoolean() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public List<WireValue> asList() {
+            List<WireValue> list = new AbstractList<WireValue>() {
+                @Override
+                public int size() {
+                    return n;
+                }
+
+                @Override
+                public WireValue get(int index) {
+                    if (index < 0 || n <= index) {
+                        throw new IndexOutOfBoundsException();
+                    }
+                    return CPrimitiveListWireValue.this.get(index);
+                }
+            };
+            return duckList(list);
+        }
+        @Override
+        public Map<WireValue, WireValue> asMap() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public ByteBuffer asBlob() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public Message asMessage() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public EncodedImage asImage() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class CInt32ListWireValue extends CPrimitiveListWireValue {
+        CInt32ListWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
+            super(H_INT32_LIST, bytes, offset, cs);
+        }
+
+        @Override
+        WireValue get(int index) {
+            return of(getint(bytes, offset + 9 + 4 * index));
+        }
+
+        @Override
+        public IntBuffer asIntBuffer() {
+            return values().asIntBuffer();
+        }
+        @Override
+        public int[] asIntArray() {
+            int[] values = new int[n];
+            asIntBuffer().get(values);
+            return values;
+        }
+    }
+
+    private static class CInt64ListWireValue extends CPrimitiveListWireValue {
+        CInt64ListWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
+            super(H_INT64_LIST, bytes, offset, cs);
+        }
+
+        @Override
+        WireValue get(int index) {
+            return of(getlong(bytes, offset + 9 + 8 * index));
+        }
+
+        @Override
+        public LongBuffer asLongBuffer() {
+            return values().asLongBuffer();
+        }
+        @Override
+        public long[] asLongArray() {
+            long[] values = new long[n];
+            asLongBuffer().get(values);
+            return values;
+        }
+    }
+
+    private static class CFloat32ListWireValue extends CPrimitiveListWireValue {
+        CFloat32ListWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
+            super(H_FLOAT32_LIST, bytes, offset, cs);
+        }
+
+        @Override
+        WireValue get(int index) {
+            return of(Float.intBitsToFloat(getint(bytes, offset + 9 + 4 * index)));
+        }
+
+        @Override
+        public FloatBuffer asFloatBuffer() {
+            return values().asFloatBuffer();
+        }
+        @Override
+        public float[] asFloatArray() {
+            float[] values = new float[n];
+            asFloatBuffer().get(values);
+            return values;
+        }
+    }
+
+    private static class CFloat64ListWireValue extends CPrimitiveListWireValue {
+        CFloat64ListWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
+            super(H_FLOAT64_LIST, bytes, offset, cs);
+        }
+
+        @Override
+        WireValue get(int index) {
+            return of(Double.longBitsToDouble(getlong(bytes, offset + 9 + 8 * index)));
+        }
+
+        @Override
+        public DoubleBuffer asDoubleBuffer() {
+            return values().asDoubleBuffer();
+        }
+        @Override
+        public double[] asDoubleArray() {
+            double[] values = new double[n];
+            asDoubleBuffer().get(values);
+            return values;
+        }
+    }
+
+
     private static class CInt32WireValue extends CompressedWireValue {
-        CInt32WireValue(byte[] bytes, int offset, CompressionState cs) {
+        CInt32WireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.INT32, bytes, offset, cs);
         }
 
@@ -534,7 +752,7 @@ public abstract class WireValue {
     }
 
     private static class CInt64WireValue extends CompressedWireValue {
-        CInt64WireValue(byte[] bytes, int offset, CompressionState cs) {
+        CInt64WireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.INT64, bytes, offset, cs);
         }
 
@@ -585,7 +803,7 @@ public abstract class WireValue {
     }
 
     private static class CFloat32WireValue extends CompressedWireValue {
-        CFloat32WireValue(byte[] bytes, int offset, CompressionState cs) {
+        CFloat32WireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.FLOAT32, bytes, offset, cs);
         }
 
@@ -636,7 +854,7 @@ public abstract class WireValue {
     }
 
     private static class CFloat64WireValue extends CompressedWireValue {
-        CFloat64WireValue(byte[] bytes, int offset, CompressionState cs) {
+        CFloat64WireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.FLOAT64, bytes, offset, cs);
         }
 
@@ -687,7 +905,7 @@ public abstract class WireValue {
     }
 
     private static class CMessageWireValue extends CompressedWireValue {
-        CMessageWireValue(byte[] bytes, int offset, CompressionState cs) {
+        CMessageWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.MESSAGE, bytes, offset, cs);
         }
 
@@ -739,7 +957,7 @@ public abstract class WireValue {
     }
 
     private static class CImageWireValue extends CompressedWireValue {
-        CImageWireValue(byte[] bytes, int offset, CompressionState cs) {
+        CImageWireValue(ByteBuffer bytes, int offset, CompressionState cs) {
             super(Type.IMAGE, bytes, offset, cs);
         }
 
@@ -796,16 +1014,53 @@ public abstract class WireValue {
     // LUT sizes: 2^7, 2^15
     // index maps to byte[]
     private static class CompressionState {
-        byte[] header;
+        ByteBuffer header;
         int offset;
         int[] offsets;
         int nb;
 
-        CompressionState(byte[] header, int offset, int[] offsets, int nb) {
+        @Nullable
+        SessionLutTable session;
+
+        // decoded lut values, so each is decoded (and hashed) once per state
+        @Nullable
+        WireValue[] values = null;
+
+        CompressionState(SessionLutTable session) {
+            this(null, 0, null, 0, session);
+        }
+
+        CompressionState(ByteBuffer header, int offset, int[] offsets, int nb, @Nullable SessionLutTable session) {
             this.header = header;
             this.offset = offset;
             this.offsets = offsets;
             this.nb = nb;
+            this.session = session;
+        }
+
+
+        WireValue lutValue(int luti) {
+            if (null == values) {
+                values = new WireValue[offsets.length];
+            }
+            @Nullable WireValue value = values[luti];
+            if (null == value) {
+                value = valueOf(header, offsets[luti], this);
+                values[luti] = value;
+            }
+            return value;
+        }
+
+        // values encoded against a and b decode the same from the same bytes
+        static boolean sameTables(@Nullable CompressionState a, @Nullable CompressionState b) {
+            if (a == b) {
+                return true;
+            }
+            @Nullable ByteBuffer aHeader = null != a ? a.header : null;
+            @Nullable ByteBuffer bHeader = null != b ? b.header : null;
+            @Nullable SessionLutTable aSession = null != a ? a.session : null;
+            @Nullable SessionLutTable bSession = null != b ? b.session : null;
+            return null == aHeader && null == bHeader && aSession == bSession;
         }
     }
 
@@ -878,6 +1133,139 @@ public abstract class WireValue {
         }
     }
 
+    /** Transcodes json straight into the wire format, without building a value per node.
+     * Objects keep the json key order and duplicate names are an error.
+     * @param jsonIn json source. Closed by this method.
+     * @return a view of the encoded bytes */
+    public static WireValue transcodeJson(Reader jsonIn) throws IOException {
+        JsonReader r = new JsonReader(jsonIn);
+        try {
+            NoCopyByteArrayOutputStream out = new NoCopyByteArrayOutputStream(1024);
+            new JsonTranscoder().transcode(r, out, 0);
+            return valueOf(out.getBytes(), out.getOffset());
+        } finally {
+            r.close();
+        }
+    }
+
+    // the keys of an object are written in place and its values into a scratch buffer for the depth,
+    // which is appended when the object ends. container sizes are patched in when the container ends
+    static final class JsonTranscoder {
+        final List<NoCopyByteArrayOutputStream> scratch = new ArrayList<NoCopyByteArrayOutputStream>(8);
+        final byte[] header = new byte[9];
+
+
+        void transcode(JsonReader r, NoCopyByteArrayOutputStream out, int d) throws IOException {
+            switch (r.peek()) {
+                case BEGIN_OBJECT: {
+                    while (scratch.size() <= d) {
+                        scratch.add(new NoCopyByteArrayOutputStream(1024));
+                    }
+                    NoCopyByteArrayOutputStream values = scratch.get(d);
+                    values.reset();
+                    Set<String> names = new HashSet<String>(8);
+
+                    int mapAt = out.getLength();
+                    putHeader(H_MAP, 0, out);
+                    int keysAt = out.getLength();
+                    putListHeader(0, 0, out);
+                    int n = 0;
+                    r.beginObject();
+                    while (!JsonToken.END_OBJECT.equals(r.peek())) {
+                        String name = r.nextName();
+                        if (!names.add(name)) {
+                            throw new MalformedJsonException("Duplicate name " + name);
+                        }
+                        putUtf8(name, out);
+                        transcode(r, values, d + 1);
+                        n += 1;
+                    }
+                    r.endObject();
+                    patchListHeader(n, out.getLength() - keysAt - 9, keysAt, out);
+                    putListHeader(n, values.getLength(), out);
+                    out.write(values.getBytes(), values.getOffset(), values.getLength());
+                    values.reset();
+                    putint(out.getBytes(), out.getOffset() + mapAt + 1, out.getLength() - mapAt - 5);
+                    break;
+                }
+                case BEGIN_ARRAY: {
+                    int listAt = out.getLength();
+                    putListHeader(0, 0, out);
+                    int n = 0;
+                    r.beginArray();
+                    while (!JsonToken.END_ARRAY.equals(r.peek())) {
+                        transcode(r, out, d + 1);
+                        n += 1;
+                    }
+                    r.endArray();
+                    patchListHeader(n, out.getLength() - listAt - 9, listAt, out);
+                    break;
+                }
+                case STRING:
+                    putUtf8(r.nextString(), out);
+                    break;
+                case NUMBER: {
+                    // same as parseJson
+                    try {
+                        long n = r.nextLong();
+                        if ((int) n == n) {
+                            putHeader(H_INT32, (int) n, out);
+                        } else {
+                            header[0] = H_INT64;
+                            putlong(header, 1, n);
+                            out.write(header, 0, 9);
+                        }
+                    } catch (NumberFormatException e) {
+                        double dn = r.nextDouble();
+                        if ((float) dn == dn) {
+                            putHeader(H_FLOAT32, Float.floatToIntBits((float) dn), out);
+                        } else {
+                            header[0] = H_FLOAT64;
+                            putlong(header, 1, Double.doubleToLongBits(dn));
+                            out.write(header, 0, 9);
+                        }
+                    }
+                    break;
+                }
+                case BOOLEAN:
+                    out.write(r.nextBoolean() ? H_TRUE_BOOLEAN : H_FALSE_BOOLEAN);
+                    break;
+                case NULL:
+                    r.nextNull();
+                    out.write(H_NULL);
+                    break;
+                default:
+                case END_DOCUMENT:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        void putHeader(int h, int n, NoCopyByteArrayOutputStream out) {
+            header[0] = (byte) h;
+            putint(header, 1, n);
+            out.write(header, 0, 5);
+        }
+
+        void putListHeader(int count, int bytes, NoCopyByteArrayOutputStream out) {
+            header[0] = H_LIST;
+            putint(header, 1, count);
+            putint(header, 5, bytes);
+            out.write(header, 0, 9);
+        }
+
+        void patchListHeader(int count, int bytes, int at, NoCopyByteArrayOutputStream out) {
+            int i = out.getOffset() + at;
+            putint(out.getBytes(), i + 1, count);
+            putint(out.getBytes(), i + 5, bytes);
+        }
+
+        void putUtf8(String s, NoCopyByteArrayOutputStream out) {
+            byte[] b = s.getBytes(Charsets.UTF_8);
+            putHeader(H_UTF8, b.length, out);
+            out.write(b, 0, b.length);
+        }
+    }
+
     private static WireValue parseJson(JsonReader r) throws IOException {
         switch (r.peek()) {
             case BEGIN_OBJECT: {
@@ -966,6 +1354,18 @@ public abstract class WireValue {
         if (value instanceof byte[]) {
             return of((byte[]) value);
         }
+        if (value instanceof int[]) {
+            return of((int[]) value);
+        }
+        if (value instanceof long[]) {
+            return of((long[]) value);
+        }
+        if (value instanceof float[]) {
+            return of((float[]) value);
+        }
+        if (value instanceof double[]) {
+            return of((double[]) value);
+        }
         // FIXME bytebuffer
         if (value instanceof Map) {
             return of(asWireValueMap((Map<?, ?>) value));
@@ -1034,6 +1434,40 @@ public abstract class WireValue {
     }
 
 
+    // packed on creation
+    static WireValue of(int[] values) {
+        int n = values.length;
+        ByteBuffer bb = ByteBuffer.allocate(9 + 4 * n);
+        bb.put((byte) H_INT32_LIST).putInt(n).putInt(4 * n);
+        bb.asIntBuffer().put(values);
+        return new CInt32ListWireValue(bb, 0, null);
+    }
+
+    static WireValue of(long[] values) {
+        int n = values.length;
+        ByteBuffer bb = ByteBuffer.allocate(9 + 8 * n);
+        bb.put((byte) H_INT64_LIST).putInt(n).putInt(8 * n);
+        bb.asLongBuffer().put(values);
+        return new CInt64ListWireValue(bb, 0, null);
+    }
+
+    static WireValue of(float[] values) {
+        int n = values.length;
+        ByteBuffer bb = ByteBuffer.allocate(9 + 4 * n);
+        bb.put((byte) H_FLOAT32_LIST).putInt(n).putInt(4 * n);
+        bb.asFloatBuffer().put(values);
+        return new CFloat32ListWireValue(bb, 0, null);
+    }
+
+    static WireValue of(double[] values) {
+        int n = values.length;
+        ByteBuffer bb = ByteBuffer.allocate(9 + 8 * n);
+        bb.put((byte) H_FLOAT64_LIST).putInt(n).putInt(8 * n);
+        bb.asDoubleBuffer().put(values);
+        return new CFloat64ListWireValue(bb, 0, null);
+    }
+
+
     static WireValue of(Message m) {
         return new MessageWireValue(m);
     }
@@ -1053,8 +1487,8 @@ public abstract class WireValue {
 
 
     final Type type;
-    boolean hashCodeSet = false;
-    int hashCode;
+    // 0 is unset
+    int hashCode = 0;
 
 
     WireValue(Type type) {
@@ -1073,13 +1507,18 @@ public abstract class WireValue {
 
     @Override
     public final int hashCode() {
-        if (!hashCodeSet) {
-            hashCode = _hashCode(this);
-            hashCodeSet = true;
+        int h = hashCode;
+        if (0 == h) {
+            h = _hashCode(this);
+            hashCode = h;
         }
-        return hashCode;
+        return h;
     }
     static int _hashCode(WireValue value) {
+        if (value instanceof CompressedWireValue) {
+            CompressedWireValue c = (CompressedWireValue) value;
+            return hashCode(c.bytes, c.offset, c.cs);
+        }
         switch (value.type) {
             case UTF8:
                 return value.asString().hashCode();
@@ -1104,15 +1543,15 @@ public abstract class WireValue {
                 // important: order should not affect hash code
                 int c = 0;
                 for (Map.Entry<WireValue, WireValue> e : map.entrySet()) {
-                    c += _hashCode(e.getKey());
-                    c += _hashCode(e.getValue());
+                    c += e.getKey().hashCode();
+                    c += e.getValue().hashCode();
                 }
                 return c;
              }
             case LIST: {
                 int c = 0;
                 for (WireValue v : value.asList()) {
-                    c = 31 * c + _hashCode(v);
+                    c = 31 * c + v.hashCode();
                 }
                 return c;
             }
@@ -1127,28 +1566,156 @@ public abstract class WireValue {
         }
     }
 
-    @Override
-    public final boolean equals(Object obj) {
-        if (!(obj instanceof WireValue)) {
-            return false;
+    // same as _hashCode of the decoded value, computed from the bytes without building the subtree
+    static int hashCode(ByteBuffer bytes, int offset, @Nullable CompressionState cs) {
+        int h = 0xFF & bytes.get(offset);
+        if ((h & H_SESSION_MASK) == H_SESSION || (h & H_COMPRESSED) == H_COMPRESSED) {
+            // table values are decoded once, so their hash is memoized
+            return valueOf(bytes, offset, cs).hashCode();
+        }
+        switch (h) {
+            case H_UTF8:
+                return utf8HashCode(bytes, offset + 5, getint(bytes, offset + 1));
+            case H_BLOB: {
+                // ByteBuffer#hashCode
+                int start = offset + 5;
+                int c = 1;
+                for (int i = start + getint(bytes, offset + 1) - 1; start <= i; --i) {
+                    c = 31 * c + bytes.get(i);
+                }
+                return c;
+            }
+            case H_INT32:
+                return getint(bytes, offset + 1);
+            case H_INT64: {
+                long n = getlong(bytes, offset + 1);
+                return (int) (n ^ (n >>> 32));
+            }
+            case H_FLOAT32:
+                return Float.floatToIntBits(Float.intBitsToFloat(getint(bytes, offset + 1)));
+            case H_FLOAT64: {
+                long dn = Double.doubleToLongBits(Double.longBitsToDouble(getlong(bytes, offset + 1)));
+                return (int) (dn ^ (dn >>> 32));
+            }
+            case H_TRUE_BOOLEAN:
+                return 1231;
+            case H_FALSE_BOOLEAN:
+                return 1237;
+            case H_MAP: {
+                // order does not affect the hash code, so keys and values can be summed separately
+                int ks = offset + 5;
+                int vs = ks + byteSize(bytes, ks, cs);
+                return listHashCode(bytes, ks, cs, true) + listHashCode(bytes, vs, cs, true);
+            }
+            case H_LIST:
+            case H_INT32_LIST:
+            case H_INT64_LIST:
+            case H_FLOAT32_LIST:
+            case H_FLOAT64_LIST:
+                return listHashCode(bytes, offset, cs, false);
+            case H_MESSAGE:
+                return MessageCodec.valueOf(bytes, offset + 1, cs).hashCode();
+            case H_IMAGE:
+                return ImageCodec.valueOf(bytes, offset + 1).hashCode();
+            case H_NULL:
+                return 0;
+            default:
+                throw new IllegalArgumentException("" + h);
         }
-        WireValue b = (WireValue) obj;
-        return _equals(this, b);
     }
-    static boolean _equals(WireValue a, WireValue b) {
-        if (!a.type.equals(b.type) || a.hashCode() != b.hashCode()) {
-            return false;
+
+    /** @param sum if true, the sum of the element hashes. Otherwise the list hash. */
+    static int listHashCode(ByteBuffer bytes, int offset, @Nullable CompressionState cs, boolean sum) {
+        int h = 0xFF & bytes.get(offset);
+        if ((h & H_SESSION_MASK) == H_SESSION || (h & H_COMPRESSED) == H_COMPRESSED) {
+            int c = 0;
+            for (WireValue v : valueOf(bytes, offset, cs).asList()) {
+                c = (sum ? 1 : 31) * c + v.hashCode();
+            }
+            return c;
         }
-        switch (a.type) {
-            case UTF8:
-                return a.asString().equals(b.asString());
-            case BLOB:
-                return a.asBlob().equals(b.asBlob());
-            case INT32:
-                return a.asInt() == b.asInt();
-            case INT64:
-                return a.asLong() == b.asLong();
-            case FLOAT32:
+        int n = getint(bytes, offset + 1);
+        int m = sum ? 1 : 31;
+        int c = 0;
+        int i = offset + 9;
+        switch (h) {
+            case H_LIST:
+                for (int j = 0; j < n; ++j) {
+                    c = m * c + hashCode(bytes, i, cs);
+                    i += byteSize(bytes, i, cs);
+                }
+                break;
+            case H_INT32_LIST:
+                for (int j = 0; j < n; ++j, i += 4) {
+                    c = m * c + getint(bytes, i);
+                }
+                break;
+            case H_INT64_LIST:
+                for (int j = 0; j < n; ++j, i += 8) {
+                    long v = getlong(bytes, i);
+                    c = m * c + (int) (v ^ (v >>> 32));
+                }
+                break;
+            case H_FLOAT32_LIST:
+                for (int j = 0; j < n; ++j, i += 4) {
+                    c = m * c + Float.floatToIntBits(Float.intBitsToFloat(getint(bytes, i)));
+                }
+                break;
+            case H_FLOAT64_LIST:
+                for (int j = 0; j < n; ++j, i += 8) {
+                    long v = Double.doubleToLongBits(Double.longBitsToDouble(getlong(bytes, i)));
+                    c = m * c + (int) (v ^ (v >>> 32));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("" + h);
+        }
+        return c;
+    }
+
+    // String#hashCode of the decoded string
+    static int utf8HashCode(ByteBuffer bytes, int offset, int length) {
+        int c = 0;
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            int b = bytes.get(i);
+            if (b < 0) {
+                // not ascii
+                return utf8(bytes, offset, length).hashCode();
+            }
+            c = 31 * c + b;
+        }
+        return c;
+    }
+
+    @Override
+    public final boolean equals(Object obj) {
+        if (!(obj instanceof WireValue)) {
+            return false;
+        }
+        WireValue b = (WireValue) obj;
+        return _equals(this, b);
+    }
+    static boolean _equals(WireValue a, WireValue b) {
+        if (a == b) {
+            return true;
+        }
+        if (!a.type.equals(b.type) || a.hashCode() != b.hashCode()) {
+            return false;
+        }
+        if (a instanceof CompressedWireValue && b instanceof CompressedWireValue
+                && rangeEquals((CompressedWireValue) a, (CompressedWireValue) b)) {
+            return true;
+        }
+        switch (a.type) {
+            case UTF8:
+                return a.asString().equals(b.asString());
+            case BLOB:
+                return a.asBlob().equals(b.asBlob());
+            case INT32:
+                return a.asInt() == b.asInt();
+            case INT64:
+                return a.asLong() == b.asLong();
+            case FLOAT32:
                 return a.asFloat() == b.asFloat();
             case FLOAT64:
                 return a.asDouble() == b.asDouble();
@@ -1170,6 +1737,28 @@ public abstract class WireValue {
     }
 
 
+    // true if both are the same encoded bytes against the same tables.
+    // false does not mean the values are not equal (e.g. a lut ref and the value it refers to)
+    static boolean rangeEquals(CompressedWireValue a, CompressedWireValue b) {
+        if (!CompressionState.sameTables(a.cs, b.cs)) {
+            return false;
+        }
+        if (a.bytes == b.bytes && a.offset == b.offset) {
+            return true;
+        }
+        int n = byteSize(a.bytes, a.offset, a.cs);
+        if (n != byteSize(b.bytes, b.offset, b.cs)) {
+            return false;
+        }
+        for (int i = 0; i < n; ++i) {
+            if (a.bytes.get(a.offset + i) != b.bytes.get(b.offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     @Override
     public String toString() {
         return toText();
@@ -1261,10 +1850,21 @@ public abstract class WireValue {
                 break;
             case MAP:
                 w.beginObject();
-                Map<WireValue, WireValue> map = value.asMap();
-                for (WireValue key : stableKeys(map)) {
-                    w.name(key.toText());
-                    toJson(map.get(key), w);
+                if (value instanceof CMapWireValue) {
+                    // walk the encoded keys and values in order. no map is built
+                    CMapWireValue c = (CMapWireValue) value;
+                    List<WireValue> keys = c.keys();
+                    List<WireValue> values = c.values();
+                    for (int i = 0, n = keys.size(); i < n; ++i) {
+                        w.name(keys.get(i).toText());
+                        toJson(values.get(i), w);
+                    }
+                } else {
+                    Map<WireValue, WireValue> map = value.asMap();
+                    for (WireValue key : stableKeys(map)) {
+                        w.name(key.toText());
+                        toJson(map.get(key), w);
+                    }
                 }
                 w.endObject();
                 break;
@@ -1313,6 +1913,9 @@ public abstract class WireValue {
 
 
     static final int H_COMPRESSED = 0x80;
+    // [0x40 | index >>> 8][index & 0xFF], see SessionLut
+    static final int H_SESSION = 0x40;
+    static final int H_SESSION_MASK = 0xC0;
     static final int H_UTF8 = 1;
     static final int H_BLOB = 2;
     static final int H_INT32 = 3;
@@ -1345,47 +1948,65 @@ public abstract class WireValue {
         }
     }
 
+    static int listh(WireValue value) {
+        if (value instanceof CPrimitiveListWireValue) {
+            return ((CPrimitiveListWireValue) value).h;
+        }
+        return listh(value.asList());
+    }
+
     static int listh(List<WireValue> list) {
-        return H_LIST;
-        // FIXME implement later
-//        int n = list.size();
-//        if (0 == n) {
-//            return H_LIST;
-//        }
-//        Type t = list.get(0).getType();
-//        for (int i = 0; i < n; ++i) {
-//            if (!t.equals(list.get(1).getType())) {
-//                return H_LIST;
-//            }
-//        }
-//        switch (t) {
-//            case INT32:
-//                return H_INT32;
-//            case INT64:
-//                return H_INT64_LIST;
-//            case FLOAT32:
-//                return H_FLOAT32_LIST;
-//            case FLOAT64:
-//                return H_FLOAT64_LIST;
-//            default:
-//                return H_LIST;
-//        }
+        int n = list.size();
+        if (0 == n) {
+            return H_LIST;
+        }
+        Type t = list.get(0).getType();
+        for (int i = 1; i < n; ++i) {
+            if (!t.equals(list.get(i).getType())) {
+                return H_LIST;
+            }
+        }
+        switch (t) {
+            case INT32:
+                return H_INT32_LIST;
+            case INT64:
+                return H_INT64_LIST;
+            case FLOAT32:
+                return H_FLOAT32_LIST;
+            case FLOAT64:
+                return H_FLOAT64_LIST;
+            default:
+                return H_LIST;
+        }
     }
 
 
 
 
     // toByte should always compress
-    static int byteSize(byte[] bytes, int offset, CompressionState cs) {
-        int h = 0xFF & bytes[offset];
+    // the size of a value as passed to valueOf, including the lut header
+    static int topByteSize(ByteBuffer bytes, int offset) {
+        int h = 0xFF & bytes.get(offset);
+        if ((h & H_COMPRESSED) == H_COMPRESSED) {
+            int bodyOffset = offset + 9 + getint(bytes, offset + 5);
+            return bodyOffset - offset + _byteSize(bytes, bodyOffset);
+        }
+        return _byteSize(bytes, offset);
+    }
+
+    static int byteSize(ByteBuffer bytes, int offset, CompressionState cs) {
+        int h = 0xFF & bytes.get(offset);
+        if ((h & H_SESSION_MASK) == H_SESSION) {
+            return 2;
+        }
         if ((h & H_COMPRESSED) == H_COMPRESSED) {
             return cs.nb;
         }
         return _byteSize(bytes, offset);
     }
 
-    static int _byteSize(byte[] bytes, int offset) {
-        int h = 0xFF & bytes[offset];
+    static int _byteSize(ByteBuffer bytes, int offset) {
+        int h = 0xFF & bytes.get(offset);
 //        System.out.printf("_byteSize %s\n", h);
         switch (h) {
             case H_UTF8:
@@ -1409,17 +2030,13 @@ public abstract class WireValue {
             case H_LIST:
                 return 9 + getint(bytes, offset + 5);
             case H_INT32_LIST:
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return 9 + getint(bytes, offset + 5);
             case H_INT64_LIST:
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return 9 + getint(bytes, offset + 5);
             case H_FLOAT32_LIST:
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return 9 + getint(bytes, offset + 5);
             case H_FLOAT64_LIST:
-                // FIXME see listh
-                throw new IllegalArgumentException();
+                return 9 + getint(bytes, offset + 5);
             case H_MESSAGE:
                 return 5 + getint(bytes, offset + 1);
             case H_IMAGE:
@@ -1434,8 +2051,36 @@ public abstract class WireValue {
 
 
     public void toBytes(ByteBuffer bb) {
+        toBytes(bb, null);
+    }
+
+    /** @param session if set, values in the session LUT are written as references into the table,
+     *                and new definitions are queued on the session.
+     *                The definitions must be delivered to the reader before the value
+     *                (see {@link SessionLut#writeDefinitions}). */
+    public void toBytes(ByteBuffer bb, @Nullable SessionLut session) {
+        toBytes(bb, session, LutMode.VALUE);
+    }
+
+    public void toBytes(ByteBuffer bb, @Nullable SessionLut session, LutMode lutMode) {
+        switch (lutMode) {
+            case VALUE:
+                break;
+            case NONE:
+                if (null != session) {
+                    session.touch(this);
+                }
+                new FlatEncoder(session).toBytes(this, bb);
+                return;
+            default:
+                throw new IllegalArgumentException();
+        }
 
         Lb lb = new Lb();
+        if (null != session) {
+            session.touch(this);
+            lb.session = session;
+        }
         lb.init(this);
         if (lb.opt()) {
             // write the lut header
@@ -1477,10 +2122,15 @@ public abstract class WireValue {
 
                 int i = bb.position();
 
-                Map<WireValue, WireValue> m = value.asMap();
-                List<WireValue> keys = stableKeys(m);
-                toBytes(of(keys), lb, bb);
-                List<WireValue> values = stableValues(m, keys);
+                List<WireValue> keys = stableKeys(value);
+                WireValue keyset = of(keys);
+                int si = null != lb.session ? lb.session.index(keyset) : -1;
+                if (0 <= si) {
+                    putSessionRef(si, bb);
+                } else {
+                    toBytes(keyset, lb, bb);
+                }
+                List<WireValue> values = stableValues(value, keys);
                 toBytes(of(values), lb, bb);
 
                 int bytes = bb.position() - i;
@@ -1489,6 +2139,12 @@ public abstract class WireValue {
                 break;
             }
             case LIST: {
+                if (value instanceof CPrimitiveListWireValue) {
+                    // already packed
+                    CPrimitiveListWireValue p = (CPrimitiveListWireValue) value;
+                    bb.put(slice(p.bytes, p.offset, _byteSize(p.bytes, p.offset)));
+                    break;
+                }
                 List<WireValue> list = value.asList();
                 int listh = listh(list);
                 if (H_LIST == listh) {
@@ -1595,6 +2251,363 @@ public abstract class WireValue {
     }
 
 
+    /** Per-value LUT strategy for {@link #toBytes(ByteBuffer, SessionLut, LutMode)}.
+     * The session LUT applies in both modes. */
+    /** Writes the value front to back into the stream, with {@link LutMode#NONE}.
+     * Nothing is buffered beyond a small staging window, so there is no size ceiling.
+     * @see #toBytes(ByteBuffer, SessionLut) */
+    public void toBytes(OutputStream os, @Nullable SessionLut session) throws IOException {
+        if (null != session) {
+            session.touch(this);
+        }
+        new FlatEncoder(session).toBytes(this, os);
+    }
+
+
+    public enum LutMode {
+        /** Repeated subtrees are written once in a LUT header. Smallest output;
+         * costs a pass that hashes every subtree. */
+        VALUE,
+        /** No per-value LUT. Sizes are computed in one walk and the value is emitted front to back.
+         * Use this when the output is compressed downstream anyway (gzip removes the same repetition). */
+        NONE
+    }
+
+
+    // single pass encoder (see LutMode#NONE)
+    // the size walk records, in pre-order, the byte count of each container (and the list header),
+    // the utf8 bytes and the stable key order of each map, so the emit walk does no backpatching, sorting or re-encoding
+    static final class FlatEncoder {
+        static final int STAGING_BYTES = 8 * 1024;
+
+        @Nullable
+        final SessionLut session;
+
+        int[] ints = new int[32];
+        int intCount = 0;
+        int inti = 0;
+
+        // the keys then the values of each map, in pre-order
+        final List<List<WireValue>> lists = new ArrayList<List<WireValue>>(32);
+        int listi = 0;
+        // the utf8 bytes of each string, in pre-order
+        final List<byte[]> utf8s = new ArrayList<byte[]>(32);
+        int utf8i = 0;
+
+
+        FlatEncoder(@Nullable SessionLut session) {
+            this.session = session;
+        }
+
+
+        // emit target. when writing to a stream, bb is a staging window that is drained into os
+        ByteBuffer bb;
+        @Nullable
+        OutputStream os = null;
+
+
+        void toBytes(WireValue value, ByteBuffer bb) {
+            this.bb = bb;
+            size(value);
+            try {
+                emit(value);
+            } catch (IOException e) {
+                // no stream
+                throw new IllegalStateException(e);
+            }
+            assert intCount == inti && lists.size() == listi && utf8s.size() == utf8i;
+        }
+
+        void toBytes(WireValue value, OutputStream os) throws IOException {
+            this.os = os;
+            bb = ByteBuffer.allocate(STAGING_BYTES);
+            size(value);
+            emit(value);
+            drain();
+            assert intCount == inti && lists.size() == listi && utf8s.size() == utf8i;
+        }
+
+
+        int reserve() {
+            if (ints.length <= intCount) {
+                ints = Arrays.copyOf(ints, 2 * ints.length);
+            }
+            return intCount++;
+        }
+
+        int size(WireValue value) {
+            switch (value.getType()) {
+                case MAP: {
+                    int i = reserve();
+                    List<WireValue> keys = stableKeys(value);
+                    List<WireValue> values = stableValues(value, keys);
+                    lists.add(keys);
+                    lists.add(values);
+
+                    int si = reserve();
+                    int si_ = null != session ? session.index(of(keys)) : -1;
+                    ints[si] = si_;
+                    int bytes = (0 <= si_ ? 2 : listSize(keys)) + listSize(values);
+                    ints[i] = bytes;
+                    return 5 + bytes;
+                }
+                case LIST: {
+                    if (value instanceof CPrimitiveListWireValue) {
+                        CPrimitiveListWireValue p = (CPrimitiveListWireValue) value;
+                        return _byteSize(p.bytes, p.offset);
+                    }
+                    return listSize(value.asList());
+                }
+                case BLOB:
+                    return 5 + value.asBlob().remaining();
+                case UTF8: {
+                    byte[] b = value.asString().getBytes(Charsets.UTF_8);
+                    utf8s.add(b);
+                    return 5 + b.length;
+                }
+                case INT32:
+                    return 5;
+                case INT64:
+                    return 9;
+                case FLOAT32:
+                    return 5;
+                case FLOAT64:
+                    return 9;
+                case BOOLEAN:
+                    return 1;
+                case MESSAGE: {
+                    int i = reserve();
+                    Message message = value.asMessage();
+                    int bytes = 2 * IdCodec.LENGTH + 4
+                            + size(of(message.route.toString()))
+                            + size(of(message.headers))
+                            + size(of(message.parameters));
+                    ints[i] = bytes;
+                    return 5 + bytes;
+                }
+                case IMAGE:
+                    return 5 + 14 + value.asImage().length;
+                case NULL:
+                    return 1;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        int listSize(List<WireValue> list) {
+            int i = reserve();
+            int hi = reserve();
+            int listh = listh(list);
+            ints[hi] = listh;
+            int bytes;
+            switch (listh) {
+                case H_INT32_LIST:
+                case H_FLOAT32_LIST:
+                    bytes = 4 * list.size();
+                    break;
+                case H_INT64_LIST:
+                case H_FLOAT64_LIST:
+                    bytes = 8 * list.size();
+                    break;
+                default:
+                    bytes = 0;
+                    for (WireValue v : list) {
+                        bytes += size(v);
+                    }
+                    break;
+            }
+            ints[i] = bytes;
+            return 9 + bytes;
+        }
+
+
+        void ensure(int n) throws IOException {
+            if (null != os && bb.remaining() < n) {
+                drain();
+            }
+        }
+
+        void drain() throws IOException {
+            bb.flip();
+            os.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+            bb.clear();
+        }
+
+        void put(byte[] bytes, int offset, int length) throws IOException {
+            if (null != os && bb.remaining() < length) {
+                drain();
+                os.write(bytes, offset, length);
+            } else {
+                bb.put(bytes, offset, length);
+            }
+        }
+
+        void put(ByteBuffer b) throws IOException {
+            if (null != os && bb.remaining() < b.remaining()) {
+                drain();
+                if (b.hasArray()) {
+                    os.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                    b.position(b.limit());
+                } else {
+                    while (b.hasRemaining()) {
+                        int k = Math.min(bb.remaining(), b.remaining());
+                        ByteBuffer d = b.duplicate();
+                        d.limit(d.position() + k);
+                        bb.put(d);
+                        b.position(b.position() + k);
+                        drain();
+                    }
+                }
+            } else {
+                bb.put(b);
+            }
+        }
+
+
+        void emit(WireValue value) throws IOException {
+            switch (value.getType()) {
+                case MAP: {
+                    ensure(5);
+                    bb.put((byte) H_MAP);
+                    bb.putInt(ints[inti++]);
+                    List<WireValue> keys = lists.get(listi++);
+                    List<WireValue> values = lists.get(listi++);
+                    int si = ints[inti++];
+                    if (0 <= si) {
+                        ensure(2);
+                        putSessionRef(si, bb);
+                    } else {
+                        emitList(keys);
+                    }
+                    emitList(values);
+                    break;
+                }
+                case LIST: {
+                    if (value instanceof CPrimitiveListWireValue) {
+                        CPrimitiveListWireValue p = (CPrimitiveListWireValue) value;
+                        put(slice(p.bytes, p.offset, _byteSize(p.bytes, p.offset)));
+                        break;
+                    }
+                    emitList(value.asList());
+                    break;
+                }
+                case BLOB: {
+                    ByteBuffer b = value.asBlob();
+                    ensure(5);
+                    bb.put((byte) H_BLOB);
+                    bb.putInt(b.remaining());
+                    put(b);
+                    break;
+                }
+                case UTF8: {
+                    byte[] b = utf8s.get(utf8i++);
+                    ensure(5);
+                    bb.put((byte) H_UTF8);
+                    bb.putInt(b.length);
+                    put(b, 0, b.length);
+                    break;
+                }
+                case INT32:
+                    ensure(5);
+                    bb.put((byte) H_INT32);
+                    bb.putInt(value.asInt());
+                    break;
+                case INT64:
+                    ensure(9);
+                    bb.put((byte) H_INT64);
+                    bb.putLong(value.asLong());
+                    break;
+                case FLOAT32:
+                    ensure(5);
+                    bb.put((byte) H_FLOAT32);
+                    bb.putFloat(value.asFloat());
+                    break;
+                case FLOAT64:
+                    ensure(9);
+                    bb.put((byte) H_FLOAT64);
+                    bb.putDouble(value.asDouble());
+                    break;
+                case BOOLEAN:
+                    ensure(1);
+                    bb.put((byte) (value.asBoolean() ? H_TRUE_BOOLEAN : H_FALSE_BOOLEAN));
+                    break;
+                case MESSAGE: {
+                    Message message = value.asMessage();
+                    ensure(5 + 2 * IdCodec.LENGTH + 4);
+                    bb.put((byte) H_MESSAGE);
+                    bb.putInt(ints[inti++]);
+                    IdCodec.toBytes(message.id, bb);
+                    IdCodec.toBytes(message.groupId, bb);
+                    bb.putInt(message.groupPriority);
+                    emit(of(message.route.toString()));
+                    emit(of(message.headers));
+                    emit(of(message.parameters));
+                    break;
+                }
+                case IMAGE: {
+                    EncodedImage image = value.asImage();
+                    ensure(5 + 14);
+                    bb.put((byte) H_IMAGE);
+                    bb.putInt(14 + image.length);
+                    bb.put((byte) ImageCodec.h(image.format));
+                    bb.put((byte) ImageCodec.h(image.orientation));
+                    bb.putInt(image.width);
+                    bb.putInt(image.height);
+                    bb.putInt(image.length);
+                    put(image.toBuffer());
+                    break;
+                }
+                case NULL:
+                    ensure(1);
+                    bb.put((byte) H_NULL);
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        void emitList(List<WireValue> list) throws IOException {
+            int bytes = ints[inti++];
+            int listh = ints[inti++];
+            ensure(9);
+            bb.put((byte) listh);
+            bb.putInt(list.size());
+            bb.putInt(bytes);
+            switch (listh) {
+                case H_INT32_LIST:
+                    for (WireValue v : list) {
+                        ensure(4);
+                        bb.putInt(v.asInt());
+                    }
+                    break;
+                case H_INT64_LIST:
+                    for (WireValue v : list) {
+                        ensure(8);
+                        bb.putLong(v.asLong());
+                    }
+                    break;
+                case H_FLOAT32_LIST:
+                    for (WireValue v : list) {
+                        ensure(4);
+                        bb.putFloat(v.asFloat());
+                    }
+                    break;
+                case H_FLOAT64_LIST:
+                    for (WireValue v : list) {
+                        ensure(8);
+                        bb.putDouble(v.asDouble());
+                    }
+                    break;
+                default:
+                    for (WireValue v : list) {
+                        emit(v);
+                    }
+                    break;
+            }
+        }
+    }
+
+
     // lut builder
     static class Lb {
         static class S {
@@ -1617,6 +2630,10 @@ public abstract class WireValue {
         List<S> lut = new ArrayList<S>(4);
         int lutNb = 0;
 
+        // values in the session are never put in the lut
+        @Nullable
+        SessionLut session = null;
+
 
         int luti(WireValue value) {
             S s = stats.get(value);
@@ -1639,19 +2656,26 @@ public abstract class WireValue {
                     expandOne(value, d, i);
                     i += 1;
                     // the rest
-                    Map<WireValue, WireValue> m = value.asMap();
-                    List<WireValue> keys = stableKeys(m);
-                    i = expand(of(keys), d + 1, i);
-                    List<WireValue> values = stableValues(m, keys);
+                    List<WireValue> keys = stableKeys(value);
+                    WireValue keyset = of(keys);
+                    if (null != session && session.contains(keyset)) {
+                        // never in the lut
+                        i += 1;
+                    } else {
+                        i = expand(keyset, d + 1, i);
+                    }
+                    List<WireValue> values = stableValues(value, keys);
                     i = expand(of(values), d + 1, i);
                     break;
                 case LIST:
                     expandOne(value, d, i);
                     i += 1;
                     // the rest
-                    for (WireValue v : value.asList()) {
-                        i = expand(v, d + 1, i);
-                    }
+                    if (H_LIST == listh(value)) {
+                        for (WireValue v : value.asList()) {
+                            i = expand(v, d + 1, i);
+                        }
+                    } // else packed
                     break;
                 default:
                     expandOne(value, d, i);
@@ -1732,115 +2756,405 @@ public abstract class WireValue {
                 case MAP:
                     collapseOne(value);
                     // the rest
-                    Map<WireValue, WireValue> m = value.asMap();
-                    List<WireValue> keys = stableKeys(m);
-                    collapse(of(keys));
-                    List<WireValue> values = stableValues(m, keys);
+                    List<WireValue> keys = stableKeys(value);
+                    WireValue keyset = of(keys);
+                    if (!(null != session && session.contains(keyset))) {
+                        collapse(keyset);
+                    }
+                    List<WireValue> values = stableValues(value, keys);
                     collapse(of(values));
                     break;
                 case LIST:
                     collapseOne(value);
                     // the rest
-                    for (WireValue v : value.asList()) {
-                        collapse(v);
+                    if (H_LIST == listh(value)) {
+                        for (WireValue v : value.asList()) {
+                            collapse(v);
+                        }
+                    } // else packed
+                    break;
+                default:
+                    collapseOne(value);
+                    break;
+            }
+        }
+        void collapseOne(WireValue value) {
+            S s = stats.get(value);
+            assert null != s;
+            s.count -= 1;
+        }
+
+
+
+
+
+        int[] sizes = new int[]{0, 0x10, 0x0100, 0x010000, 0x01000000};
+        int nb(int c) {
+            int nb = 0;
+            while (sizes[nb] < c) {
+                ++nb;
+            }
+            return nb;
+        }
+
+
+
+
+
+
+        int estimateLutNb() {
+            int nb = nb(count(1));
+            if (nb == sizes.length) {
+                // too many unique values; punt
+                return -1;
+            }
+            int pnb;
+            do {
+                pnb = nb;
+                nb = nb(count(nb));
+            } while (nb < pnb);
+
+            return pnb;
+        }
+        int count(int nb) {
+            int c = 0;
+            for (S s : stats.values()) {
+                if (include(s, nb)) {
+                    c += 1;
+                }
+            }
+            return c;
+        }
+
+
+        boolean include(S s, int nb) {
+            int b = quickLowerSize(s.value.getType());
+            return nb * s.count + b < s.count * b;
+        }
+
+        int quickLowerSize(Type type) {
+            switch (type) {
+                case MAP:
+                    // TODO this is a lower estimate
+                    // length + ...
+                    return 12;
+                case LIST:
+                    // TODO this is a lower estimate
+                    return 8;
+                case BLOB:
+                    // TODO this is a lower estimate
+                    return 8;
+                case UTF8:
+                    // TODO this is a lower estimate
+                    return 8;
+                case INT32:
+                    return 4;
+                case INT64:
+                    return 8;
+                case FLOAT32:
+                    return 4;
+                case FLOAT64:
+                    return 8;
+                case BOOLEAN:
+                    return 1;
+                case MESSAGE:
+                    // FIXME
+                    return 1;
+                case IMAGE:
+                    // FIXME
+                    return 1;
+                case NULL:
+                    return 1;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    /** Connection-scoped LUT ("wire value v2").
+     * Map keysets that repeat across values are defined once per session,
+     * after which values carry a two byte reference in place of the keyset.
+     * A keyset is defined on its second sighting, so one-off keysets do not churn the table.
+     * The table is LRU-bounded; the index of an evicted entry is reused by the next definition.
+     *
+     * Definitions are queued as values are encoded ({@link WireValue#toBytes(ByteBuffer, SessionLut)}).
+     * They must be delivered to the reader, in order and before the values that were encoded with them.
+     * The reader side is {@link SessionLutTable}.
+     * Not thread-safe. */
+    public static final class SessionLut {
+        // 14-bit index
+        public static final int MAX_CAPACITY = 0x4000;
+        public static final int DEFAULT_CAPACITY = 1024;
+
+        static final int MAX_KEYSET_SIZE = 128;
+
+
+        final int capacity;
+
+        // access order (lru first)
+        final LinkedHashMap<WireValue, Integer> indexes;
+        final WireValue[] values;
+        // keysets seen once
+        final LinkedHashMap<WireValue, Boolean> candidates;
+
+        final List<Integer> pendingIndexes = new ArrayList<Integer>(8);
+        final List<WireValue> pendingValues = new ArrayList<WireValue>(8);
+
+        int refCount = 0;
+
+
+        public SessionLut() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public SessionLut(int capacity) {
+            if (capacity <= 0 || MAX_CAPACITY < capacity) {
+                throw new IllegalArgumentException();
+            }
+            this.capacity = capacity;
+            indexes = new LinkedHashMap<WireValue, Integer>(16, 0.75f, true);
+            values = new WireValue[capacity];
+            final int candidateCapacity = capacity;
+            candidates = new LinkedHashMap<WireValue, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<WireValue, Boolean> eldest) {
+                    return candidateCapacity < size();
+                }
+            };
+        }
+
+
+        /** @return an independent lut in the same state. Encoding into the copy leaves this one unchanged. */
+        public SessionLut copy() {
+            SessionLut copy = new SessionLut(capacity);
+            // putAll keeps the access order
+            copy.indexes.putAll(indexes);
+            System.arraycopy(values, 0, copy.values, 0, capacity);
+            copy.candidates.putAll(candidates);
+            copy.pendingIndexes.addAll(pendingIndexes);
+            copy.pendingValues.addAll(pendingValues);
+            copy.refCount = refCount;
+            return copy;
+        }
+
+
+        public int size() {
+            return indexes.size();
+        }
+
+        /** @return the total number of references written into values. Use this to check whether
+         * an encoded value depends on the session. */
+        public int getRefCount() {
+            return refCount;
+        }
+
+        public boolean hasDefinitions() {
+            return !pendingIndexes.isEmpty();
+        }
+
+        /** Writes and clears the queued definitions.
+         * [count][definition*]
+         * definition := [index 2 bytes][value] */
+        public void writeDefinitions(ByteBuffer bb) {
+            int n = pendingIndexes.size();
+            bb.putInt(n);
+            Lb lb = new Lb();
+            for (int i = 0; i < n; ++i) {
+                bb.putShort((short) pendingIndexes.get(i).intValue());
+                _toBytes(pendingValues.get(i), lb, bb);
+            }
+            pendingIndexes.clear();
+            pendingValues.clear();
+        }
+
+        public void writeDefinitions(OutputStream os) throws IOException {
+            int n = pendingIndexes.size();
+            DataOutputStream dos = new DataOutputStream(os);
+            dos.writeInt(n);
+            for (int i = 0; i < n; ++i) {
+                dos.writeShort(pendingIndexes.get(i));
+                new FlatEncoder(null).toBytes(pendingValues.get(i), dos);
+            }
+            dos.flush();
+            pendingIndexes.clear();
+            pendingValues.clear();
+        }
+
+        /** @return the table a reader has after reading all definitions written so far. */
+        public SessionLutTable toTable() {
+            return new SessionLutTable(Arrays.copyOf(values, indexes.size()));
+        }
+
+
+        boolean contains(WireValue value) {
+            return indexes.containsKey(value);
+        }
+
+        int index(WireValue value) {
+            @Nullable Integer index = indexes.get(value);
+            if (null == index) {
+                return -1;
+            }
+            refCount += 1;
+            return index;
+        }
+
+
+        void touch(WireValue value) {
+            switch (value.getType()) {
+                case MAP: {
+                    List<WireValue> keys = stableKeys(value);
+                    touch(keys, stableValues(value, keys));
+                    break;
+                }
+                case LIST:
+                    if (!(value instanceof CPrimitiveListWireValue)) {
+                        for (WireValue v : value.asList()) {
+                            touch(v);
+                        }
                     }
                     break;
+                case MESSAGE: {
+                    Message message = value.asMessage();
+                    List<WireValue> keys = stableKeys(message.headers);
+                    touch(keys, stableValues(message.headers, keys));
+                    keys = stableKeys(message.parameters);
+                    touch(keys, stableValues(message.parameters, keys));
+                    break;
+                }
                 default:
-                    collapseOne(value);
+                    // not in the lut
                     break;
             }
         }
-        void collapseOne(WireValue value) {
-            S s = stats.get(value);
-            assert null != s;
-            s.count -= 1;
+
+        void touch(List<WireValue> keys, List<WireValue> values) {
+            if (isKeyset(keys)) {
+                WireValue keyset = of(keys);
+                if (null == indexes.get(keyset)) {
+                    if (null != candidates.remove(keyset)) {
+                        define(keyset);
+                    } else {
+                        candidates.put(keyset, true);
+                    }
+                }
+            }
+            for (WireValue value : values) {
+                touch(value);
+            }
         }
 
+        boolean isKeyset(List<WireValue> keys) {
+            int n = keys.size();
+            if (n <= 0 || MAX_KEYSET_SIZE < n) {
+                return false;
+            }
+            for (WireValue key : keys) {
+                if (!Type.UTF8.equals(key.getType())) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
+        void define(WireValue value) {
+            int index;
+            if (indexes.size() < capacity) {
+                index = indexes.size();
+            } else {
+                // evict the lru
+                Iterator<Map.Entry<WireValue, Integer>> itr = indexes.entrySet().iterator();
+                index = itr.next().getValue();
+                itr.remove();
+            }
+            indexes.put(value, index);
+            values[index] = value;
 
+            pendingIndexes.add(index);
+            pendingValues.add(value);
+        }
+    }
 
+    /** Reader side of {@link SessionLut}. Immutable - {@link #define} returns a new table,
+     * so a value that started arriving before a definition keeps resolving against the table it was encoded with. */
+    public static final class SessionLutTable {
+        public static final SessionLutTable EMPTY = new SessionLutTable(new WireValue[0]);
 
-        int[] sizes = new int[]{0, 0x10, 0x0100, 0x010000, 0x01000000};
-        int nb(int c) {
-            int nb = 0;
-            while (sizes[nb] < c) {
-                ++nb;
-            }
-            return nb;
-        }
 
+        final WireValue[] values;
 
 
+        SessionLutTable(WireValue[] values) {
+            this.values = values;
+        }
 
 
+        /** @param bytes definitions written by {@link SessionLut#writeDefinitions} */
+        public SessionLutTable define(byte[] bytes, int offset, int length) {
+            WireValue[] values = this.values;
+            boolean copied = false;
 
-        int estimateLutNb() {
-            int nb = nb(count(1));
-            if (nb == sizes.length) {
-                // too many unique values; punt
-                return -1;
+            ByteBuffer view = ByteBuffer.wrap(bytes);
+            int c = offset;
+            int n = getint(bytes, c);
+            c += 4;
+            for (int i = 0; i < n; ++i) {
+                int index = ((0xFF & bytes[c]) << 8) | (0xFF & bytes[c + 1]);
+                c += 2;
+                if (SessionLut.MAX_CAPACITY <= index) {
+                    throw new IllegalArgumentException("" + index);
+                }
+                WireValue value = valueOf(view, c, (CompressionState) null);
+                c += _byteSize(view, c);
+
+                if (values.length <= index) {
+                    values = Arrays.copyOf(values, Math.min(SessionLut.MAX_CAPACITY, Math.max(index + 1, 2 * values.length)));
+                    copied = true;
+                } else if (!copied) {
+                    values = values.clone();
+                    copied = true;
+                }
+                values[index] = value;
+            }
+            if (offset + length != c) {
+                throw new IllegalArgumentException();
             }
-            int pnb;
-            do {
-                pnb = nb;
-                nb = nb(count(nb));
-            } while (nb < pnb);
 
-            return pnb;
+            return copied ? new SessionLutTable(values) : this;
         }
-        int count(int nb) {
-            int c = 0;
-            for (S s : stats.values()) {
-                if (include(s, nb)) {
-                    c += 1;
-                }
+
+
+        WireValue get(int index) {
+            if (values.length <= index || null == values[index]) {
+                throw new IllegalArgumentException("" + index);
             }
-            return c;
+            return values[index];
         }
+    }
 
 
-        boolean include(S s, int nb) {
-            int b = quickLowerSize(s.value.getType());
-            return nb * s.count + b < s.count * b;
+    static void putSessionRef(int si, ByteBuffer bb) {
+        bb.put((byte) (H_SESSION | (si >>> 8)));
+        bb.put((byte) si);
+    }
+
+
+    // parsed maps are already in stable order; memory maps cache the order
+    static List<WireValue> stableKeys(WireValue value) {
+        if (value instanceof MapWireValue) {
+            return ((MapWireValue) value).stableKeys();
+        }
+        if (value instanceof CMapWireValue) {
+            return ((CMapWireValue) value).keys();
         }
+        return stableKeys(value.asMap());
+    }
 
-        int quickLowerSize(Type type) {
-            switch (type) {
-                case MAP:
-                    // TODO this is a lower estimate
-                    // length + ...
-                    return 12;
-                case LIST:
-                    // TODO this is a lower estimate
-                    return 8;
-                case BLOB:
-                    // TODO this is a lower estimate
-                    return 8;
-                case UTF8:
-                    // TODO this is a lower estimate
-                    return 8;
-                case INT32:
-                    return 4;
-                case INT64:
-                    return 8;
-                case FLOAT32:
-                    return 4;
-                case FLOAT64:
-                    return 8;
-                case BOOLEAN:
-                    return 1;
-                case MESSAGE:
-                    // FIXME
-                    return 1;
-                case IMAGE:
-                    // FIXME
-                    return 1;
-                case NULL:
-                    return 1;
-                default:
-                    throw new IllegalArgumentException();
-            }
+    static List<WireValue> stableValues(WireValue value, List<WireValue> keys) {
+        if (value instanceof CMapWireValue) {
+            return ((CMapWireValue) value).values();
         }
+        return stableValues(value.asMap(), keys);
     }
 
     static List<WireValue> stableKeys(Map<WireValue, WireValue> m) {
@@ -2006,6 +3320,56 @@ public abstract class WireValue {
     public abstract Message asMessage();
     public abstract EncodedImage asImage();
 
+    // primitive views of a list. these are zero-copy for packed lists
+    public IntBuffer asIntBuffer() {
+        return IntBuffer.wrap(asIntArray());
+    }
+    public LongBuffer asLongBuffer() {
+        return LongBuffer.wrap(asLongArray());
+    }
+    public FloatBuffer asFloatBuffer() {
+        return FloatBuffer.wrap(asFloatArray());
+    }
+    public DoubleBuffer asDoubleBuffer() {
+        return DoubleBuffer.wrap(asDoubleArray());
+    }
+    public int[] asIntArray() {
+        List<WireValue> list = asList();
+        int n = list.size();
+        int[] values = new int[n];
+        for (int i = 0; i < n; ++i) {
+            values[i] = list.get(i).asInt();
+        }
+        return values;
+    }
+    public long[] asLongArray() {
+        List<WireValue> list = asList();
+        int n = list.size();
+        long[] values = new long[n];
+        for (int i = 0; i < n; ++i) {
+            values[i] = list.get(i).asLong();
+        }
+        return values;
+    }
+    public float[] asFloatArray() {
+        List<WireValue> list = asList();
+        int n = list.size();
+        float[] values = new float[n];
+        for (int i = 0; i < n; ++i) {
+            values[i] = list.get(i).asFloat();
+        }
+        return values;
+    }
+    public double[] asDoubleArray() {
+        List<WireValue> list = asList();
+        int n = list.size();
+        double[] values = new double[n];
+        for (int i = 0; i < n; ++i) {
+            values[i] = list.get(i).asDouble();
+        }
+        return values;
+    }
+
 
 
 
@@ -2313,9 +3677,20 @@ public abstract class WireValue {
     private static class MapWireValue extends WireValue {
         final Map<WireValue, WireValue> value;
 
+        @Nullable
+        List<WireValue> stableKeys = null;
+
         MapWireValue(Map<WireValue, WireValue> value) {
             super(Type.MAP);
-            this.value = duckMap(value);
+            // copied so the cached key order can't go stale when the caller changes its map
+            this.value = duckMap(Collections.unmodifiableMap(new LinkedHashMap<WireValue, WireValue>(value)));
+        }
+
+        List<WireValue> stableKeys() {
+            if (null == stableKeys) {
+                stableKeys = WireValue.stableKeys(value);
+            }
+            return stableKeys;
         }
 
         @Override
@@ -2535,6 +3910,15 @@ public abstract class WireValue {
             return new Id(bytes, offset);
         }
 
+        public static Id valueOf(ByteBuffer bytes, int offset) {
+            if (bytes.hasArray()) {
+                return new Id(bytes.array(), bytes.arrayOffset() + offset);
+            }
+            byte[] b = new byte[LENGTH];
+            slice(bytes, offset, LENGTH).get(b);
+            return new Id(b, 0);
+        }
+
         public static void toBytes(Id id, ByteBuffer bb) {
             bb.put(id.bytes, id.offset, Id.LENGTH);
         }
@@ -2550,36 +3934,38 @@ public abstract class WireValue {
         static final int H_O_FRONT_FACING = 2;
 
 
-        public static EncodedImage valueOf(byte[] bytes, int offset) {
-            EncodedImage.Format format;
-            int c = offset;
-            // skip bytes
-            c += 4;
-            switch (0xFF & bytes[c]) {
+        static EncodedImage.Format format(int h) {
+            switch (h) {
                 case H_F_WEBP:
-                    format = EncodedImage.Format.WEBP;
-                    break;
+                    return EncodedImage.Format.WEBP;
                 case H_F_JPEG:
-                    format = EncodedImage.Format.JPEG;
-                    break;
+                    return EncodedImage.Format.JPEG;
                 case H_F_PNG:
-                    format = EncodedImage.Format.PNG;
-                    break;
+                    return EncodedImage.Format.PNG;
                 default:
                     throw new IllegalArgumentException();
             }
-            c += 1;
-            EncodedImage.Orientation orientation;
-            switch (0xFF & bytes[c]) {
+        }
+
+        static EncodedImage.Orientation orientation(int h) {
+            switch (h) {
                 case H_O_REAR_FACING:
-                    orientation = EncodedImage.Orientation.REAR_FACING;
-                    break;
+                    return EncodedImage.Orientation.REAR_FACING;
                 case H_O_FRONT_FACING:
-                    orientation = EncodedImage.Orientation.FRONT_FACING;
-                    break;
+                    return EncodedImage.Orientation.FRONT_FACING;
                 default:
                     throw new IllegalArgumentException();
             }
+        }
+
+
+        public static EncodedImage valueOf(ByteBuffer bytes, int offset) {
+            int c = offset;
+            // skip bytes
+            c += 4;
+            EncodedImage.Format format = format(0xFF & bytes.get(c));
+            c += 1;
+            EncodedImage.Orientation orientation = orientation(0xFF & bytes.get(c));
             c += 1;
             int width = getint(bytes, c);
             c += 4;
@@ -2587,40 +3973,44 @@ public abstract class WireValue {
             c += 4;
             int length = getint(bytes, c);
             c += 4;
-            return new EncodedImage(format, orientation, width, height, bytes, c, length);
+            return EncodedImage.create(format, orientation, width, height, slice(bytes, c, length));
         }
 
-        public static void toBytes(EncodedImage image, Lb lb, ByteBuffer bb) {
-            bb.putInt(0);
-            int i = bb.position();
-
-            switch (image.format) {
+        static int h(EncodedImage.Format format) {
+            switch (format) {
                 case WEBP:
-                    bb.put((byte) H_F_WEBP);
-                    break;
+                    return H_F_WEBP;
                 case JPEG:
-                    bb.put((byte) H_F_JPEG);
-                    break;
+                    return H_F_JPEG;
                 case PNG:
-                    bb.put((byte) H_F_PNG);
-                    break;
+                    return H_F_PNG;
                 default:
                     throw new IllegalArgumentException();
             }
-            switch (image.orientation) {
+        }
+
+        static int h(EncodedImage.Orientation orientation) {
+            switch (orientation) {
                 case REAR_FACING:
-                    bb.put((byte) H_O_REAR_FACING);
-                    break;
+                    return H_O_REAR_FACING;
                 case FRONT_FACING:
-                    bb.put((byte) H_O_FRONT_FACING);
-                    break;
+                    return H_O_FRONT_FACING;
                 default:
                     throw new IllegalArgumentException();
             }
+        }
+
+
+        public static void toBytes(EncodedImage image, Lb lb, ByteBuffer bb) {
+            bb.putInt(0);
+            int i = bb.position();
+
+            bb.put((byte) h(image.format));
+            bb.put((byte) h(image.orientation));
             bb.putInt(image.width);
             bb.putInt(image.height);
             bb.putInt(image.length);
-            bb.put(image.bytes, image.offset, image.length);
+            bb.put(image.toBuffer());
 
             int bytes = bb.position() - i;
             bb.putInt(i - 4, bytes);
@@ -2630,7 +4020,7 @@ public abstract class WireValue {
     private static final class MessageCodec {
 
 
-        public static Message valueOf(byte[] bytes, int offset, CompressionState cs) {
+        public static Message valueOf(ByteBuffer bytes, int offset, CompressionState cs) {
             int c = offset;
             // skip bytes
             c += 4;
@@ -2642,9 +4032,9 @@ public abstract class WireValue {
             int groupPriority = getint(bytes, c);
             c += 4;
             Route route = Route.valueOf(WireValue.valueOf(bytes, c, cs).asString());
-            c += 5 + getint(bytes, c + 1);
+            c += byteSize(bytes, c, cs);
             Map<WireValue, WireValue> headers = WireValue.valueOf(bytes, c, cs).asMap();
-            c += 5 + getint(bytes, c + 1);
+            c += byteSize(bytes, c, cs);
             Map<WireValue, WireValue> parameters = WireValue.valueOf(bytes, c, cs).asMap();
             return new Message(id, groupId, groupPriority, route, headers, parameters);
         }
@@ -2667,6 +4057,294 @@ public abstract class WireValue {
     }
 
 
+    // streaming parse (see #valueOf(InputStream))
+    // the body is expanded into memory values as it is read, so there is never a copy of the full encoded value
+    // the lut header is small relative to the body, so it is buffered and parsed with the byte[] views
+    private static final class StreamDecoder {
+        final InputStream in;
+        @Nullable
+        final SessionLutTable session;
+        final byte[] scratch = new byte[8];
+
+        @Nullable
+        CompressionState cs = null;
+
+
+        StreamDecoder(InputStream in, @Nullable SessionLutTable session) {
+            this.in = in;
+            this.session = session;
+        }
+
+
+        WireValue decode() throws IOException {
+            int h = readu8();
+            if ((h & H_COMPRESSED) == H_COMPRESSED) {
+                int nb = h & ~H_COMPRESSED;
+                int size = readint();
+                int headerBytes = readint();
+                byte[] b = new byte[headerBytes];
+                readFully(b, 0, headerBytes);
+                ByteBuffer header = ByteBuffer.wrap(b);
+
+                int[] offsets = new int[size + 1];
+                offsets[0] = 0;
+                for (int i = 1; i <= size; ++i) {
+                    offsets[i] = offsets[i - 1] + _byteSize(header, offsets[i - 1]);
+                }
+                if (headerBytes != offsets[size]) {
+                    throw new IllegalArgumentException();
+                }
+                cs = new CompressionState(header, 0, offsets, nb, session);
+
+                h = readu8();
+            }
+            return decode(h);
+        }
+
+        WireValue decode(int h) throws IOException {
+            if ((h & H_SESSION_MASK) == H_SESSION) {
+                if (null == session) {
+                    throw new IllegalArgumentException();
+                }
+                return session.get(((h & ~H_SESSION_MASK) << 8) | readu8());
+            }
+            if ((h & H_COMPRESSED) == H_COMPRESSED) {
+                if (null == cs) {
+                    throw new IllegalArgumentException();
+                }
+                int luti = h & ~H_COMPRESSED;
+                for (int i = 1; i < cs.nb; ++i) {
+                    luti = (luti << 8) | readu8();
+                }
+                return cs.lutValue(luti);
+            }
+
+            switch (h) {
+                case H_UTF8: {
+                    int length = readint();
+                    byte[] bytes = new byte[length];
+                    readFully(bytes, 0, length);
+                    return of(new String(bytes, Charsets.UTF_8));
+                }
+                case H_BLOB: {
+                    int length = readint();
+                    byte[] bytes = new byte[length];
+                    readFully(bytes, 0, length);
+                    return of(bytes);
+                }
+                case H_INT32:
+                    return of(readint());
+                case H_INT64:
+                    return of(readlong());
+                case H_FLOAT32:
+                    return of(Float.intBitsToFloat(readint()));
+                case H_FLOAT64:
+                    return of(Double.longBitsToDouble(readlong()));
+                case H_TRUE_BOOLEAN:
+                    return of(true);
+                case H_FALSE_BOOLEAN:
+                    return of(false);
+                case H_MAP:
+                    // skip bytes
+                    readint();
+                    return of(decodeMap());
+                case H_LIST: {
+                    int n = readint();
+                    // skip bytes
+                    readint();
+                    List<WireValue> list = new ArrayList<WireValue>(n);
+                    for (int i = 0; i < n; ++i) {
+                        list.add(decode(readu8()));
+                    }
+                    return of(list);
+                }
+                case H_INT32_LIST:
+                case H_INT64_LIST:
+                case H_FLOAT32_LIST:
+                case H_FLOAT64_LIST: {
+                    // keep the packed form
+                    int n = readint();
+                    int length = readint();
+                    byte[] bytes = new byte[9 + length];
+                    bytes[0] = (byte) h;
+                    putint(bytes, 1, n);
+                    putint(bytes, 5, length);
+                    readFully(bytes, 9, length);
+                    return valueOf(ByteBuffer.wrap(bytes), 0, (CompressionState) null);
+                }
+                case H_NULL:
+                    return of();
+                case H_MESSAGE:
+                    return of(decodeMessage());
+                case H_IMAGE:
+                    return of(decodeImage());
+                default:
+                    throw new IllegalArgumentException("" + h);
+            }
+        }
+
+        @Nullable
+        InputStream openPayload(WireValue[] path) throws IOException {
+            int h = readu8();
+            for (WireValue key : path) {
+                if (H_MESSAGE == h) {
+                    // skip bytes, id, group id, group priority, route, headers
+                    readint();
+                    skipFully(2 * IdCodec.LENGTH + 4);
+                    skip(readu8());
+                    skip(readu8());
+                    h = readu8();
+                }
+                if (H_MAP != h) {
+                    return null;
+                }
+                // skip bytes
+                readint();
+                int index = decode(readu8()).asList().indexOf(key);
+                h = readu8();
+                if (index < 0 || H_LIST != h) {
+                    // a packed list holds only numbers
+                    return null;
+                }
+                int n = readint();
+                // skip bytes
+                readint();
+                if (n <= index) {
+                    throw new IllegalArgumentException();
+                }
+                for (int i = 0; i < index; ++i) {
+                    skip(readu8());
+                }
+                h = readu8();
+            }
+            switch (h) {
+                case H_UTF8:
+                case H_BLOB:
+                    return ByteStreams.limit(in, readint());
+                case H_IMAGE:
+                    // skip bytes, format, orientation, width, height
+                    readint();
+                    skipFully(1 + 1 + 4 + 4);
+                    return ByteStreams.limit(in, readint());
+                default:
+                    return null;
+            }
+        }
+
+        void skip(int h) throws IOException {
+            if ((h & H_SESSION_MASK) == H_SESSION || (h & H_COMPRESSED) == H_COMPRESSED) {
+                throw new IllegalArgumentException();
+            }
+            switch (h) {
+                case H_UTF8:
+                case H_BLOB:
+                case H_MAP:
+                case H_MESSAGE:
+                case H_IMAGE:
+                    skipFully(readint());
+                    break;
+                case H_INT32:
+                case H_FLOAT32:
+                    skipFully(4);
+                    break;
+                case H_INT64:
+                case H_FLOAT64:
+                    skipFully(8);
+                    break;
+                case H_TRUE_BOOLEAN:
+                case H_FALSE_BOOLEAN:
+                case H_NULL:
+                    break;
+                case H_LIST:
+                case H_INT32_LIST:
+                case H_INT64_LIST:
+                case H_FLOAT32_LIST:
+                case H_FLOAT64_LIST:
+                    // skip count
+                    readint();
+                    skipFully(readint());
+                    break;
+                default:
+                    throw new IllegalArgumentException("" + h);
+            }
+        }
+
+        Map<WireValue, WireValue> decodeMap() throws IOException {
+            List<WireValue> keys = decode(readu8()).asList();
+            List<WireValue> values = decode(readu8()).asList();
+            int n = keys.size();
+            if (n != values.size()) {
+                throw new IllegalArgumentException();
+            }
+            Map<WireValue, WireValue> map = new HashMap<WireValue, WireValue>(n);
+            for (int i = 0; i < n; ++i) {
+                map.put(keys.get(i), values.get(i));
+            }
+            return map;
+        }
+
+        Message decodeMessage() throws IOException {
+            // skip bytes
+            readint();
+
+            Id id = readId();
+            Id groupId = readId();
+            int groupPriority = readint();
+            Route route = Route.valueOf(decode(readu8()).asString());
+            Map<WireValue, WireValue> headers = decode(readu8()).asMap();
+            Map<WireValue, WireValue> parameters = decode(readu8()).asMap();
+            return new Message(id, groupId, groupPriority, route, headers, parameters);
+        }
+
+        EncodedImage decodeImage() throws IOException {
+            // skip bytes
+            readint();
+
+            EncodedImage.Format format = ImageCodec.format(readu8());
+            EncodedImage.Orientation orientation = ImageCodec.orientation(readu8());
+            int width = readint();
+            int height = readint();
+            int length = readint();
+            byte[] bytes = new byte[length];
+            readFully(bytes, 0, length);
+            return new EncodedImage(format, orientation, width, height, bytes, 0, length);
+        }
+
+
+        Id readId() throws IOException {
+            byte[] bytes = new byte[IdCodec.LENGTH];
+            readFully(bytes, 0, IdCodec.LENGTH);
+            return IdCodec.valueOf(bytes, 0);
+        }
+
+        int readu8() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        int readint() throws IOException {
+            readFully(scratch, 0, 4);
+            return getint(scratch, 0);
+        }
+
+        long readlong() throws IOException {
+            readFully(scratch, 0, 8);
+            return getlong(scratch, 0);
+        }
+
+        void readFully(byte[] bytes, int offset, int length) throws IOException {
+            ByteStreams.readFully(in, bytes, offset, length);
+        }
+
+        void skipFully(int length) throws IOException {
+            ByteStreams.skipFully(in, length);
+        }
+    }
+
+
     public static boolean isWireValues(Collection<?> values) {
         for (Object value : values) {
             if (!(value instanceof WireValue)) {
@@ -2811,6 +4489,37 @@ public abstract class WireValue {
 
     // wire utils
 
+    // the buffer is big endian (see #view)
+    static int getint(ByteBuffer bytes, int offset) {
+        return bytes.getInt(offset);
+    }
+    static long getlong(ByteBuffer bytes, int offset) {
+        return bytes.getLong(offset);
+    }
+
+    static String utf8(ByteBuffer bytes, int offset, int length) {
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + offset, length, Charsets.UTF_8);
+        }
+        byte[] b = new byte[length];
+        slice(bytes, offset, length).get(b);
+        return new String(b, Charsets.UTF_8);
+    }
+
+    /** @return [offset, offset + length) of the buffer, as a buffer with position 0 */
+    static ByteBuffer slice(ByteBuffer bytes, int offset, int length) {
+        ByteBuffer d = bytes.duplicate();
+        d.limit(offset + length);
+        d.position(offset);
+        return d.slice();
+    }
+
+    /** @return a view of the buffer in big endian order, independent of the position and order of the original */
+    static ByteBuffer view(ByteBuffer bytes) {
+        return bytes.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+
     public static int getint(byte[] bytes, int offset) {
         return ((0xFF & bytes[offset]) << 24)
                 | ((0xFF & bytes[offset + 1]) << 16)
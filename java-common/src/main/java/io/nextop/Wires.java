@@ -3,6 +3,8 @@ package io.nextop;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.NoSuchElementException;
 
 public final class Wires {
@@ -10,11 +12,12 @@ public final class Wires {
 
     public static Wire io(Socket socket) throws IOException {
         socket.setTcpNoDelay(false);
-        return io(socket.getInputStream(), socket.getOutputStream());
+        // a socket opened from a channel can gather writes
+        return new IoWire(socket.getInputStream(), socket.getOutputStream(), socket.getChannel());
     }
 
     public static Wire io(@Nullable InputStream is, @Nullable OutputStream os) {
-        return new IoWire(is, os);
+        return new IoWire(is, os, null);
     }
 
     public static InputStream inputStream(Wire wire) {
@@ -36,6 +39,32 @@ public final class Wires {
         return new CompositeAdapter(adapters);
     }
 
+    public static long remaining(ByteBuffer[] buffers) {
+        long n = 0;
+        for (ByteBuffer buffer : buffers) {
+            n += buffer.remaining();
+        }
+        return n;
+    }
+
+    // for wires with no gather path: writes each buffer in order
+    static void writeEach(Wire wire, ByteBuffer[] buffers, int messageBoundary) throws IOException {
+        byte[] copy = null;
+        for (ByteBuffer buffer : buffers) {
+            int n = buffer.remaining();
+            if (buffer.hasArray()) {
+                wire.write(buffer.array(), buffer.arrayOffset() + buffer.position(), n, messageBoundary);
+            } else {
+                if (null == copy || copy.length < n) {
+                    copy = new byte[n];
+                }
+                buffer.duplicate().get(copy, 0, n);
+                wire.write(copy, 0, n, messageBoundary);
+            }
+            buffer.position(buffer.limit());
+        }
+    }
+
 
 
     private Wires() {
@@ -43,17 +72,27 @@ public final class Wires {
 
 
     private static final class IoWire implements Wire {
+        // gathers larger than this are written buffer by buffer
+        private static final int MAX_GATHER_COPY_BYTES = 64 * 1024;
+
         @Nullable
         private final InputStream is;
         @Nullable
         private final OutputStream os;
+        // blocking
+        @Nullable
+        private final GatheringByteChannel channel;
 
         private boolean closed = false;
 
+        @Nullable
+        private byte[] gatherCopy = null;
+
 
-        IoWire(@Nullable InputStream is, @Nullable OutputStream os) {
+        IoWire(@Nullable InputStream is, @Nullable OutputStream os, @Nullable GatheringByteChannel channel) {
             this.is = is;
             this.os = os;
+            this.channel = channel;
         }
 
 
@@ -134,6 +173,45 @@ public final class Wires {
             }
         }
 
+        @Override
+        public void write(ByteBuffer[] buffers, int messageBoundary) throws IOException {
+            if (closed) {
+                throw new IOException();
+            }
+            try {
+                if (null != channel) {
+                    long n = remaining(buffers);
+                    for (long i = 0; i < n; ) {
+                        i += channel.write(buffers);
+                    }
+                } else if (null != os) {
+                    long n = remaining(buffers);
+                    if (n <= MAX_GATHER_COPY_BYTES) {
+                        // one write to the stream, so one send on an unbuffered socket stream
+                        if (null == gatherCopy || gatherCopy.length < n) {
+                            gatherCopy = new byte[(int) n];
+                        }
+                        int c = 0;
+                        for (ByteBuffer buffer : buffers) {
+                            int r = buffer.remaining();
+                            buffer.get(gatherCopy, c, r);
+                            c += r;
+                        }
+                        os.write(gatherCopy, 0, c);
+                    } else {
+                        writeEach(this, buffers, messageBoundary);
+                    }
+                } else {
+                    throw new IOException("No output.");
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    close();
+                }
+                throw e;
+            }
+        }
+
         @Override
         public void flush() throws IOException {
             try {
@@ -258,6 +336,8 @@ public final class Wires {
                 throw new IOException();
             }
             closed = true;
+            // wake blocked reads and writes
+            notifyAll();
         }
 
         @Override
@@ -353,6 +433,11 @@ public final class Wires {
             }
         }
 
+        @Override
+        public synchronized void write(ByteBuffer[] buffers, int messageBoundary) throws IOException {
+            writeEach(this, buffers, messageBoundary);
+        }
+
         @Override
         public synchronized void flush() throws IOException {
             // already flushed
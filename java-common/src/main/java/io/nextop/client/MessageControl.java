@@ -4,6 +4,9 @@ import io.nextop.Message;
 import io.nextop.Route;
 import io.nextop.WireValue;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -99,6 +102,13 @@ public final class MessageControl {
         }
     }
 
+    /** Reads the encoding of {@link #toWireValue} up to the content of the message, without decoding the rest.
+     * @return the content bytes (see {@link WireValue#openPayload}), or null if the content is not bytes */
+    @Nullable
+    public static InputStream openContent(InputStream in) throws IOException {
+        return WireValue.openPayload(in, WireValue.of(S_KEY_MESSAGE), Message.P_CONTENT);
+    }
+
 
     public final Direction dir;
     public final Type type;
@@ -2,22 +2,26 @@ package io.nextop.client;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 import io.nextop.Id;
 import io.nextop.Message;
 import io.nextop.Route;
 import io.nextop.WireValue;
-import io.nextop.sortedlist.SortedList;
-import io.nextop.sortedlist.SplaySortedList;
+import io.nextop.log.NL;
 import rx.Observable;
 import rx.Subscriber;
 import rx.functions.Action0;
 import rx.functions.Func1;
 import rx.subjects.BehaviorSubject;
+import rx.subjects.PublishSubject;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** Shared state for all {@link MessageControlChannel} objects.
  *
@@ -31,12 +35,14 @@ import java.util.concurrent.TimeUnit;
  * Thread safe. */
 // FIXME all MessageControl should go in here (not just send)
 public final class MessageControlState {
+    public static final int DEFAULT_MAX_PROGRESS_RATE = 30;
 
     private final MessageContext context;
 
-    private final Object mutex = new Object();
+    private final ReentrantLock lock = new ReentrantLock();
 
     private int headIndex = 0;
+    // written with the lock held. Read without the lock for entry-only properties
     private final Map<Id, Entry> entries;
     private final Set<Id> pending;
     /** these need to be attached to an entry on {@link #add} */
@@ -44,23 +50,52 @@ public final class MessageControlState {
 
     private final Map<Id, Group> groups;
 
-    private final SortedList<Group> groupsByPriority;
+    private final TreeSet<Group> groupsByPriority;
+    /** the groups in {@link #groupsByPriority} whose head is not owned, in the same order.
+     * A take only visits these, so owned heads do not slow it down */
+    private final TreeSet<Group> availableGroups;
+
+    /** owners with a pending {@link #wake} */
+    private final Set<MessageControlChannel> wakeOwners;
+
+    /** blocked takes, in the order they blocked. A change signals only the first;
+     * each passes the signal on while an entry is available (see {@link #passSignal}) */
+    private final List<Waiter> takeWaiters = new LinkedList<Waiter>();
+    /** blocked {@link #hasFirstAvailable} calls. These do not take, so a change signals all of them */
+    private final List<Waiter> availableWaiters = new LinkedList<Waiter>();
+
+
+    @Nullable
+    private volatile OutboxJournal journal = null;
 
 
     private final BehaviorSubject<MessageControlState> publish;
+    /** emitted with the lock held, so the order matches the order of the mutations */
+    private final PublishSubject<Change> changes;
+
+    /** entries with progress not yet published. Guarded by itself */
+    private final Set<Entry> progressChanged = new LinkedHashSet<Entry>(8);
+    private boolean progressFlushPending = false;
+    // on the clock of the context scheduler. Not set before the first flush
+    private long progressFlushNanos;
+    private boolean progressFlushed = false;
+    private long progressIntervalNanos = TimeUnit.SECONDS.toNanos(1) / DEFAULT_MAX_PROGRESS_RATE;
 
 
 
     public MessageControlState(MessageContext context) {
         this.context = context;
 
-        entries = new HashMap<Id, Entry>(32);
+        entries = new ConcurrentHashMap<Id, Entry>(32);
         groups = new HashMap<Id, Group>(8);
-        groupsByPriority = new SplaySortedList<Group>(COMPARATOR_GROUP_AVAILABLE);
+        groupsByPriority = new TreeSet<Group>(COMPARATOR_GROUP_AVAILABLE);
+        availableGroups = new TreeSet<Group>(COMPARATOR_GROUP_AVAILABLE);
         pending = new HashSet<Id>(4);
+        wakeOwners = new HashSet<MessageControlChannel>(4);
         pendingSubscribers = HashMultimap.create(4, 4);
 
         publish = BehaviorSubject.create(this);
+        changes = PublishSubject.create();
     }
 
 
@@ -100,19 +135,28 @@ public final class MessageControlState {
      *            If none available with greater priority, returns null. */
     @Nullable
     public Entry takeFirstAvailable(@Nullable Func1<Entry, Boolean> predicate, @Nullable Id minExclusive, MessageControlChannel owner) {
-        synchronized (mutex) {
-            for (Group group : groupsByPriority) {
-                if (!group.entries.isEmpty()) {
-                    Entry first = group.entries.get(0);
-                    if (null != minExclusive && minExclusive.equals(first.id)) {
-                        return null;
-                    } else if (null == first.owner && (null == predicate || predicate.call(first))) {
-                        take(first.id, owner);
-                        return first;
-                    }
-                }
+        lock.lock();
+        try {
+            @Nullable Entry first = firstAvailable(predicate, minExclusive);
+            if (null != first) {
+                take(first.id, owner);
             }
-            return null;
+            return first;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** non-blocking.
+     * @return the entry {@link #takeFirstAvailable(Func1, MessageControlChannel)} would take, without taking it. */
+    @Nullable
+    public Entry peekFirstAvailable(@Nullable Func1<Entry, Boolean> predicate) {
+        lock.lock();
+        try {
+            return firstAvailable(predicate, null);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -135,39 +179,133 @@ public final class MessageControlState {
         return takeFirstAvailable(predicate, null, owner, timeout, timeUnit);
     }
 
-    /** blocking */
+    /** blocking. Returns null on timeout or {@link #wake}. */
     @Nullable
     public Entry takeFirstAvailable(@Nullable Func1<Entry, Boolean> predicate, @Nullable Id minExclusive, MessageControlChannel owner,
                                     long timeout, TimeUnit timeUnit) throws InterruptedException {
-        final long nanosPerMillis = TimeUnit.MILLISECONDS.toNanos(1);
-        synchronized (mutex) {
+        lock.lock();
+        try {
             long timeoutNanos = timeUnit.toNanos(timeout);
-            Entry entry;
-            while (null == (entry = takeFirstAvailable(predicate, minExclusive, owner)) && 0 < timeoutNanos) {
-                long nanos = System.nanoTime();
-                mutex.wait(timeoutNanos / nanosPerMillis, (int) (timeoutNanos % nanosPerMillis));
-                timeoutNanos -= (System.nanoTime() - nanos);
+            @Nullable Waiter waiter = null;
+            try {
+                Entry entry;
+                while (null == (entry = takeFirstAvailable(predicate, minExclusive, owner))
+                        && !wakeOwners.contains(owner) && 0 < timeoutNanos) {
+                    if (null == waiter) {
+                        waiter = new Waiter(owner, lock.newCondition());
+                        takeWaiters.add(waiter);
+                    } else {
+                        passSignal(waiter);
+                    }
+                    timeoutNanos = waiter.condition.awaitNanos(timeoutNanos);
+                }
+                wakeOwners.remove(owner);
+                return entry;
+            } finally {
+                if (null != waiter) {
+                    passSignal(waiter);
+                    takeWaiters.remove(waiter);
+                }
             }
-            return entry;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /** Wakes a blocking take by {@code owner} without an interrupt, which can abort io on the owner's thread.
+     * If no take by the owner is blocked, the next one returns at once. */
+    public void wake(MessageControlChannel owner) {
+        lock.lock();
+        try {
+            wakeOwners.add(owner);
+            for (Waiter waiter : takeWaiters) {
+                if (owner == waiter.owner) {
+                    waiter.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
 
 
-    /** non-blocking */
+
+    /** Call with the lock held.
+     * Visits only the groups with an available head, in order, so this is O(log groups) with no predicate.
+     * @param minExclusive stop at the group of this entry, if it is the head of its group */
     @Nullable
-    public boolean hasFirstAvailable() {
-        synchronized (mutex) {
-            for (Group group : groupsByPriority) {
-                if (!group.entries.isEmpty()) {
-                    Entry first = group.entries.get(0);
-                    if (null == first.owner) {
-                        return true;
-                    }
+    private Entry firstAvailable(@Nullable Func1<Entry, Boolean> predicate, @Nullable Id minExclusive) {
+        @Nullable Group minGroup = null;
+        if (null != minExclusive) {
+            @Nullable Entry min = entries.get(minExclusive);
+            if (null != min && null != min.group && min == min.group.first()) {
+                minGroup = min.group;
+            }
+        }
+        for (Group group : availableGroups) {
+            if (null != minGroup && COMPARATOR_GROUP_AVAILABLE.compare(minGroup, group) <= 0) {
+                return null;
+            }
+            Entry first = group.first();
+            if (null == predicate || predicate.call(first)) {
+                return first;
+            }
+        }
+        return null;
+    }
+
+    /** call with the lock held, before a change to the group */
+    private void unindex(Group group) {
+        groupsByPriority.remove(group);
+        if (group.availableIndexed) {
+            availableGroups.remove(group);
+            group.availableIndexed = false;
+        }
+    }
+
+    /** call with the lock held, after a change to the group */
+    private void index(Group group) {
+        groupsByPriority.add(group);
+        if (group.owned.isEmpty() && !group.available.isEmpty()) {
+            availableGroups.add(group);
+            group.availableIndexed = true;
+        }
+    }
+
+    /** call with the lock held */
+    private void signalAvailable() {
+        for (Waiter waiter : availableWaiters) {
+            waiter.signal();
+        }
+        if (!takeWaiters.isEmpty()) {
+            takeWaiters.get(0).signal();
+        }
+    }
+
+    /** Call with the lock held, after a signaled take tried to take.
+     * Passes the signal to the next take if an entry is still available; it might be one this take can't take. */
+    private void passSignal(Waiter waiter) {
+        if (waiter.signaled) {
+            waiter.signaled = false;
+            if (hasFirstAvailable()) {
+                int i = takeWaiters.indexOf(waiter);
+                if (0 <= i && i + 1 < takeWaiters.size()) {
+                    takeWaiters.get(i + 1).signal();
                 }
             }
-            return false;
+        }
+    }
+
+
+    /** non-blocking */
+    @Nullable
+    public boolean hasFirstAvailable() {
+        lock.lock();
+        try {
+            return !availableGroups.isEmpty();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -178,49 +316,64 @@ public final class MessageControlState {
         if (null == min) {
             throw new IllegalArgumentException();
         }
-        synchronized (mutex) {
-            for (Group group : groupsByPriority) {
-                if (!group.entries.isEmpty()) {
-                    Entry first = group.entries.get(0);
-                    if (min.equals(first.id)) {
-                        return false;
-                    } else if (null == first.owner) {
-                        return true;
-                    }
-                }
-            }
-            return false;
+        lock.lock();
+        try {
+            return null != firstAvailable(null, min);
+        } finally {
+            lock.unlock();
         }
     }
 
 
     /** blocking */
     public boolean hasFirstAvailable(long timeout, TimeUnit timeUnit) throws InterruptedException {
-        final long nanosPerMillis = TimeUnit.MILLISECONDS.toNanos(1);
-        synchronized (mutex) {
+        lock.lock();
+        try {
             long timeoutNanos = timeUnit.toNanos(timeout);
-            boolean a;
-            while (!(a = hasFirstAvailable()) && 0 < timeoutNanos) {
-                long nanos = System.nanoTime();
-                mutex.wait(timeoutNanos / nanosPerMillis, (int) (timeoutNanos % nanosPerMillis));
-                timeoutNanos -= (System.nanoTime() - nanos);
+            @Nullable Waiter waiter = null;
+            try {
+                boolean a;
+                while (!(a = hasFirstAvailable()) && 0 < timeoutNanos) {
+                    if (null == waiter) {
+                        waiter = new Waiter(null, lock.newCondition());
+                        availableWaiters.add(waiter);
+                    }
+                    timeoutNanos = waiter.condition.awaitNanos(timeoutNanos);
+                }
+                return a;
+            } finally {
+                if (null != waiter) {
+                    availableWaiters.remove(waiter);
+                }
             }
-            return a;
+        } finally {
+            lock.unlock();
         }
     }
 
     /** blocking */
     public boolean hasFirstAvailable(Id min, long timeout, TimeUnit timeUnit) throws InterruptedException {
-        final long nanosPerMillis = TimeUnit.MILLISECONDS.toNanos(1);
-        synchronized (mutex) {
+        lock.lock();
+        try {
             long timeoutNanos = timeUnit.toNanos(timeout);
-            boolean a;
-            while (!(a = hasFirstAvailable(min)) && 0 < timeoutNanos) {
-                long nanos = System.nanoTime();
-                mutex.wait(timeoutNanos / nanosPerMillis, (int) (timeoutNanos % nanosPerMillis));
-                timeoutNanos -= (System.nanoTime() - nanos);
+            @Nullable Waiter waiter = null;
+            try {
+                boolean a;
+                while (!(a = hasFirstAvailable(min)) && 0 < timeoutNanos) {
+                    if (null == waiter) {
+                        waiter = new Waiter(null, lock.newCondition());
+                        availableWaiters.add(waiter);
+                    }
+                    timeoutNanos = waiter.condition.awaitNanos(timeoutNanos);
+                }
+                return a;
+            } finally {
+                if (null != waiter) {
+                    availableWaiters.remove(waiter);
+                }
             }
-            return a;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -230,7 +383,8 @@ public final class MessageControlState {
      * - no owner
      * - first in group */
     public boolean isAvailable(Id id) {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             @Nullable Entry entry = entries.get(id);
             if (null == entry) {
                 return false;
@@ -245,18 +399,16 @@ public final class MessageControlState {
             assert null != group;
 
             // first in group
-            if (group.entries.isEmpty()) {
-                return false;
-            }
-
-            Entry first = group.entries.get(0);
-            return id.equals(first.id);
+            return entry == group.first();
+        } finally {
+            lock.unlock();
         }
     }
 
 
     public void take(Id id, MessageControlChannel owner) {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             @Nullable Entry entry = entries.get(id);
 
             if (null == entry) {
@@ -269,19 +421,22 @@ public final class MessageControlState {
             Group group = entry.group;
             assert null != group;
 
-            groupsByPriority.remove(group);
+            @Nullable GroupChange change = beginChange(group);
+            unindex(group);
             try {
                 group.take(entry, owner);
             } finally {
-                groupsByPriority.insert(group);
+                index(group);
             }
-
-            mutex.notifyAll();
+            endChange(change, entry);
+        } finally {
+            lock.unlock();
         }
         publish();
     }
     public void release(Id id, MessageControlChannel owner) {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             @Nullable Entry entry = entries.get(id);
 
             if (null == entry) {
@@ -294,14 +449,18 @@ public final class MessageControlState {
             Group group = entry.group;
             assert null != group;
 
-            groupsByPriority.remove(group);
+            @Nullable GroupChange change = beginChange(group);
+            unindex(group);
             try {
                 group.release(entry, owner);
             } finally {
-                groupsByPriority.insert(group);
+                index(group);
             }
+            endChange(change, entry);
 
-            mutex.notifyAll();
+            signalAvailable();
+        } finally {
+            lock.unlock();
         }
         publish();
     }
@@ -312,17 +471,28 @@ public final class MessageControlState {
      * for bad IDs (could be for a number of reasons).
      * @see #getObservable(io.nextop.Id, long, java.util.concurrent.TimeUnit) */
     public void notifyPending(Id id) {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             pending.add(id);
+        } finally {
+            lock.unlock();
         }
     }
 
     public boolean add(MessageControl mc) {
+        @Nullable OutboxJournal journal = this.journal;
+        // encode outside the lock
+        return add(mc, null != journal ? OutboxJournal.encode(mc) : null);
+    }
+
+    /** @param encoded null to not journal the add */
+    private boolean add(MessageControl mc, @Nullable byte[] encoded) {
         // see notes at top - only SEND.MESSAGE message control
 
         Entry entry;
         Collection<Subscriber<? super Entry>> subscribers;
-        synchronized (mutex) {
+        lock.lock();
+        try {
             // check already added
             if (entries.containsKey(mc.message.id)) {
                 return false;
@@ -338,15 +508,22 @@ public final class MessageControlState {
                 Id groupId = entry.groupId;
                 group = new Group(groupId);
                 groups.put(groupId, group);
-                // don't remove from groupsByPriority because not present
-            } else {
-                groupsByPriority.remove(group);
             }
 
+            @Nullable GroupChange change = beginChange(group);
+            unindex(group);
             group.add(entry);
-            groupsByPriority.insert(group);
+            index(group);
+            endChange(change, null);
+
+            // after the entry is indexed, so a journal failure leaves a consistent state
+            if (null != encoded && null != journal) {
+                journal.add(entry.id, encoded);
+            }
 
-            mutex.notifyAll();
+            signalAvailable();
+        } finally {
+            lock.unlock();
         }
         // add the subscribers (which publishes to them)
         for (Subscriber subscriber : subscribers) {
@@ -360,12 +537,16 @@ public final class MessageControlState {
     @Nullable
     public MessageControl remove(Id id, End end) {
         Entry entry;
-        synchronized (mutex) {
+        lock.lock();
+        try {
             entry = entries.remove(id);
 
             if (null == entry) {
                 return null;
             }
+            if (null != journal) {
+                journal.remove(id);
+            }
 
 
             assert null == entry.end;
@@ -373,15 +554,19 @@ public final class MessageControlState {
             Group group = entry.group;
             assert null != group;
 
-            groupsByPriority.remove(group);
+            @Nullable GroupChange change = beginChange(group);
+            unindex(group);
             group.remove(entry);
-            if (!group.entries.isEmpty()) {
-                groupsByPriority.insert(group);
+            if (!group.isEmpty()) {
+                index(group);
             }
 
             entry.end = end;
+            endChange(change, null);
 
-            mutex.notifyAll();
+            signalAvailable();
+        } finally {
+            lock.unlock();
         }
         entry.publish();
         entry.publishComplete();
@@ -391,7 +576,8 @@ public final class MessageControlState {
 
     public boolean yield(Id id) {
         Entry entry;
-        synchronized (mutex) {
+        lock.lock();
+        try {
             entry = entries.get(id);
 
             if (null == entry) {
@@ -402,11 +588,15 @@ public final class MessageControlState {
             Group group = entry.group;
             assert null != group;
 
-            groupsByPriority.remove(group);
+            @Nullable GroupChange change = beginChange(group);
+            unindex(group);
             group.yield(entry);
-            groupsByPriority.insert(group);
+            index(group);
+            endChange(change, null);
 
-            mutex.notifyAll();
+            signalAvailable();
+        } finally {
+            lock.unlock();
         }
         entry.publish();
         publish();
@@ -416,47 +606,131 @@ public final class MessageControlState {
 
 
 
+    /** Thread-safe. The entry holds the latest value; publishes are coalesced (see {@link #setMaxProgressRate}). */
     public boolean setInboxTransferProgress(Id id, TransferProgress transferProgress) {
-        Entry entry;
-        synchronized (mutex) {
-            entry = entries.get(id);
-
-            if (null == entry) {
-                return false;
-            }
-
-            if (null != entry.end) {
-                return false;
-            }
-
-            entry.inboxTransferProgress = transferProgress;
+        // progress does not change the order, so it skips the lock
+        @Nullable Entry entry = entries.get(id);
+        if (null == entry || null != entry.end) {
+            return false;
         }
-        entry.publish();
-        publish();
+        entry.inboxTransferProgress = transferProgress;
+        progressChanged(entry);
         return true;
     }
 
+    /** Thread-safe. The entry holds the latest value; publishes are coalesced (see {@link #setMaxProgressRate}). */
     public boolean setOutboxTransferProgress(Id id, TransferProgress transferProgress) {
-        Entry entry;
-        synchronized (mutex) {
-            entry = entries.get(id);
+        // progress does not change the order, so it skips the lock
+        @Nullable Entry entry = entries.get(id);
+        if (null == entry || null != entry.end) {
+            return false;
+        }
+        entry.outboxTransferProgress = transferProgress;
+        progressChanged(entry);
+        return true;
+    }
 
-            if (null == entry) {
-                return false;
+    /** Progress changes are published at most this many times per second, on the context.
+     * Each publish carries the latest progress of every entry that changed since the last. */
+    public void setMaxProgressRate(int maxProgressRate) {
+        if (maxProgressRate <= 0) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (progressChanged) {
+            progressIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxProgressRate;
+        }
+    }
+
+    // the delays are posted to the context, so the interval is timed on its clock
+    private long nowNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(context.getScheduler().now());
+    }
+
+    private void progressChanged(Entry entry) {
+        int delayMs;
+        synchronized (progressChanged) {
+            if (!progressChanged.add(entry) || progressFlushPending) {
+                return;
             }
+            progressFlushPending = true;
+            if (progressFlushed) {
+                // bounded, in case the clock is set back
+                long waitNanos = Math.min(progressFlushNanos + progressIntervalNanos - nowNanos(), progressIntervalNanos);
+                delayMs = 0 < waitNanos ? (int) TimeUnit.NANOSECONDS.toMillis(waitNanos) : 0;
+            } else {
+                delayMs = 0;
+            }
+        }
+        if (0 < delayMs) {
+            context.postDelayed(flushProgress, delayMs);
+        } else {
+            context.post(flushProgress);
+        }
+    }
 
-            if (null != entry.end) {
-                return false;
+    private final Runnable flushProgress = new Runnable() {
+        @Override
+        public void run() {
+            Entry[] changed;
+            synchronized (progressChanged) {
+                changed = progressChanged.toArray(new Entry[progressChanged.size()]);
+                progressChanged.clear();
+                progressFlushPending = false;
+                progressFlushNanos = nowNanos();
+                progressFlushed = true;
+            }
+            for (Entry entry : changed) {
+                // an ended entry published its final state
+                if (null == entry.end) {
+                    entry.publish();
+                }
+            }
+            if (changes.hasObservers()) {
+                lock.lock();
+                try {
+                    for (Entry entry : changed) {
+                        if (null != entry.group) {
+                            change(Change.Type.UPDATED, entry, startIndex(entry.group) + entry.group.indexOf(entry), -1);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
             }
+            publish();
+        }
+    };
+
+
 
-            entry.outboxTransferProgress = transferProgress;
+    /////// JOURNAL ///////
 
-            // FIXME remove
-//            System.out.printf("  outbox transfer progress %s\n", transferProgress);
+    /** Journals the adds and removes, so the queued sends survive a process kill or a reboot.
+     * Set before the first add, then {@link #restore}. */
+    public void setJournal(@Nullable OutboxJournal journal) {
+        this.journal = journal;
+    }
+
+    @Nullable
+    public OutboxJournal getJournal() {
+        return journal;
+    }
+
+    /** Adds the sends in the journal, in their original order. Call once, before the state is used.
+     * This reads and rewrites the file; call it off the main thread. */
+    public void restore() {
+        @Nullable OutboxJournal journal = this.journal;
+        if (null == journal) {
+            return;
         }
-        entry.publish();
-        publish();
-        return true;
+        long startNanos = System.nanoTime();
+        List<MessageControl> mcs = journal.restore();
+        for (MessageControl mc : mcs) {
+            // already in the journal
+            add(mc, null);
+        }
+        NL.nl.metric("client.journal.restore", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        NL.nl.metric("client.journal.restore.sends", mcs.size(), "messages");
     }
 
 
@@ -466,16 +740,155 @@ public final class MessageControlState {
 
     // triggers when groups or indexes change
     // does not trigger when entry-only properties change (e.g. progress, active, etc)
+    // an observer that mirrors the order should use #getChangeObservable, which does not re-read the state
     public Observable<MessageControlState> getObservable() {
         return publish;
     }
 
+    /** On subscribe, a {@link Change.Type#SNAPSHOT} of the order, then each change to it in sequence
+     * (see {@link Change#apply}). The changes are delivered with the state locked,
+     * so observers should hand off any work, e.g. with {@code observeOn}. */
+    public Observable<Change> getChangeObservable() {
+        return Observable.create(new Observable.OnSubscribe<Change>() {
+            @Override
+            public void call(Subscriber<? super Change> subscriber) {
+                lock.lock();
+                try {
+                    List<Entry> snapshot = new ArrayList<Entry>(entries.size());
+                    for (Group g : groupsByPriority) {
+                        snapshot.addAll(g.toList());
+                    }
+                    subscriber.onNext(new Change(Change.Type.SNAPSHOT, Collections.unmodifiableList(snapshot), null, -1, -1));
+                    changes.subscribe(subscriber);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
 
     private void publish() {
         publish.onNext(this);
     }
 
 
+    // a mutation changes one group. The changes to the order are the removals at the old position,
+    // the move of the group among the other groups, the reorder within the group, then the additions
+
+    /** call before the group changes, with the lock held
+     * @return null if there are no change observers */
+    @Nullable
+    private GroupChange beginChange(Group group) {
+        if (!changes.hasObservers()) {
+            return null;
+        }
+        return new GroupChange(group, startIndex(group), group.toList());
+    }
+
+    /** call after the group changes, with the lock held
+     * @param updated an entry whose properties changed */
+    private void endChange(@Nullable GroupChange change, @Nullable Entry updated) {
+        if (null == change) {
+            return;
+        }
+        List<Entry> after = change.group.toList();
+        Set<Entry> afterSet = new HashSet<Entry>(after);
+
+        List<Entry> current = new ArrayList<Entry>(change.entries);
+        int startIndex = change.startIndex;
+        for (int i = current.size() - 1; 0 <= i; --i) {
+            Entry entry = current.get(i);
+            if (!afterSet.contains(entry)) {
+                current.remove(i);
+                change(Change.Type.REMOVED, entry, startIndex + i, -1);
+            }
+        }
+
+        int n = current.size();
+        int toStartIndex = startIndex(change.group);
+        if (startIndex < toStartIndex) {
+            for (int i = 0; i < n; ++i) {
+                change(Change.Type.MOVED, current.get(i), startIndex, toStartIndex + n - 1);
+            }
+        } else if (toStartIndex < startIndex) {
+            for (int i = n - 1; 0 <= i; --i) {
+                change(Change.Type.MOVED, current.get(i), startIndex + n - 1, toStartIndex);
+            }
+        }
+
+        Set<Entry> currentSet = new HashSet<Entry>(current);
+        List<Entry> kept = new ArrayList<Entry>(n);
+        for (Entry entry : after) {
+            if (currentSet.contains(entry)) {
+                kept.add(entry);
+            }
+        }
+        reorder(current, kept, toStartIndex);
+
+        Set<Entry> beforeSet = new HashSet<Entry>(change.entries);
+        for (int i = 0, m = after.size(); i < m; ++i) {
+            Entry entry = after.get(i);
+            if (!beforeSet.contains(entry)) {
+                change(Change.Type.ADDED, entry, toStartIndex + i, -1);
+            }
+        }
+
+        if (null != updated && afterSet.contains(updated)) {
+            change(Change.Type.UPDATED, updated, toStartIndex + after.indexOf(updated), -1);
+        }
+    }
+
+    /** moves the entries of {@code current} into the order of {@code kept}, which has the same entries */
+    private void reorder(List<Entry> current, List<Entry> kept, int startIndex) {
+        int n = current.size();
+        int i = 0;
+        while (i < n && current.get(i) == kept.get(i)) {
+            i += 1;
+        }
+        if (n == i) {
+            return;
+        }
+        int j = n - 1;
+        while (current.get(j) == kept.get(j)) {
+            j -= 1;
+        }
+
+        // a take, release or yield moves one entry
+        if (current.get(i) == kept.get(j) && current.subList(i + 1, j + 1).equals(kept.subList(i, j))) {
+            change(Change.Type.MOVED, current.get(i), startIndex + i, startIndex + j);
+        } else if (current.get(j) == kept.get(i) && current.subList(i, j).equals(kept.subList(i + 1, j + 1))) {
+            change(Change.Type.MOVED, current.get(j), startIndex + j, startIndex + i);
+        } else {
+            for (int k = i; k <= j; ++k) {
+                Entry entry = kept.get(k);
+                int index = current.indexOf(entry);
+                if (k != index) {
+                    current.remove(index);
+                    current.add(k, entry);
+                    change(Change.Type.MOVED, entry, startIndex + index, startIndex + k);
+                }
+            }
+        }
+    }
+
+    private void change(Change.Type type, Entry entry, int index, int toIndex) {
+        changes.onNext(new Change(type, Collections.<Entry>emptyList(), entry, index, toIndex));
+    }
+
+    /** the index of the first entry of the group, or the size if the group is not indexed */
+    private int startIndex(Group group) {
+        int c = 0;
+        for (Group g : groupsByPriority) {
+            if (group == g) {
+                break;
+            }
+            c += g.size();
+        }
+        return c;
+    }
+
+
 
     public Observable<Entry> getObservable(final Id id) {
         return getObservable(id, 0, TimeUnit.MILLISECONDS);
@@ -487,7 +900,8 @@ public final class MessageControlState {
             @Override
             public void call(final Subscriber<? super Entry> subscriber) {
                 @Nullable Entry entry;
-                synchronized (mutex) {
+                lock.lock();
+                try {
                     entry = entries.get(id);
                     if (null == entry) {
                         if (0 < timeout && /* see #notifyPending */ pending.contains(id)) {
@@ -498,12 +912,15 @@ public final class MessageControlState {
                             subscriber.add(context.getScheduler().createWorker().schedule(new Action0() {
                                 @Override
                                 public void call() {
-                                    synchronized (mutex) {
+                                    lock.lock();
+                                    try {
                                         if (pendingSubscribers.containsEntry(id, subscriber)) {
                                             pendingSubscribers.remove(id, subscriber);
                                             subscriber.onCompleted();
                                             subscriber.unsubscribe();
                                         }
+                                    } finally {
+                                        lock.unlock();
                                     }
                                 }
                             }, timeout, timeUnit));
@@ -512,6 +929,8 @@ public final class MessageControlState {
                             subscriber.unsubscribe();
                         }
                     }
+                } finally {
+                    lock.unlock();
                 }
                 if (null != entry) {
                     entry.publish.subscribe(subscriber);
@@ -523,17 +942,21 @@ public final class MessageControlState {
 
 
     public int size() {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             int c = 0;
             for (Group g : groupsByPriority) {
-                c += g.entries.size();
+                c += g.size();
             }
             return c;
+        } finally {
+            lock.unlock();
         }
     }
 
     public int indexOf(Id id) {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             @Nullable Entry entry = entries.get(id);
             if (null == entry) {
                 return -1;
@@ -549,53 +972,64 @@ public final class MessageControlState {
                 if (group == g) {
                     break;
                 }
-                c += g.entries.size();
+                c += g.size();
             }
 
-            return c + group.entries.indexOf(entry);
+            return c + group.indexOf(entry);
+        } finally {
+            lock.unlock();
         }
     }
 
     public Entry get(int index) {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             if (index < 0) {
                 throw new IndexOutOfBoundsException();
             }
             int c = index;
             for (Group g : groupsByPriority) {
-                int n = g.entries.size();
+                int n = g.size();
                 if (c < n) {
-                    return g.entries.get(c);
+                    return g.get(c);
                 }
                 c -= n;
             }
             throw new IndexOutOfBoundsException();
+        } finally {
+            lock.unlock();
         }
     }
 
     public List<GroupSnapshot> getGroups() {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             final List<GroupSnapshot> groupSnapshots = new ArrayList<GroupSnapshot>(groupsByPriority.size());
             for (Group g : groupsByPriority) {
-                groupSnapshots.add(new GroupSnapshot(g.groupId, ImmutableList.copyOf(g.entries)));
+                groupSnapshots.add(new GroupSnapshot(g.groupId, g.toList()));
             }
             return Collections.unmodifiableList(groupSnapshots);
+        } finally {
+            lock.unlock();
         }
     }
 
     public Entry get(Id groupId, int index) {
-        synchronized (mutex) {
+        lock.lock();
+        try {
             @Nullable Group group = groups.get(groupId);
             if (null == group) {
                 throw new IndexOutOfBoundsException();
             }
 
-            int n = group.entries.size();
+            int n = group.size();
             if (index < 0 || n <= index) {
                 throw new IndexOutOfBoundsException();
             }
 
-            return group.entries.get(index);
+            return group.get(index);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -638,10 +1072,7 @@ public final class MessageControlState {
 
     @Nullable
     private MessageControl createRedirect(Id id, Route newRoute) {
-        @Nullable Entry entry;
-        synchronized (mutex) {
-            entry = entries.get(id);
-        }
+        @Nullable Entry entry = entries.get(id);
         if (null == entry) {
             return null;
         }
@@ -806,20 +1237,174 @@ public final class MessageControlState {
 
 
 
+    /** @see #getChangeObservable */
+    public static final class Change {
+        public static enum Type {
+            /** the entries are the order. The changes that follow apply to it */
+            SNAPSHOT,
+            /** the entry is inserted at the index */
+            ADDED,
+            /** the entry at the index is removed */
+            REMOVED,
+            /** the entry at the index is removed then inserted at the to index */
+            MOVED,
+            /** the owner or progress of the entry at the index changed */
+            UPDATED
+        }
+
+        public final Type type;
+        /** {@link Type#SNAPSHOT} only */
+        public final List<Entry> entries;
+        @Nullable
+        public final Entry entry;
+        public final int index;
+        /** {@link Type#MOVED} only */
+        public final int toIndex;
+
+        Change(Type type, List<Entry> entries, @Nullable Entry entry, int index, int toIndex) {
+            this.type = type;
+            this.entries = entries;
+            this.entry = entry;
+            this.index = index;
+            this.toIndex = toIndex;
+        }
+
+
+        public void apply(List<Entry> order) {
+            switch (type) {
+                case SNAPSHOT:
+                    order.clear();
+                    order.addAll(entries);
+                    break;
+                case ADDED:
+                    order.add(index, entry);
+                    break;
+                case REMOVED:
+                    order.remove(index);
+                    break;
+                case MOVED:
+                    order.add(toIndex, order.remove(index));
+                    break;
+                case UPDATED:
+                    order.set(index, entry);
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case SNAPSHOT:
+                    return String.format("%s %d", type, entries.size());
+                case MOVED:
+                    return String.format("%s %s %d %d", type, entry.id, index, toIndex);
+                default:
+                    return String.format("%s %s %d", type, entry.id, index);
+            }
+        }
+    }
+
+
+
     // internal
 
+    private static final class GroupChange {
+        final Group group;
+        final int startIndex;
+        final List<Entry> entries;
+
+        GroupChange(Group group, int startIndex, List<Entry> entries) {
+            this.group = group;
+            this.startIndex = startIndex;
+            this.entries = entries;
+        }
+    }
+
+    private static final class Waiter {
+        @Nullable
+        final MessageControlChannel owner;
+        final Condition condition;
+        boolean signaled = false;
+
+        Waiter(@Nullable MessageControlChannel owner, Condition condition) {
+            this.owner = owner;
+            this.condition = condition;
+        }
+
+        void signal() {
+            signaled = true;
+            condition.signal();
+        }
+    }
+
     private final class Group {
         final Id groupId;
 
-        final PriorityQueue<Entry> entriesByPriority;
-        final SortedList<Entry> entries;
+        // group priority -> count of entries, for the max in O(log)
+        final TreeMap<Integer, Integer> priorityCounts;
+        // the entries of the group are the owned entries then the available entries, each by index.
+        // a take or release moves an entry between the two
+        final TreeSet<Entry> owned;
+        final TreeSet<Entry> available;
+
+        // in availableGroups
+        boolean availableIndexed = false;
 
 
         Group(Id groupId) {
             this.groupId = groupId;
 
-            entriesByPriority = new PriorityQueue<Entry>(8, COMPARATOR_ENTRY_DESCENDING_PRIORITY);
-            entries = new SplaySortedList<Entry>(COMPARATOR_ENTRY_AVAILABLE);
+            priorityCounts = new TreeMap<Integer, Integer>();
+            owned = new TreeSet<Entry>(COMPARATOR_ENTRY_INDEX);
+            available = new TreeSet<Entry>(COMPARATOR_ENTRY_INDEX);
+        }
+
+
+        boolean isEmpty() {
+            return owned.isEmpty() && available.isEmpty();
+        }
+
+        /** not empty */
+        int maxPriority() {
+            return priorityCounts.lastKey();
+        }
+
+        int size() {
+            return owned.size() + available.size();
+        }
+
+        /** the head of the group. The group is locked if the head is owned */
+        Entry first() {
+            return owned.isEmpty() ? available.first() : owned.first();
+        }
+
+        // introspection is linear in the group
+        Entry get(int index) {
+            int i = 0;
+            for (Entry entry : Iterables.concat(owned, available)) {
+                if (index == i) {
+                    return entry;
+                }
+                i += 1;
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        int indexOf(Entry entry) {
+            int i = 0;
+            for (Entry e : Iterables.concat(owned, available)) {
+                if (entry == e) {
+                    return i;
+                }
+                i += 1;
+            }
+            return -1;
+        }
+
+        List<Entry> toList() {
+            return ImmutableList.<Entry>builder().addAll(owned).addAll(available).build();
         }
 
 
@@ -829,16 +1414,22 @@ public final class MessageControlState {
             }
 
             entry.group = this;
-            entriesByPriority.add(entry);
-            entries.insert(entry);
+            @Nullable Integer count = priorityCounts.get(entry.groupPriority);
+            priorityCounts.put(entry.groupPriority, null != count ? count + 1 : 1);
+            entriesOf(entry).add(entry);
         }
         void remove(Entry entry) {
             if (this != entry.group) {
                 throw new IllegalArgumentException();
             }
 
-            entries.remove(entry);
-            entriesByPriority.remove(entry);
+            entriesOf(entry).remove(entry);
+            int count = priorityCounts.get(entry.groupPriority);
+            if (1 < count) {
+                priorityCounts.put(entry.groupPriority, count - 1);
+            } else {
+                priorityCounts.remove(entry.groupPriority);
+            }
             entry.group = null;
         }
 
@@ -847,11 +1438,10 @@ public final class MessageControlState {
                 throw new IllegalArgumentException();
             }
 
+            TreeSet<Entry> entries = entriesOf(entry);
             entries.remove(entry);
-            entriesByPriority.remove(entry);
             entry.index = headIndex++;
-            entriesByPriority.add(entry);
-            entries.insert(entry);
+            entries.add(entry);
         }
 
         void take(Entry entry, MessageControlChannel owner) {
@@ -861,12 +1451,9 @@ public final class MessageControlState {
             // this should be strictly enforced by the caller
             assert null == entry.owner;
 
-            entries.remove(entry);
-            try {
-                entry.owner = owner;
-            } finally {
-                entries.insert(entry);
-            }
+            available.remove(entry);
+            entry.owner = owner;
+            owned.add(entry);
         }
         void release(Entry entry, MessageControlChannel owner) {
             if (this != entry.group) {
@@ -875,12 +1462,13 @@ public final class MessageControlState {
             // this should be strictly enforced by the caller
             assert owner == entry.owner;
 
-            entries.remove(entry);
-            try {
-                entry.owner = null;
-            } finally {
-                entries.insert(entry);
-            }
+            owned.remove(entry);
+            entry.owner = null;
+            available.add(entry);
+        }
+
+        private TreeSet<Entry> entriesOf(Entry entry) {
+            return null != entry.owner ? owned : available;
         }
     }
 
@@ -897,8 +1485,8 @@ public final class MessageControlState {
                 return 0;
             }
 
-            boolean aEmpty = a.entries.isEmpty();
-            boolean bEmpty = b.entries.isEmpty();
+            boolean aEmpty = a.isEmpty();
+            boolean bEmpty = b.isEmpty();
 
             if (aEmpty && bEmpty) {
                 // stable
@@ -909,8 +1497,8 @@ public final class MessageControlState {
                 return -1;
             }
 
-            int aMaxGroupPriority = a.entriesByPriority.peek().groupPriority;
-            int bMaxGroupPriority = b.entriesByPriority.peek().groupPriority;
+            int aMaxGroupPriority = a.maxPriority();
+            int bMaxGroupPriority = b.maxPriority();
 
             if (aMaxGroupPriority < bMaxGroupPriority) {
                 return 1;
@@ -918,8 +1506,8 @@ public final class MessageControlState {
                 return -1;
             }
 
-            int aIndex = a.entries.get(0).index;
-            int bIndex = b.entries.get(0).index;
+            int aIndex = a.first().index;
+            int bIndex = b.first().index;
 
             if (aIndex < bIndex) {
                 return -1;
@@ -932,27 +1520,13 @@ public final class MessageControlState {
         }
     };
 
-    private static final Comparator<Entry> COMPARATOR_ENTRY_AVAILABLE = new Comparator<Entry>() {
+    private static final Comparator<Entry> COMPARATOR_ENTRY_INDEX = new Comparator<Entry>() {
         @Override
         public int compare(Entry a, Entry b) {
-            // compare by owner (owned at front)
-            // compare by index
-
             if (a == b) {
                 return 0;
             }
 
-            boolean aOwned = null != a.owner;
-            boolean bOwned = null != b.owner;
-
-            if (aOwned != bOwned) {
-                if (aOwned) {
-                    return -1;
-                } else {
-                    return 1;
-                }
-            }
-
             int aIndex = a.index;
             int bIndex = b.index;
             if (aIndex < bIndex) {
@@ -966,18 +1540,6 @@ public final class MessageControlState {
         }
     };
 
-    private static final Comparator<Entry> COMPARATOR_ENTRY_DESCENDING_PRIORITY = new Comparator<Entry>() {
-        @Override
-        public int compare(Entry a, Entry b) {
-            if (a.groupPriority < b.groupPriority) {
-                return 1;
-            } else if (b.groupPriority < a.groupPriority) {
-                return -1;
-            } else {
-                return 0;
-            }
-        }
-    };
 
 
 
@@ -0,0 +1,502 @@
+package io.nextop.client;
+
+import io.nextop.Id;
+import io.nextop.WireValue;
+import io.nextop.log.NL;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/** A memory-mapped, append-only file of the queued sends of a {@link MessageControlState},
+ * so that they survive a process kill or a reboot (see {@link MessageControlState#setJournal}).
+ *
+ * file := [MAGIC][VERSION] [record]* [0]*
+ * record := [length][type][payload][crc32 of length, type and payload]
+ * A record with a zero length or a bad crc ends the file (the unwritten end of the map, or a write torn by the kill).
+ *
+ * An append is a copy into the map, which the OS keeps across a process kill.
+ * The map is forced to the disk in batches, at most every commit interval, so a send does not wait on the disk;
+ * a reboot loses at most the sends of the last interval. The file is rewritten with just the live records
+ * on restore, and when it grows past twice the live size. That compaction writes the new file off the monitor,
+ * so adds and removes do not wait on it. */
+public final class OutboxJournal {
+    static final int MAGIC = 0x4e584f31;
+    static final byte VERSION = 1;
+
+    /** [message control wire value] */
+    static final byte R_ADD = 0x01;
+    /** [id] */
+    static final byte R_REMOVE = 0x02;
+
+    public static final int DEFAULT_COMMIT_INTERVAL_MS = 200;
+
+    static final int HEADER_BYTES = 5;
+    // the map grows by doubling from this
+    static final int MIN_MAP_BYTES = 64 * 1024;
+    // don't compact below this size
+    static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+
+    final File file;
+    final int commitIntervalMs;
+
+    @Nullable
+    private Mapped out = null;
+
+    // offset of the add record of each live send, in add order
+    private final Map<Id, Integer> liveOffsets = new LinkedHashMap<Id, Integer>(32);
+    private long liveBytes = 0L;
+
+    // appended since the last commit
+    private boolean dirty = false;
+    private boolean commitPending = false;
+    @Nullable
+    private ScheduledExecutorService commitExecutor = null;
+    // a compaction is writing the new file off the monitor
+    private boolean compacting = false;
+
+    // set on the first io error. The journal closes and the state continues in memory
+    private boolean failed = false;
+
+
+    public OutboxJournal(File file) {
+        this(file, DEFAULT_COMMIT_INTERVAL_MS);
+    }
+
+    public OutboxJournal(File file, int commitIntervalMs) {
+        if (commitIntervalMs < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.file = file;
+        this.commitIntervalMs = commitIntervalMs;
+    }
+
+
+    static byte[] encode(MessageControl mc) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        try {
+            MessageControl.toWireValue(mc).toBytes(baos, null);
+        } catch (IOException e) {
+            // a byte array does not throw
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+
+    /** Reads the sends in the journal, in add order, then rewrites it with just those.
+     * Nothing is written to the journal before this. */
+    synchronized List<MessageControl> restore() {
+        if (failed) {
+            return Collections.emptyList();
+        }
+        Map<Id, byte[]> records = new LinkedHashMap<Id, byte[]>(32);
+        try {
+            if (file.exists()) {
+                read(records);
+            }
+            Map<Id, Integer> offsets = new LinkedHashMap<Id, Integer>(records.size());
+            replace(write(tmpFile(), records, offsets), offsets);
+        } catch (IOException e) {
+            fail(e);
+            return Collections.emptyList();
+        }
+
+        List<MessageControl> mcs = new ArrayList<MessageControl>(records.size());
+        for (byte[] record : records.values()) {
+            try {
+                mcs.add(MessageControl.fromWireValue(WireValue.valueOf(record)));
+            } catch (RuntimeException e) {
+                // a record from an incompatible version; skip it
+                NL.nl.handled("client.journal", e);
+            }
+        }
+        return mcs;
+    }
+
+    synchronized void add(Id id, byte[] encoded) {
+        if (null == out || liveOffsets.containsKey(id)) {
+            return;
+        }
+        try {
+            int offset = out.length;
+            append(R_ADD, encoded, 0, encoded.length);
+            liveOffsets.put(id, offset);
+            liveBytes += out.length - offset;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void remove(Id id) {
+        @Nullable Integer offset = liveOffsets.remove(id);
+        if (null == out || null == offset) {
+            return;
+        }
+        try {
+            liveBytes -= out.recordBytes(offset);
+            byte[] bytes = new byte[Id.LENGTH];
+            Id.toBytes(id, bytes, 0);
+            append(R_REMOVE, bytes, 0, bytes.length);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Forces the appends to the disk now. */
+    public void commit() {
+        MappedByteBuffer m;
+        synchronized (this) {
+            commitPending = false;
+            if (null == out || !dirty) {
+                return;
+            }
+            dirty = false;
+            m = out.map;
+        }
+        // appends continue into the map during the force; they go in the next commit
+        long startNanos = System.nanoTime();
+        m.force();
+        NL.nl.metric("client.journal.commit", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+
+        compact();
+    }
+
+    public synchronized void close() {
+        if (null != commitExecutor) {
+            commitExecutor.shutdown();
+            commitExecutor = null;
+        }
+        if (null != out) {
+            out.close(true);
+            out = null;
+        }
+    }
+
+
+    private void fail(IOException e) {
+        NL.nl.handled("client.journal", e);
+        failed = true;
+        close();
+    }
+
+    private File tmpFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /** the payload of the add record at the offset */
+    private byte[] addPayload(int offset) {
+        byte[] record = new byte[out.map.getInt(offset) - 1];
+        ByteBuffer view = out.map.duplicate();
+        view.position(offset + 4 + 1);
+        view.get(record);
+        return record;
+    }
+
+
+    /////// WRITE ///////
+
+    /** rewrites the file with just the live records when it is mostly removes.
+     * The new file is written and forced off the monitor, so adds and removes (which hold the lock of the state)
+     * do not wait on the disk. They continue into the current file, and are carried over at the swap. */
+    private void compact() {
+        Map<Id, byte[]> records;
+        synchronized (this) {
+            if (null == out || compacting || out.length < MIN_COMPACT_BYTES || out.length < 2 * liveBytes) {
+                return;
+            }
+            compacting = true;
+            records = new LinkedHashMap<Id, byte[]>(liveOffsets.size());
+            for (Map.Entry<Id, Integer> e : liveOffsets.entrySet()) {
+                records.put(e.getKey(), addPayload(e.getValue()));
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        Map<Id, Integer> offsets = new LinkedHashMap<Id, Integer>(records.size());
+        Mapped compacted;
+        try {
+            compacted = write(tmpFile(), records, offsets);
+        } catch (IOException e) {
+            synchronized (this) {
+                compacting = false;
+                fail(e);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            compacting = false;
+            if (null == out) {
+                // closed during the write
+                compacted.close(false);
+                return;
+            }
+            try {
+                // the removes and adds since the snapshot. Few, since the write is short
+                boolean carried = false;
+                for (Iterator<Id> itr = offsets.keySet().iterator(); itr.hasNext(); ) {
+                    Id id = itr.next();
+                    if (!liveOffsets.containsKey(id)) {
+                        itr.remove();
+                        byte[] bytes = new byte[Id.LENGTH];
+                        Id.toBytes(id, bytes, 0);
+                        compacted.append(R_REMOVE, bytes, 0, bytes.length);
+                        carried = true;
+                    }
+                }
+                for (Map.Entry<Id, Integer> e : liveOffsets.entrySet()) {
+                    if (!offsets.containsKey(e.getKey())) {
+                        byte[] record = addPayload(e.getValue());
+                        offsets.put(e.getKey(), compacted.length);
+                        compacted.append(R_ADD, record, 0, record.length);
+                        carried = true;
+                    }
+                }
+                replace(compacted, offsets);
+                if (carried) {
+                    markDirty();
+                }
+            } catch (IOException e) {
+                compacted.close(false);
+                fail(e);
+                return;
+            }
+        }
+        NL.nl.metric("client.journal.compact", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** a new file of add records, forced to the disk
+     * @param offsets filled with the offset of each record */
+    private static Mapped write(File f, Map<Id, byte[]> records, Map<Id, Integer> offsets) throws IOException {
+        long bytes = HEADER_BYTES;
+        for (byte[] record : records.values()) {
+            bytes += 4 + 1 + record.length + 4;
+        }
+
+        if (f.exists() && !f.delete()) {
+            throw new IOException(String.format("Could not delete %s", f));
+        }
+        Mapped m = new Mapped(f, capacity(bytes));
+        try {
+            m.map.putInt(0, MAGIC);
+            m.map.put(4, VERSION);
+            m.length = HEADER_BYTES;
+            for (Map.Entry<Id, byte[]> e : records.entrySet()) {
+                byte[] record = e.getValue();
+                offsets.put(e.getKey(), m.length);
+                m.append(R_ADD, record, 0, record.length);
+            }
+            // durable before it replaces the file
+            m.map.force();
+        } catch (IOException e) {
+            m.close(false);
+            throw e;
+        }
+        return m;
+    }
+
+    /** moves the written file over the journal and appends to it from here */
+    private void replace(Mapped m, Map<Id, Integer> offsets) throws IOException {
+        if (null != out) {
+            // the records are in the new file
+            out.close(false);
+            out = null;
+        }
+        File tmp = m.file;
+        if (!tmp.renameTo(file)) {
+            // some platforms do not replace on rename
+            if (!file.delete() || !tmp.renameTo(file)) {
+                m.close(false);
+                throw new IOException(String.format("Could not replace %s", file));
+            }
+        }
+        out = m;
+
+        liveOffsets.clear();
+        liveOffsets.putAll(offsets);
+        liveBytes = 0L;
+        for (int offset : offsets.values()) {
+            liveBytes += m.recordBytes(offset);
+        }
+    }
+
+    /** @throws IOException past the largest map. The journal fails, which leaves the state as is */
+    static int capacity(long bytes) throws IOException {
+        long capacity = MIN_MAP_BYTES;
+        while (capacity < bytes) {
+            capacity *= 2;
+        }
+        if (Integer.MAX_VALUE < capacity) {
+            throw new IOException(String.format("Journal is full at %d bytes", bytes));
+        }
+        return (int) capacity;
+    }
+
+    private void append(byte type, byte[] payload, int offset, int n) throws IOException {
+        out.append(type, payload, offset, n);
+        markDirty();
+    }
+
+    private void markDirty() {
+        dirty = true;
+        if (!commitPending) {
+            commitPending = true;
+            scheduleCommit();
+        }
+    }
+
+    private void scheduleCommit() {
+        if (null == commitExecutor) {
+            commitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "OutboxJournal.commit");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        commitExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, commitIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** a journal file mapped for appends. Not thread-safe */
+    private static final class Mapped {
+        final File file;
+        final RandomAccessFile raf;
+        MappedByteBuffer map;
+        int length = 0;
+        private final CRC32 crc = new CRC32();
+
+
+        Mapped(File file, int capacity) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+
+        int recordBytes(int offset) {
+            return 4 + map.getInt(offset) + 4;
+        }
+
+        void append(byte type, byte[] payload, int offset, int n) throws IOException {
+            int recordBytes = 4 + 1 + n + 4;
+            if (map.capacity() < length + (long) recordBytes) {
+                // the new map covers the old; the old is released when collected
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity(length + (long) recordBytes));
+            }
+
+            crc.reset();
+            ByteBuffer view = map.duplicate();
+            view.position(length + 4);
+            view.put(type);
+            view.put(payload, offset, n);
+            crc.update(ByteBuffer.allocate(4).putInt(0, 1 + n).array());
+            crc.update(type);
+            crc.update(payload, offset, n);
+            view.putInt((int) crc.getValue());
+            // the length goes last, so a kill before this leaves a zero length that ends the file
+            map.putInt(length, 1 + n);
+            length += recordBytes;
+        }
+
+        void close(boolean force) {
+            if (force) {
+                map.force();
+            }
+            try {
+                raf.close();
+            } catch (IOException e) {
+                NL.nl.handled("client.journal", e);
+            }
+        }
+    }
+
+
+    /////// READ ///////
+
+    private void read(Map<Id, byte[]> records) throws IOException {
+        CRC32 crc = new CRC32();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = in.length();
+            if (fileLength < HEADER_BYTES || Integer.MAX_VALUE < fileLength) {
+                return;
+            }
+            ByteBuffer bb = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            if (MAGIC != bb.getInt() || VERSION != bb.get()) {
+                // unknown format; start over
+                return;
+            }
+
+            while (bb.position() + 4 + 1 + 4 <= fileLength) {
+                int position = bb.position();
+                int recordLength = bb.getInt();
+                if (recordLength <= 0 || fileLength < position + 4 + recordLength + 4) {
+                    // the end, or torn
+                    break;
+                }
+                byte[] record = new byte[recordLength];
+                bb.get(record);
+                int recordCrc = bb.getInt();
+
+                crc.reset();
+                crc.update(ByteBuffer.allocate(4).putInt(0, recordLength).array());
+                crc.update(record);
+                if (recordCrc != (int) crc.getValue()) {
+                    // torn
+                    break;
+                }
+
+                try {
+                    apply(record, records);
+                } catch (RuntimeException e) {
+                    // a record that does not parse; skip it
+                    NL.nl.handled("client.journal", e);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void apply(byte[] record, Map<Id, byte[]> records) {
+        byte type = record[0];
+        switch (type) {
+            case R_ADD: {
+                byte[] encoded = Arrays.copyOfRange(record, 1, record.length);
+                Id id = MessageControl.fromWireValue(WireValue.valueOf(encoded)).message.id;
+                records.put(id, encoded);
+                break;
+            }
+            case R_REMOVE:
+                records.remove(Id.fromBytes(record, 1));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown record %d", type));
+        }
+    }
+}
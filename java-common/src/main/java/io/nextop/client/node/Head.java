@@ -204,6 +204,9 @@ public class Head implements MessageControlNode {
             throw new IllegalArgumentException();
         }
 
+        // the sends queued before a process kill or reboot. file io, on the context thread (see #init(Bundle))
+        mcs.restore();
+
         downstream.init(new MessageControlChannel() {
             @Override
             public MessageControlState getMessageControlState() {
@@ -287,6 +290,10 @@ public class Head implements MessageControlNode {
 
     @Override
     public void onSaveState(Bundle savedState) {
+        @Nullable OutboxJournal journal = mcs.getJournal();
+        if (null != journal) {
+            journal.commit();
+        }
         downstream.onSaveState(savedState);
     }
 
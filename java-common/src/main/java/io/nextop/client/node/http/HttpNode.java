@@ -480,6 +480,7 @@ public final class HttpNode extends AbstractMessageControlNode {
 
 
 
+    // the mcs coalesces progress, so this sets it from the io thread without a post per callback
     final class ProgressAdapter implements ProgressCallback {
         final MessageControlState.Entry entry;
 
@@ -493,68 +494,38 @@ public final class HttpNode extends AbstractMessageControlNode {
 
         @Override
         public void onSendStarted(int tryCount) {
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    mcs.setOutboxTransferProgress(entry.id,
-                            MessageControlState.TransferProgress.none(entry.id));
-                }
-            });
+            mcs.setOutboxTransferProgress(entry.id,
+                    MessageControlState.TransferProgress.none(entry.id));
         }
 
         @Override
-        public void onSendProgress(final long sentBytes, final long sendTotalBytes) {
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    mcs.setOutboxTransferProgress(entry.id,
-                            MessageControlState.TransferProgress.create(entry.id, sentBytes, sendTotalBytes));
-                }
-            });
+        public void onSendProgress(long sentBytes, long sendTotalBytes) {
+            mcs.setOutboxTransferProgress(entry.id,
+                    MessageControlState.TransferProgress.create(entry.id, sentBytes, sendTotalBytes));
         }
 
         @Override
-        public void onSendCompleted(final long sentBytes, final long sendTotalBytes) {
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    mcs.setOutboxTransferProgress(entry.id,
-                            MessageControlState.TransferProgress.create(entry.id, sentBytes, sendTotalBytes));
-                }
-            });
+        public void onSendCompleted(long sentBytes, long sendTotalBytes) {
+            mcs.setOutboxTransferProgress(entry.id,
+                    MessageControlState.TransferProgress.create(entry.id, sentBytes, sendTotalBytes));
         }
 
         @Override
         public void onReceiveStarted(int tryCount) {
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    mcs.setInboxTransferProgress(entry.id,
-                            MessageControlState.TransferProgress.none(entry.id));
-                }
-            });
+            mcs.setInboxTransferProgress(entry.id,
+                    MessageControlState.TransferProgress.none(entry.id));
         }
 
         @Override
-        public void onReceiveProgress(final long receivedBytes, final long receiveTotalBytes) {
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    mcs.setInboxTransferProgress(entry.id,
-                            MessageControlState.TransferProgress.create(entry.id, receivedBytes, receiveTotalBytes));
-                }
-            });
+        public void onReceiveProgress(long receivedBytes, long receiveTotalBytes) {
+            mcs.setInboxTransferProgress(entry.id,
+                    MessageControlState.TransferProgress.create(entry.id, receivedBytes, receiveTotalBytes));
         }
 
         @Override
-        public void onReceiveCompleted(final long receivedBytes, final long receiveTotalBytes) {
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    mcs.setInboxTransferProgress(entry.id,
-                            MessageControlState.TransferProgress.create(entry.id, receivedBytes, receiveTotalBytes));
-                }
-            });
+        public void onReceiveCompleted(long receivedBytes, long receiveTotalBytes) {
+            mcs.setInboxTransferProgress(entry.id,
+                    MessageControlState.TransferProgress.create(entry.id, receivedBytes, receiveTotalBytes));
         }
     }
 
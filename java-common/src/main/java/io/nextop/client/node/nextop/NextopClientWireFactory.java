@@ -431,6 +431,11 @@ public class NextopClientWireFactory extends AbstractMessageControlNode implemen
             impl.write(buffer, offset, n, messageBoundary);
         }
 
+        @Override
+        public void write(ByteBuffer[] buffers, int messageBoundary) throws IOException {
+            impl.write(buffers, messageBoundary);
+        }
+
         @Override
         public void flush() throws IOException {
             impl.flush();
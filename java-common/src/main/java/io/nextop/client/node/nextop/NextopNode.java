@@ -1,6 +1,6 @@
 package io.nextop.client.node.nextop;
 
-import com.google.common.io.ByteStreams;
+import com.google.common.base.Charsets;
 import io.nextop.Id;
 import io.nextop.Message;
 import io.nextop.Wire;
@@ -11,17 +11,22 @@ import io.nextop.client.MessageControlNode;
 import io.nextop.client.MessageControlState;
 import io.nextop.client.node.AbstractMessageControlNode;
 import io.nextop.log.NL;
+import io.nextop.util.Lz;
 import io.nextop.util.NoCopyByteArrayOutputStream;
+import io.nextop.util.ReusableGzip;
+import io.nextop.util.SegmentedOutputStream;
+import rx.Observable;
+import rx.Observer;
+import rx.Subscription;
+import rx.functions.Func1;
+import rx.subjects.PublishSubject;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 
 /** Nextop is symmetric protocol, so the client and server both use an instance
  * of this class to communicate. The difference between instances is the
@@ -31,35 +36,190 @@ import java.util.zip.GZIPOutputStream;
 public class NextopNode extends AbstractMessageControlNode {
 
     public static final class Config {
+        /** the chunk size of a new wire, and the segment size of serialized messages */
         public final int chunkBytes;
+        /** bounds of the chunk size. The chunk size adapts to the wire within these (see {@link ChunkSizer}).
+         * Equal to chunkBytes for a fixed size. */
+        public final int minChunkBytes;
+        public final int maxChunkBytes;
+        /** capacity of the session LUT in each direction (see {@link WireValue.SessionLut}).
+         * 0 disables the session LUT. */
+        public final int lutCapacity;
+        /** {@link Deflater} level for compressed messages */
+        public final int compressionLevel;
+        /** encode the next available message on a worker while the current one is written */
+        public final boolean encodeAhead;
+        /** the number of messages whose chunks are interleaved on the wire */
+        public final int maxStreams;
+        /** threads that decompress and parse received messages. Received messages are dispatched in order regardless.
+         * 0 decodes on the context thread. */
+        public final int decodeThreads;
 
         public Config(int chunkBytes) {
+            this(chunkBytes, WireValue.SessionLut.DEFAULT_CAPACITY);
+        }
+
+        public Config(int chunkBytes, int lutCapacity) {
+            this(chunkBytes, lutCapacity, Deflater.DEFAULT_COMPRESSION, true);
+        }
+
+        public Config(int chunkBytes, int lutCapacity, int compressionLevel, boolean encodeAhead) {
+            this(chunkBytes, lutCapacity, compressionLevel, encodeAhead, DEFAULT_MAX_STREAMS);
+        }
+
+        public Config(int chunkBytes, int lutCapacity, int compressionLevel, boolean encodeAhead, int maxStreams) {
+            this(chunkBytes, lutCapacity, compressionLevel, encodeAhead, maxStreams,
+                    Math.min(chunkBytes, DEFAULT_MIN_CHUNK_BYTES), Math.max(chunkBytes, DEFAULT_MAX_CHUNK_BYTES));
+        }
+
+        public Config(int chunkBytes, int lutCapacity, int compressionLevel, boolean encodeAhead, int maxStreams,
+                      int minChunkBytes, int maxChunkBytes) {
+            this(chunkBytes, lutCapacity, compressionLevel, encodeAhead, maxStreams, minChunkBytes, maxChunkBytes,
+                    DEFAULT_DECODE_THREADS);
+        }
+
+        public Config(int chunkBytes, int lutCapacity, int compressionLevel, boolean encodeAhead, int maxStreams,
+                      int minChunkBytes, int maxChunkBytes, int decodeThreads) {
+            if (minChunkBytes <= 0 || chunkBytes < minChunkBytes || maxChunkBytes < chunkBytes) {
+                throw new IllegalArgumentException();
+            }
+            if (lutCapacity < 0 || WireValue.SessionLut.MAX_CAPACITY < lutCapacity) {
+                throw new IllegalArgumentException();
+            }
+            if (compressionLevel < Deflater.DEFAULT_COMPRESSION || Deflater.BEST_COMPRESSION < compressionLevel) {
+                throw new IllegalArgumentException();
+            }
+            if (maxStreams <= 0 || MAX_STREAMS < maxStreams) {
+                throw new IllegalArgumentException();
+            }
+            if (decodeThreads < 0) {
+                throw new IllegalArgumentException();
+            }
             this.chunkBytes = chunkBytes;
+            this.minChunkBytes = minChunkBytes;
+            this.maxChunkBytes = maxChunkBytes;
+            this.lutCapacity = lutCapacity;
+            this.compressionLevel = compressionLevel;
+            this.encodeAhead = encodeAhead;
+            this.maxStreams = maxStreams;
+            this.decodeThreads = decodeThreads;
         }
     }
 
 
+    public static final int DEFAULT_MAX_STREAMS = 8;
+    public static final int DEFAULT_MIN_CHUNK_BYTES = 1024;
+    public static final int DEFAULT_MAX_CHUNK_BYTES = 64 * 1024;
+    // leave a core for the context thread
+    public static final int DEFAULT_DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
     public static final Config DEFAULT_CONFIG = new Config(/* aim for one packet per chunk */ 4 * 1024);
 
+    // changing this changes the DEFLATE_DICTIONARY format. Add a codec with a new id instead
+    static final byte[] DEFLATE_DICTIONARY_BYTES = (
+            "application/octet-streamimage/jpegimage/png"
+            + "text/html; charset=utf-8text/plain; charset=utf-8"
+            + "Cache-ControlUser-AgentAuthorizationAcceptContent-LengthContent-TypePragma"
+            + "nextop-idnextop-headerimage-size"
+            + "$fragment$redirect$idempotent$nullopotent$yieldable$passive$code$reason$content"
+            + "createdupdatedtimestampstatuserrorresultdatavalueurlnameidtype"
+            + "RECEIVESENDCOMPLETEERRORMESSAGE"
+            + "versiondirmessage"
+            + "application/json; charset=utf-8"
+    ).getBytes(Charsets.UTF_8);
+
+    /** gzip. Every node reads this, so it is the fallback when the other side does not read a codec. */
+    public static final Codec GZIP = new Codec(1, "gzip") {
+        @Override
+        Compressor newCompressor(int level) {
+            final ReusableGzip gzip = new ReusableGzip(level);
+            return new Compressor() {
+                @Override
+                public OutputStream compress(OutputStream out) throws IOException {
+                    return gzip.newOutputStream(out);
+                }
+
+                @Override
+                public InputStream decompress(InputStream in) throws IOException {
+                    return gzip.newInputStream(in);
+                }
+
+                @Override
+                public void end() {
+                    gzip.end();
+                }
+            };
+        }
+    };
+    /** raw deflate, without the 18 bytes of gzip header and trailer */
+    public static final Codec DEFLATE = new DeflateCodec(2, "deflate", null);
+    /** raw deflate with a preset dictionary of common keys and header values.
+     * Small messages compress against the dictionary instead of against nothing. */
+    public static final Codec DEFLATE_DICTIONARY = new DeflateCodec(3, "deflate-dictionary", DEFLATE_DICTIONARY_BYTES);
+    /** {@link Lz}. Much less cpu than deflate at a lower ratio, for constrained devices. */
+    public static final Codec LZ = new Codec(4, "lz") {
+        @Override
+        Compressor newCompressor(int level) {
+            final Lz lz = new Lz();
+            return new Compressor() {
+                @Override
+                public OutputStream compress(OutputStream out) {
+                    return lz.newOutputStream(out);
+                }
+
+                @Override
+                public InputStream decompress(InputStream in) {
+                    return lz.newInputStream(in);
+                }
+
+                @Override
+                public void end() {
+                    // Do nothing
+                }
+            };
+        }
+    };
+
+    // by id
+    static final Codec[] CODECS = {null, GZIP, DEFLATE, DEFLATE_DICTIONARY, LZ};
+    /** the codecs this node reads, as a mask of (1 << id). Sent at sync. */
+    static final int READ_CODECS = (1 << GZIP.id) | (1 << DEFLATE.id) | (1 << DEFLATE_DICTIONARY.id) | (1 << LZ.id);
+
+
     public static final CompressionStrategy COMPRESS_NON_BINARY = new CompressionStrategy() {
         @Override
-        public boolean isCompress(Message message) {
-            @Nullable WireValue content = message.getContent();
-            if (null == content) {
-                return true;
-            }
-            switch (content.getType()) {
-                case IMAGE:
-                case BLOB:
-                    return false;
-                default:
-                    return true;
-            }
+        public Codec getCodec(Message message) {
+            return isBinary(message) ? null : DEFLATE_DICTIONARY;
+        }
+    };
+
+    /** for devices where deflate costs too much cpu */
+    public static final CompressionStrategy COMPRESS_NON_BINARY_FAST = new CompressionStrategy() {
+        @Override
+        public Codec getCodec(Message message) {
+            return isBinary(message) ? null : LZ;
         }
     };
 
+    private static boolean isBinary(Message message) {
+        @Nullable WireValue content = message.getContent();
+        if (null == content) {
+            return false;
+        }
+        switch (content.getType()) {
+            case IMAGE:
+            case BLOB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private static final int DEFAULT_T_STARTUP_MS = 3000;
     private static final int DEFAULT_T_DROP_MS = 2 * DEFAULT_T_STARTUP_MS;
+    // a restored write state waits this long for its message to be restored to the mcs
+    static final int RESTORE_TTL_MS = 10 * 60 * 1000;
+    public static final int DEFAULT_RECEIVE_STREAM_BYTES = 64 * 1024;
 
 
     final Config config;
@@ -78,10 +238,21 @@ public class NextopNode extends AbstractMessageControlNode {
 
     final SharedTransferState sts;
 
-    CompressionStrategy compressionStrategy = COMPRESS_NON_BINARY;
+    volatile CompressionStrategy compressionStrategy = COMPRESS_NON_BINARY;
+
+    @Nullable
+    TransferJournal journal = null;
+
+    // see #getReceiveStreams
+    volatile int receiveStreamBytes = DEFAULT_RECEIVE_STREAM_BYTES;
+    final PublishSubject<ReceiveStream> receiveStreams = PublishSubject.create();
+    // when the transfer state was restored from the journal
+    volatile long restoreTime = 0L;
 
     final UpstreamActive upstreamActive;
 
+    final DecodeQueue decodes = new DecodeQueue();
+
     final int startupMs = DEFAULT_T_STARTUP_MS;
     final int dropTimeoutMs = DEFAULT_T_DROP_MS;
 
@@ -111,6 +282,35 @@ public class NextopNode extends AbstractMessageControlNode {
         this.wireAdapter = wireAdapter;
     }
 
+    public void setCompressionStrategy(CompressionStrategy compressionStrategy) {
+        if (null == compressionStrategy) {
+            throw new IllegalArgumentException();
+        }
+        this.compressionStrategy = compressionStrategy;
+    }
+
+    /** Call before #init.
+     * Partial transfers are kept in the journal and resumed after a restart, from the chunks the other side has.
+     * A write state resumes only if its message is sent again with the same id. */
+    public void setTransferJournal(@Nullable TransferJournal journal) {
+        this.journal = journal;
+    }
+
+    /** Received messages of at least this many bytes on the wire are streamed ({@link #getReceiveStreams}),
+     * unless they were encoded against the session lut. */
+    public void setReceiveStreamBytes(int receiveStreamBytes) {
+        if (receiveStreamBytes < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.receiveStreamBytes = receiveStreamBytes;
+    }
+
+    /** Emits each large message as it starts to be received, on the context thread.
+     * The message is still dispatched upstream as usual after its end. */
+    public Observable<ReceiveStream> getReceiveStreams() {
+        return receiveStreams;
+    }
+
 
 
 
@@ -133,6 +333,13 @@ public class NextopNode extends AbstractMessageControlNode {
         // This prevents a request from hitting another route when it will be net faster/better
         // to hit nextop if sent before this timeout
         upstreamActive.up(startupMs);
+
+        if (null != journal) {
+            long startNanos = System.nanoTime();
+            journal.restore(sts.writeStates, sts.readStates, new SegmentedOutputStream.Pool(config.chunkBytes, 0));
+            restoreTime = System.currentTimeMillis();
+            NL.nl.metric("node.nextop.journal.restore", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
     }
 
     @Override
@@ -276,10 +483,11 @@ public class NextopNode extends AbstractMessageControlNode {
                             wire = wireAdapter.adapt(wire);
                         }
 
+                        int codecs;
                         {
                             long startNanos = System.nanoTime();
                             try {
-                                syncTransferState(wire);
+                                codecs = syncTransferState(wire);
                             } catch (IOException e) {
                                 // FIXME log
                                 e.printStackTrace();
@@ -290,12 +498,12 @@ public class NextopNode extends AbstractMessageControlNode {
 
                         post(ON_CONNECTED);
 
-                        sws = new SharedWireState(wire);
+                        sws = new SharedWireState(wire, codecs, config);
                         if (null == ss) {
-                            ss = new SerializationState();
+                            ss = new SerializationState(config);
                         }
                         WriteLooper writeLooper = new WriteLooper(sws, ss);
-                        ReadLooper readLooper = new ReadLooper(sws);
+                        ReadLooper readLooper = new ReadLooper(sws, ss);
                         sws.writeLooper = writeLooper;
                         sws.readLooper = readLooper;
 
@@ -331,11 +539,15 @@ public class NextopNode extends AbstractMessageControlNode {
                     }
                 }
             }
+            if (null != ss) {
+                ss.end();
+            }
         }
 
 
         // FIXME see notes in SharedTransferState
-        void syncTransferState(final Wire wire) throws IOException {
+        /** @return the codecs the other side reads, as a mask of (1 << id) */
+        int syncTransferState(final Wire wire) throws IOException {
             sts.membar();
 
             // each side sends SharedTransferState (id->transferred chunks)
@@ -358,11 +570,35 @@ public class NextopNode extends AbstractMessageControlNode {
 
             // TODO for now, just remove any readState that is not in the other writeState. this frees up memory
 
-            // F_SYNC_WRITE_STATE [frame count] [frame+]
+            // the session lut is scoped to the wire; both sides start the new wire with an empty lut.
+            // drop partial transfers that were encoded against the previous lut (or whose message was removed)
+            MessageControlState mcs = getMessageControlState();
+            long now = System.currentTimeMillis();
+            for (Iterator<MessageWriteState> itr = sts.writeStates.values().iterator(); itr.hasNext(); ) {
+                MessageWriteState writeState = itr.next();
+                if (writeState.lut || mcs.indexOf(writeState.id) < 0
+                        && !(writeState.restored && now < restoreTime + RESTORE_TTL_MS)) {
+                    itr.remove();
+                    releaseWriteState(writeState);
+                }
+            }
+            for (Iterator<MessageReadState> itr = sts.readStates.values().iterator(); itr.hasNext(); ) {
+                if (null != itr.next().lut) {
+                    itr.remove();
+                }
+            }
+            // chunks written on the previous wire may not have been received.
+            // the other side sends the chunks it has (F_SYNC_READ_STATE)
+            for (MessageWriteState writeState : sts.writeStates.values()) {
+                Arrays.fill(writeState.chunkWrites, false);
+            }
+
+            // F_SYNC_WRITE_STATE [frame count][codecs] [frame+]
             // frame := [id]
 
             final int n = sts.writeStates.size();
             final int m;
+            final int codecs;
             {
                 int c = 0;
                 {
@@ -370,6 +606,8 @@ public class NextopNode extends AbstractMessageControlNode {
                     c += 1;
                     WireValue.putint(controlBuffer, c, n);
                     c += 4;
+                    WireValue.putint(controlBuffer, c, READ_CODECS);
+                    c += 4;
                     wire.write(controlBuffer, 0, c, 0);
                     wire.flush();
                 }
@@ -382,73 +620,148 @@ public class NextopNode extends AbstractMessageControlNode {
                 }
                 c += 1;
                 m = WireValue.getint(controlBuffer, c);
+                c += 4;
+                codecs = WireValue.getint(controlBuffer, c) | (1 << GZIP.id);
             }
 
 
-            final int bytesPerFrame = Id.LENGTH;
-
-            // write
-            class Writer extends Thread {
-                int i = 0;
-                Iterator<MessageWriteState> itr = sts.writeStates.values().iterator();
-
-                @Nullable IOException e = null;
+            {
+                final int bytesPerFrame = Id.LENGTH;
 
-                @Override
-                public void run() {
-                    try {
-                        for (int writeCount; 0 < (writeCount = Math.min(n - i, controlBuffer.length / bytesPerFrame)); ) {
+                // write
+                SyncWriter writer = new SyncWriter() {
+                    @Override
+                    void write() throws IOException {
+                        Iterator<MessageWriteState> itr = sts.writeStates.values().iterator();
+                        for (int i = 0, writeCount; 0 < (writeCount = Math.min(n - i, buffer.length / bytesPerFrame)); i += writeCount) {
                             for (int k = 0; k < writeCount; ++k) {
                                 MessageWriteState writeState = itr.next();
-                                Id.toBytes(writeState.id, controlBuffer, k * bytesPerFrame);
+                                Id.toBytes(writeState.id, buffer, k * bytesPerFrame);
                             }
-                            wire.write(controlBuffer, 0, writeCount * bytesPerFrame, 0);
-                            i += writeCount;
+                            wire.write(buffer, 0, writeCount * bytesPerFrame, 0);
                         }
                         wire.flush();
-                    } catch (IOException e) {
-                        // FIXME log
-                        e.printStackTrace();
-                        this.e = e;
                     }
-                }
-            };
-            Writer writer = new Writer();
-            writer.start();
+                };
+                writer.start();
 
-            // read
-            int j = 0;
-            Id[] pairs = new Id[m];
+                // read
+                Set<Id> pairs = new HashSet<Id>(m);
+                for (int j = 0, readCount; 0 < (readCount = Math.min(m - j, controlBuffer.length / bytesPerFrame)); j += readCount) {
+                    wire.read(controlBuffer, 0, readCount * bytesPerFrame, 0);
 
-            for (int readCount; 0 < (readCount = Math.min(m - j, controlBuffer.length / bytesPerFrame)); ) {
-                wire.read(controlBuffer, 0, readCount * bytesPerFrame, 0);
+                    for (int k = 0; k < readCount; ++k) {
+                        pairs.add(Id.fromBytes(controlBuffer, k * bytesPerFrame));
+                    }
+                }
 
-                for (int k = 0; k < readCount; ++k) {
-                    Id id = Id.fromBytes(controlBuffer, k * bytesPerFrame);
-                    pairs[j + k] = id;
+                // process read pairs
+                // remove any read state that does not have a pair id. This fails its receive stream
+                List<Id> unpaired = new ArrayList<Id>(4);
+                for (Id id : sts.readStates.keySet()) {
+                    if (!pairs.contains(id)) {
+                        unpaired.add(id);
+                    }
                 }
+                for (Id id : unpaired) {
+                    removeReadState(id);
+                }
+
+                writer.await();
+            }
 
-                j += readCount;
+            // re-encode partial transfers the other side can't read.
+            // the other side replaces its read state when the start does not match
+            for (Iterator<MessageWriteState> itr = sts.writeStates.values().iterator(); itr.hasNext(); ) {
+                MessageWriteState writeState = itr.next();
+                if (null != writeState.codec && 0 == (codecs & (1 << writeState.codec.id))) {
+                    itr.remove();
+                    releaseWriteState(writeState);
+                }
             }
 
-            // process read pairs
-            // remove any read state that does not have a pair id
-            sts.readStates.keySet().retainAll(Arrays.asList(pairs));
 
+            // F_SYNC_READ_STATE [frame count][frame+]
+            // frame := [id][codec id][total length][total chunks][chunk set length][chunk set]
+            {
+                final int bytesPerHeader = Id.LENGTH + 1 + 4 + 4 + 4;
 
-            while (true) {
-                try {
-                    writer.join();
-                    break;
-                } catch (InterruptedException e) {
-                    // can't interrupt io
-                    continue;
+                // write
+                SyncWriter writer = new SyncWriter() {
+                    @Override
+                    void write() throws IOException {
+                        int c = 0;
+                        buffer[c] = F_SYNC_READ_STATE;
+                        c += 1;
+                        WireValue.putint(buffer, c, sts.readStates.size());
+                        c += 4;
+                        wire.write(buffer, 0, c, 0);
+
+                        for (MessageReadState readState : sts.readStates.values()) {
+                            c = 0;
+                            Id.toBytes(readState.id, buffer, c);
+                            c += Id.LENGTH;
+                            buffer[c] = (byte) (null != readState.codec ? readState.codec.id : 0);
+                            c += 1;
+                            WireValue.putint(buffer, c, readState.bytes.length);
+                            c += 4;
+                            WireValue.putint(buffer, c, readState.chunkReads.length);
+                            c += 4;
+                            byte[] chunkSet = encodeChunkSet(readState.chunkReads);
+                            WireValue.putint(buffer, c, chunkSet.length);
+                            c += 4;
+                            wire.write(buffer, 0, c, 0);
+                            wire.write(chunkSet, 0, chunkSet.length, 0);
+                        }
+                        wire.flush();
+                    }
+                };
+                writer.start();
+
+                // read
+                wire.read(controlBuffer, 0, 1 + 4, 0);
+                if (F_SYNC_READ_STATE != controlBuffer[0]) {
+                    // FIXME log
+                    throw new IOException("Bad sync read state.");
                 }
-            }
-            if (null != writer.e) {
-                throw writer.e;
-            }
+                int readStateCount = WireValue.getint(controlBuffer, 1);
+
+                int resumeCount = 0;
+                for (int j = 0; j < readStateCount; ++j) {
+                    wire.read(controlBuffer, 0, bytesPerHeader, 0);
+                    int c = 0;
+                    Id id = Id.fromBytes(controlBuffer, c);
+                    c += Id.LENGTH;
+                    int codecId = 0xFF & controlBuffer[c];
+                    c += 1;
+                    int length = WireValue.getint(controlBuffer, c);
+                    c += 4;
+                    int chunkCount = WireValue.getint(controlBuffer, c);
+                    c += 4;
+                    int chunkSetLength = WireValue.getint(controlBuffer, c);
+                    // the writer sends the smaller encoding, which is at most the bitmap
+                    if (length < 0 || chunkCount < 0 || length < chunkCount
+                            || chunkSetLength < 1 || 1 + (chunkCount + 7) / 8 < chunkSetLength) {
+                        throw new IOException("Bad sync read state.");
+                    }
+                    byte[] chunkSet = new byte[chunkSetLength];
+                    wire.read(chunkSet, 0, chunkSetLength, 0);
+
+                    @Nullable MessageWriteState writeState = sts.writeStates.get(id);
+                    if (null != writeState
+                            && (null != writeState.codec ? writeState.codec.id : 0) == codecId
+                            && writeState.bytes.getLength() == length
+                            && writeState.chunkOffsets.length == chunkCount) {
+                        if (!decodeChunkSet(chunkSet, writeState.chunkWrites)) {
+                            throw new IOException("Bad sync read state.");
+                        }
+                        resumeCount += 1;
+                    }
+                }
+                NL.nl.metric("node.nextop.control.sync.resume", resumeCount, "messages");
 
+                writer.await();
+            }
 
             // end
             {
@@ -476,6 +789,46 @@ public class NextopNode extends AbstractMessageControlNode {
             }
 
             sts.membar();
+
+            return codecs;
+        }
+
+        /** writes one side of a sync exchange while this thread reads the other side.
+         * Both sides write first, so a wire that does not buffer a whole side would block. */
+        abstract class SyncWriter extends Thread {
+            final byte[] buffer = new byte[4 * 1024];
+
+            @Nullable
+            IOException e = null;
+
+
+            abstract void write() throws IOException;
+
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException e) {
+                    // FIXME log
+                    e.printStackTrace();
+                    this.e = e;
+                }
+            }
+
+            void await() throws IOException {
+                while (true) {
+                    try {
+                        join();
+                        break;
+                    } catch (InterruptedException e) {
+                        // can't interrupt io
+                        continue;
+                    }
+                }
+                if (null != e) {
+                    throw e;
+                }
+            }
         }
     }
 
@@ -485,14 +838,30 @@ public class NextopNode extends AbstractMessageControlNode {
     // FIXME finish
     static final class SharedWireState {
         final Wire wire;
+        // the codecs the other side reads, as a mask of (1 << id)
+        final int codecs;
         volatile boolean active = true;
 
+        final ChunkSizer chunkSizer;
+        // id -> the writer at the end of the message, for the round trip and throughput (see ChunkSizer)
+        final Map<Id, ChunkSizer.End> ends = new ConcurrentHashMap<Id, ChunkSizer.End>(32);
+
+        // bound by the starts this side writes; resolves the acks this side reads
+        final SessionIds sendIds = new SessionIds();
+        // bound by the starts this side reads; used in the acks this side writes
+        final SessionIds receiveIds = new SessionIds();
+        // nacked while the writer still had the message, before its end was written or before it moved to pending ack.
+        // The writer drops the write state and sends the message again. Guarded by itself
+        final Set<Id> nacked = new HashSet<Id>(4);
+
         WriteLooper writeLooper;
         ReadLooper readLooper;
 
 
-        SharedWireState(Wire wire) {
+        SharedWireState(Wire wire, int codecs, Config config) {
             this.wire = wire;
+            this.codecs = codecs;
+            chunkSizer = new ChunkSizer(config);
         }
 
         void end() {
@@ -515,211 +884,497 @@ public class NextopNode extends AbstractMessageControlNode {
         }
     }
 
-    static final class SerializationState {
-        // FIXME need to work more on memory footprint.
-        final byte[] serBytes = new byte[8 * 1024 * 1024];
-        final ByteBuffer serBuffer = ByteBuffer.wrap(serBytes);
-
-        SerializationState() {
+    /** short ids for the messages on one wire in one direction (see F_MESSAGE_START).
+     * The writer of the starts binds, so indexes are only used by that side.
+     * On the sending side the writer drops the index at the end of a message, so a later start binds again,
+     * and the ack or nack that resolves the session id unbinds the rest.
+     * Thread-safe: the writer thread on one side and the reader thread on the other. */
+    static final class SessionIds {
+        final ConcurrentMap<Id, Integer> indexes = new ConcurrentHashMap<Id, Integer>(32);
+        final Map<Integer, Id> ids = new ConcurrentHashMap<Integer, Id>(32);
+        int nextIndex = 0;
+
+
+        void bind(Id id, int index) {
+            @Nullable Integer previous = indexes.put(id, index);
+            if (null != previous) {
+                ids.remove(previous);
+            }
+            ids.put(index, id);
         }
-    }
 
-    final class WriteLooper extends Thread {
-        final SharedWireState sws;
-        final SerializationState ss;
-        final MessageControlState mcs = getMessageControlState();
+        @Nullable
+        Integer unbind(Id id) {
+            @Nullable Integer index = indexes.remove(id);
+            if (null != index) {
+                ids.remove(index);
+            }
+            return index;
+        }
 
-        final byte[] controlBuffer = new byte[1024];
+        /** @return the id the index resolved to. The id is unbound if still bound to the index */
+        @Nullable
+        Id unbind(int index) {
+            @Nullable Id id = ids.remove(index);
+            if (null != id) {
+                indexes.remove(id, index);
+            }
+            return id;
+        }
+    }
 
-        WriteLooper(SharedWireState sws, SerializationState ss) {
-            this.sws = sws;
-            this.ss = ss;
+    /** Picks the chunk size of new messages on a wire.
+     * A chunk should take about TARGET_CHUNK_NANOS to deliver, and at most half the ack round trip,
+     * so a more important message waits about one chunk: small chunks on slow links, large chunks on fast links.
+     * Throughput is measured from the acks, as the bytes written before each acked end over the time between acks.
+     * Time in the write call is not used, since the socket buffers take writes faster than the link. */
+    static final class ChunkSizer {
+        static final long TARGET_CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+        // a throughput sample covers at least one of these
+        static final int WINDOW_BYTES = 64 * 1024;
+        static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+        // ewma weight of a new sample
+        static final double ALPHA = 0.25;
+
+        final int minChunkBytes;
+        final int maxChunkBytes;
+
+        // written by the reader thread
+        volatile int chunkBytes;
+
+        // writer thread
+        long writeBytes = 0L;
+        int idleCount = 0;
+
+        // reader thread
+        // the last acked end. 0 nanos before the first
+        long ackBytes = 0L;
+        long ackNanos = 0L;
+        int ackIdleCount = 0;
+        long windowBytes = 0L;
+        long windowNanos = 0L;
+        // the writer ran out of messages during the window, so the sample can be low
+        boolean windowIdle = false;
+        // 0 before the first sample
+        double bytesPerNano = 0.0;
+        // 0 before the first sample
+        long rttNanos = 0L;
+
+
+        ChunkSizer(Config config) {
+            minChunkBytes = config.minChunkBytes;
+            maxChunkBytes = config.maxChunkBytes;
+            chunkBytes = config.chunkBytes;
         }
 
-        @Override
-        public void run() {
-            sts.membar();
 
-            // take top
-            // write
-            // every chunkQ, check if there if a more important, before writing the next chunk
-            // if so put back
+        /** writer thread */
+        void onChunkWrite(int bytes) {
+            writeBytes += bytes;
+        }
 
-            @Nullable MessageControlState.Entry entry = null;
+        /** writer thread. The writer has no open streams and waits */
+        void onIdle() {
+            idleCount += 1;
+        }
 
-            try {
-                NL.nl.message("node.nextop.write", "Start write loop");
+        /** writer thread
+         * @return the state at the end of a message, for #onAck */
+        End onEnd(long nanos) {
+            return new End(nanos, writeBytes, idleCount);
+        }
 
-                top:
-                while (sws.active) {
-                    pollUrgent();
+        /** reader thread
+         * @param nanos when the ack was read
+         * @param holdNanos how long the ack waited in the other side's batch, or -1 if not known */
+        void onAck(End end, long nanos, long holdNanos) {
+            if (0L <= holdNanos) {
+                long sample = Math.max(1L, nanos - end.nanos - holdNanos);
+                rttNanos = 0L < rttNanos ? rttNanos + (long) (ALPHA * (sample - rttNanos)) : sample;
+            }
 
-                    if (null == entry) {
-                        entry = mcs.takeFirstAvailable(NextopNode.this);
-                        if (null == entry) {
-                            {
-                                sws.wire.flush();
-                            }
-                            try {
-                                entry = mcs.takeFirstAvailable(NextopNode.this, Integer.MAX_VALUE, TimeUnit.MILLISECONDS);
-                                assert null != entry;
-                                if (null == entry) {
-                                    continue;
-                                }
-                            } catch (InterruptedException e) {
-                                continue;
-                            }
-                        }
+            if (end.writeBytes <= ackBytes) {
+                // acked out of order
+                return;
+            }
+            if (0L < ackNanos) {
+                windowBytes += end.writeBytes - ackBytes;
+                windowNanos += nanos - ackNanos;
+                windowIdle |= end.idleCount != ackIdleCount;
+            }
+            ackBytes = end.writeBytes;
+            ackNanos = nanos;
+            ackIdleCount = end.idleCount;
+
+            if (WINDOW_BYTES <= windowBytes || WINDOW_NANOS <= windowNanos) {
+                double sample = windowBytes / (double) Math.max(1L, windowNanos);
+                // an idle writer can't fill the link. Only take the sample if it is faster than the estimate
+                if (!windowIdle || bytesPerNano < sample) {
+                    bytesPerNano = 0.0 < bytesPerNano ? bytesPerNano + ALPHA * (sample - bytesPerNano) : sample;
+                }
+                windowBytes = 0L;
+                windowNanos = 0L;
+                windowIdle = false;
+
+                if (0.0 < bytesPerNano) {
+                    long targetNanos = TARGET_CHUNK_NANOS;
+                    if (0L < rttNanos) {
+                        targetNanos = Math.min(targetNanos, rttNanos / 2);
                     }
+                    chunkBytes = (int) Math.max(minChunkBytes, Math.min(maxChunkBytes, bytesPerNano * targetNanos));
+                }
+            }
+        }
 
-                    @Nullable MessageWriteState writeState = sts.writeStates.get(entry.id);
-                    if (null == writeState) {
-                        {
-                            long startNanos = System.nanoTime();
 
-                            final ByteBuffer serBuffer = ss.serBuffer;
-                            final byte[] serBytes = ss.serBytes;
+        /** the state of the writer when it wrote the end of a message */
+        static final class End {
+            final long nanos;
+            // written in chunks on the wire, up to the end
+            final long writeBytes;
+            final int idleCount;
 
-                            // create it
-                            byte[] bytes;
-                            boolean compressed;
-                            try {
-                                pkg(entry.mc).toBytes(serBuffer);
-                                serBuffer.flip();
-                                int n = serBuffer.remaining();
-
-                                assert pkg(entry.mc).equals(WireValue.valueOf(serBytes));
-
-                                if (compressionStrategy.isCompress(entry.message)) {
-                                    try {
-                                        NoCopyByteArrayOutputStream os = new NoCopyByteArrayOutputStream(serBytes, n);
-                                        GZIPOutputStream gzos = new GZIPOutputStream(os);
-                                        try {
-                                            gzos.write(serBytes, 0, n);
-                                            gzos.finish();
-                                        } finally {
-                                            gzos.close();
-                                        }
-                                        bytes = os.toByteArray();
-                                        compressed = true;
-                                    } catch (OutOfMemoryError e) {
-                                        // Don't compress - too much temp space needed
-                                        bytes = new byte[n];
-                                        System.arraycopy(serBytes, 0, bytes, 0, n);
-                                        compressed = false;
-                                    }
-                                } else {
-                                    bytes = new byte[n];
-                                    System.arraycopy(serBytes, 0, bytes, 0, n);
-                                    compressed = false;
-                                }
-                            } finally {
-                                serBuffer.clear();
-                            }
+            End(long nanos, long writeBytes, int idleCount) {
+                this.nanos = nanos;
+                this.writeBytes = writeBytes;
+                this.idleCount = idleCount;
+            }
+        }
+    }
+
+    static final class SerializationState {
+        // released segments kept for reuse, in bytes
+        static final int IDLE_BYTES = 512 * 1024;
+        // received messages waiting for a decode thread
+        static final int DECODE_QUEUE_CAPACITY = 64;
 
-                            assert 0 < bytes.length;
+        // chunks go to the wire from the segments without a copy
+        final SegmentedOutputStream.Pool pool;
 
-                            int chunkCount = (bytes.length + config.chunkBytes - 1) / config.chunkBytes;
-                            int[] chunkOffsets = new int[chunkCount];
-                            chunkOffsets[0] = 0;
-                            for (int i = 1; i < chunkCount; ++i) {
-                                chunkOffsets[i] = chunkOffsets[i - 1] + config.chunkBytes;
-                            }
+        // see Config#encodeAhead. single thread, so encodeCompressors is only used by one encode at a time
+        @Nullable
+        final ExecutorService encodeExecutor;
+        @Nullable
+        final Compressors encodeCompressors;
 
-                            writeState = new MessageWriteState(entry.id, bytes, chunkOffsets, compressed);
+        // see Config#decodeThreads. Bounded; when full, the reader decodes, which holds back the wire
+        @Nullable
+        final ExecutorService decodeExecutor;
 
-                            NL.nl.metric("node.nextop.write.state", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
-                            NL.nl.count("node.nextop.write.%s", entry.mc.type);
-                        }
+        SerializationState(Config config) {
+            pool = new SegmentedOutputStream.Pool(config.chunkBytes, Math.max(1, IDLE_BYTES / config.chunkBytes));
+            if (config.encodeAhead) {
+                encodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NextopNode.encode");
+                        t.setDaemon(true);
+                        return t;
                     }
+                });
+                encodeCompressors = new Compressors(config.compressionLevel);
+            } else {
+                encodeExecutor = null;
+                encodeCompressors = null;
+            }
+            if (0 < config.decodeThreads) {
+                decodeExecutor = new ThreadPoolExecutor(config.decodeThreads, config.decodeThreads, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(DECODE_QUEUE_CAPACITY), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NextopNode.decode");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // the reader decodes. Also after shutdown, so a received message is never dropped
+                        r.run();
+                    }
+                });
+            } else {
+                decodeExecutor = null;
+            }
+        }
 
-                    final int n = writeState.chunkOffsets.length;
-
-                    // F_MESSAGE_START [id][total length][total chunks]
-                    {
-                        long startNanos = System.nanoTime();
-                        {
-                            int c = 0;
-                            controlBuffer[c] = F_MESSAGE_START;
-                            c += 1;
-                            Id.toBytes(entry.id, controlBuffer, c);
-                            c += Id.LENGTH;
-                            WireValue.putint(controlBuffer, c, writeState.bytes.length);
-                            c += 4;
-                            WireValue.putint(controlBuffer, c, n);
-                            c += 4;
-                            controlBuffer[c] = writeState.compressed ? (byte) 0x01 : (byte) 0x00;
-                            c += 1;
-                            sws.wire.write(controlBuffer, 0, c, 0);
-                        }
-                        NL.nl.metric("node.nextop.write.start", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        void end() {
+            if (null != encodeExecutor) {
+                // after any queued encode
+                encodeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        encodeCompressors.end();
                     }
+                });
+                encodeExecutor.shutdown();
+            }
+            if (null != decodeExecutor) {
+                decodeExecutor.shutdown();
+            }
+        }
+    }
 
-                    for (int i = 0; i < n; ++i) {
-                        pollUrgent();
+    /** one compressor per codec, created on first use. Not thread-safe. */
+    static final class Compressors {
+        final int level;
+        final Compressor[] compressors = new Compressor[CODECS.length];
 
-                        if (!writeState.chunkWrites[i]) {
-                            if (null != entry.end) {
-                                // ended
-                                entry = null;
-                                continue top;
-                            }
+        Compressors(int level) {
+            this.level = level;
+        }
 
-                            // write it
-                            int start = writeState.chunkOffsets[i];
-                            int end = i + 1 < n ? writeState.chunkOffsets[i + 1] : writeState.bytes.length;
-                            assert start < end;
+        Compressor get(Codec codec) {
+            @Nullable Compressor compressor = compressors[codec.id];
+            if (null == compressor) {
+                compressor = codec.newCompressor(level);
+                compressors[codec.id] = compressor;
+            }
+            return compressor;
+        }
 
-                            // F_MESSAGE_CHUNK [chunk index][chunk offset][chunk length][data]
-                            {
-                                long startNanos = System.nanoTime();
-                                {
-                                    {
-                                        int c = 0;
-                                        controlBuffer[c] = F_MESSAGE_CHUNK;
-                                        c += 1;
-                                        WireValue.putint(controlBuffer, c, i);
-                                        c += 4;
-                                        WireValue.putint(controlBuffer, c, start);
-                                        c += 4;
-                                        WireValue.putint(controlBuffer, c, end - start);
-                                        c += 4;
-                                        sws.wire.write(controlBuffer, 0, c, 0);
-                                    }
-                                    sws.wire.write(writeState.bytes, start, end - start, 0);
-                                }
-                                NL.nl.metric("node.nextop.write.chunk", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
-                            }
+        void end() {
+            for (int i = 0; i < compressors.length; ++i) {
+                if (null != compressors[i]) {
+                    compressors[i].end();
+                    compressors[i] = null;
+                }
+            }
+        }
+    }
+
+    static final class Encoded {
+        final SegmentedOutputStream bytes;
+        @Nullable
+        final Codec codec;
+        // true if the bytes reference the session lut
+        final boolean lutRefs;
+        // definitions added to the session lut by this encode
+        @Nullable
+        final NoCopyByteArrayOutputStream lutBytes;
 
+        Encoded(SegmentedOutputStream bytes, @Nullable Codec codec, boolean lutRefs, @Nullable NoCopyByteArrayOutputStream lutBytes) {
+            this.bytes = bytes;
+            this.codec = codec;
+            this.lutRefs = lutRefs;
+            this.lutBytes = lutBytes;
+        }
+    }
+
+    /** the value is written straight into pooled segments (through the codec if compressing).
+     * the per-value lut needs the whole value in one buffer, so it is not used here;
+     * compression removes the same repetition, and binary content gains little from it.
+     * a message of more than one chunk is encoded without the session lut, so that its transfer
+     * can be journaled and streamed (see {@link TransferJournal}, {@link ReceiveStream})
+     * @param codecs the codecs the other side reads
+     * @param chunkBytes the chunk size of the wire */
+    Encoded encode(MessageControlState.Entry entry, @Nullable WireValue.SessionLut lut,
+                   SegmentedOutputStream.Pool pool, Compressors compressors, int codecs, int chunkBytes) throws IOException {
+        @Nullable NoCopyByteArrayOutputStream lutBytes = null;
+
+        WireValue pkg = pkg(entry.mc);
+
+        @Nullable Codec codec = compressionStrategy.getCodec(entry.message);
+        if (null != codec && 0 == (codecs & (1 << codec.id))) {
+            codec = GZIP;
+        }
 
-                            writeState.chunkWrites[i] = true;
+        @Nullable WireValue.SessionLut messageLut = null != lut && !isLarge(entry.message, chunkBytes) ? lut : null;
+        int refCount = null != messageLut ? messageLut.getRefCount() : 0;
+        SegmentedOutputStream bytes = write(pkg, messageLut, pool, compressors, codec);
+        boolean lutRefs = null != messageLut && refCount != messageLut.getRefCount();
+        if (lutRefs && chunkBytes < bytes.getLength()) {
+            // larger than the content suggested. the definitions queued by the first write are still sent
+            bytes.release();
+            bytes = write(pkg, null, pool, compressors, codec);
+            lutRefs = false;
+        }
 
+        assert pkg.equals(WireValue.valueOf(null != codec
+                        ? compressors.get(codec).decompress(bytes.toInputStream())
+                        : bytes.toInputStream(),
+                lutRefs ? lut.toTable() : null));
 
-                            @Nullable MessageControlState.Entry preemptEntry = mcs.takeFirstAvailable(entry.id, NextopNode.this);
-                            if (null != preemptEntry) {
-                                mcs.release(entry.id, NextopNode.this);
-                                entry = preemptEntry;
-                                continue top;
+        if (null != lut && lut.hasDefinitions()) {
+            lutBytes = new NoCopyByteArrayOutputStream(1024);
+            lut.writeDefinitions(lutBytes);
+        }
+
+        assert 0 < bytes.getLength();
+
+        return new Encoded(bytes, codec, lutRefs, lutBytes);
+    }
+
+    private static SegmentedOutputStream write(WireValue pkg, @Nullable WireValue.SessionLut lut,
+                                               SegmentedOutputStream.Pool pool, Compressors compressors,
+                                               @Nullable Codec codec) throws IOException {
+        SegmentedOutputStream bytes = new SegmentedOutputStream(pool);
+        if (null != codec) {
+            OutputStream cos = compressors.get(codec).compress(bytes);
+            pkg.toBytes(cos, lut);
+            cos.close();
+        } else {
+            pkg.toBytes(bytes, lut);
+        }
+        return bytes;
+    }
+
+    /** estimates from binary content, which is most large messages, to skip a second write */
+    private static boolean isLarge(Message message, int chunkBytes) {
+        @Nullable WireValue content = message.getContent();
+        return null != content && WireValue.Type.BLOB == content.getType()
+                && chunkBytes < content.asBlob().remaining();
+    }
+
+    /** the header followed by [offset, offset + length) of the segments, as one gather write */
+    static ByteBuffer[] gather(byte[] header, int headerLength, SegmentedOutputStream bytes, int offset, int length) {
+        int segmentBytes = bytes.getSegmentBytes();
+        int segmentCount = (offset + length - 1) / segmentBytes - offset / segmentBytes + 1;
+        ByteBuffer[] buffers = new ByteBuffer[1 + segmentCount];
+        buffers[0] = ByteBuffer.wrap(header, 0, headerLength);
+        for (int j = 1; 0 < length; ++j) {
+            int i = offset % segmentBytes;
+            int k = Math.min(length, segmentBytes - i);
+            buffers[j] = ByteBuffer.wrap(bytes.getSegment(offset / segmentBytes), i, k);
+            offset += k;
+            length -= k;
+        }
+        return buffers;
+    }
+
+    final class WriteLooper extends Thread {
+        final SharedWireState sws;
+        final SerializationState ss;
+        final MessageControlState mcs = getMessageControlState();
+
+        final byte[] controlBuffer = new byte[1024];
+
+        // scoped to the wire
+        @Nullable
+        WireValue.SessionLut lut;
+        // incremented on each encode into the lut. an encode ahead that started on an older version is stale
+        int lutVersion = 0;
+
+        final Compressors compressors;
+
+        @Nullable
+        EncodeAhead ahead = null;
+
+        // open streams by index. the index is the stream id on the wire
+        final Stream[] streams;
+        int streamCount = 0;
+        // entries released by #preempt. Their write states are kept to resume, until the entry is removed
+        final List<Preempted> preempted = new ArrayList<Preempted>(4);
+        // the pass of the last stream written
+        long pass = 0L;
+
+        WriteLooper(SharedWireState sws, SerializationState ss) {
+            this.sws = sws;
+            this.ss = ss;
+
+            lut = 0 < config.lutCapacity ? new WireValue.SessionLut(config.lutCapacity) : null;
+            compressors = new Compressors(config.compressionLevel);
+            streams = new Stream[config.maxStreams];
+        }
+
+        @Override
+        public void run() {
+            sts.membar();
+
+            // keep up to maxStreams messages open and interleave their chunks (see Stream).
+            // a small message waits behind at most about one chunk of each open stream
+
+            try {
+                NL.nl.message("node.nextop.write", "Start write loop");
+
+                top:
+                while (sws.active) {
+                    writeAcks();
+                    releaseRemoved();
+
+                    for (MessageControlState.Entry entry;
+                         streamCount < streams.length && null != (entry = mcs.takeFirstAvailable(NextopNode.this)); ) {
+                        open(entry);
+                    }
+
+                    if (0 == streamCount) {
+                        {
+                            sws.wire.flush();
+                        }
+                        sws.chunkSizer.onIdle();
+                        MessageControlState.Entry entry;
+                        try {
+                            // wakes for acks (see AckBatch)
+                            entry = mcs.takeFirstAvailable(NextopNode.this, sts.acks.dueNanos(System.nanoTime()), TimeUnit.NANOSECONDS);
+                            if (null == entry) {
+                                continue;
                             }
+                        } catch (InterruptedException e) {
+                            continue;
                         }
+                        open(entry);
+                    } else if (streams.length == streamCount) {
+                        preempt();
                     }
 
-                    // F_MESSAGE_END
-                    {
-                        long startNanos = System.nanoTime();
+                    encodeAhead();
+
+                    Stream stream = nextStream();
+                    if (null != stream.entry.end) {
+                        // ended
+                        close(stream);
+                        removeWriteState(stream.entry.id);
+                        sws.sendIds.unbind(stream.entry.id);
+                        continue top;
+                    }
+                    if (removeNacked(stream.entry.id)) {
+                        // the other side dropped what it had (see ReadLooper#onNack). start over with a new encode
+                        close(stream);
+                        removeWriteState(stream.entry.id);
+                        mcs.release(stream.entry.id, NextopNode.this);
+                        continue top;
+                    }
+
+                    final int n = stream.writeState.chunkOffsets.length;
+                    if (stream.chunkIndex < n) {
+                        writeChunk(stream);
+                    }
+
+                    if (n == stream.chunkIndex) {
+                        // F_MESSAGE_END [stream]
                         {
-                            int c = 0;
-                            controlBuffer[c] = F_MESSAGE_END;
-                            c += 1;
-                            sws.wire.write(controlBuffer, 0, c, 0);
+                            long startNanos = System.nanoTime();
+                            {
+                                int c = 0;
+                                controlBuffer[c] = F_MESSAGE_END;
+                                c += 1;
+                                controlBuffer[c] = (byte) stream.index;
+                                c += 1;
+                                sws.wire.write(controlBuffer, 0, c, 0);
+                            }
+                            long nanos = System.nanoTime();
+                            sws.ends.put(stream.entry.id, sws.chunkSizer.onEnd(nanos));
+                            // a later start binds again. the session id resolves the ack until it arrives
+                            sws.sendIds.indexes.remove(stream.entry.id);
+                            NL.nl.metric("node.nextop.write.end", nanos - startNanos, TimeUnit.NANOSECONDS);
                         }
-                        NL.nl.metric("node.nextop.write.end", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
-                    }
 
-                    // done with entry, transfer to pending ack
-                    mcs.remove(entry.id, MessageControlState.End.COMPLETED);
-                    sts.writePendingAck.add(entry.mc);
-                    entry = null;
+                        // done with entry, transfer to pending ack
+                        close(stream);
+                        MessageControlState.Entry entry = stream.entry;
+                        // atomic with the nack check in ReadLooper#onNack
+                        synchronized (sws.nacked) {
+                            removeWriteState(entry.id);
+                            if (sws.nacked.remove(entry.id)) {
+                                // nacked during the write; send it again
+                                sws.ends.remove(entry.id);
+                                mcs.release(entry.id, NextopNode.this);
+                            } else {
+                                mcs.remove(entry.id, MessageControlState.End.COMPLETED);
+                                sts.writePendingAck.add(entry.mc);
+                            }
+                        }
+                    }
                 }
 
                 {
@@ -733,10 +1388,23 @@ public class NextopNode extends AbstractMessageControlNode {
             }
 
 
-            if (null != entry) {
-                mcs.release(entry.id, NextopNode.this);
-                entry = null;
+            for (int i = 0; i < streams.length; ++i) {
+                if (null != streams[i]) {
+                    mcs.release(streams[i].entry.id, NextopNode.this);
+                    streams[i] = null;
+                }
+            }
+            streamCount = 0;
+            // the write states stay for the next wire
+            for (Preempted p : preempted) {
+                p.subscription.unsubscribe();
             }
+            preempted.clear();
+            if (null != ahead) {
+                ahead.discard();
+                ahead = null;
+            }
+            compressors.end();
 
 
             NL.nl.message("node.nextop.write", "End write loop");
@@ -744,16 +1412,538 @@ public class NextopNode extends AbstractMessageControlNode {
             sts.membar();
         }
 
-        private void pollUrgent() throws IOException {
+        /** encodes the entry if needed and starts it on a free stream */
+        private void open(MessageControlState.Entry entry) throws IOException {
+            for (int i = 0, n = preempted.size(); i < n; ++i) {
+                if (entry == preempted.get(i).entry) {
+                    preempted.remove(i).subscription.unsubscribe();
+                    break;
+                }
+            }
+            if (removeNacked(entry.id)) {
+                // a preempted stream was nacked; start over
+                removeWriteState(entry.id);
+            }
+            @Nullable MessageWriteState writeState = sts.writeStates.get(entry.id);
+            if (null == writeState) {
+                {
+                    long startNanos = System.nanoTime();
+
+                    @Nullable Encoded encoded = takeEncodedAhead(entry);
+                    if (null == encoded) {
+                        encoded = encode(entry, lut, ss.pool, compressors, sws.codecs, sws.chunkSizer.chunkBytes);
+                    }
+                    lutVersion += 1;
+
+                    // F_LUT_DEFINE [length][definitions]
+                    // definitions precede the first start of any message that uses them
+                    if (null != encoded.lutBytes) {
+                        int c = 0;
+                        controlBuffer[c] = F_LUT_DEFINE;
+                        c += 1;
+                        WireValue.putint(controlBuffer, c, encoded.lutBytes.getLength());
+                        c += 4;
+                        sws.wire.write(controlBuffer, 0, c, 0);
+                        sws.wire.write(encoded.lutBytes.getBytes(), encoded.lutBytes.getOffset(), encoded.lutBytes.getLength(), 0);
+                    }
+
+                    // the chunks of a message are fixed when it is encoded
+                    int chunkBytes = sws.chunkSizer.chunkBytes;
+                    NL.nl.metric("node.nextop.write.chunkBytes", chunkBytes, "bytes");
+                    int chunkCount = (encoded.bytes.getLength() + chunkBytes - 1) / chunkBytes;
+                    int[] chunkOffsets = new int[chunkCount];
+                    chunkOffsets[0] = 0;
+                    for (int i = 1; i < chunkCount; ++i) {
+                        chunkOffsets[i] = chunkOffsets[i - 1] + chunkBytes;
+                    }
+
+                    writeState = new MessageWriteState(entry.id, encoded.bytes, chunkOffsets, encoded.codec, encoded.lutRefs);
+                    // keep the bytes for the rest of the transfer. re-encoding is not stable with the session lut
+                    sts.writeStates.put(entry.id, writeState);
+
+                    NL.nl.metric("node.nextop.write.state", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                    NL.nl.count("node.nextop.write.%s", entry.mc.type);
+                }
+            }
+
+            int index = 0;
+            while (null != streams[index]) {
+                index += 1;
+            }
+            writeState.restored = false;
+            Stream stream = new Stream(index, entry, writeState, pass);
+            streams[index] = stream;
+            streamCount += 1;
+
+            final int n = writeState.chunkOffsets.length;
+
+            // the first start of the message on the wire binds the id to a session id
+            @Nullable Integer sessionId = sws.sendIds.indexes.get(entry.id);
+            final boolean bind = null == sessionId;
+            if (bind) {
+                sessionId = sws.sendIds.nextIndex++;
+                sws.sendIds.bind(entry.id, sessionId);
+            }
+
+            // F_MESSAGE_START [stream][flags][session id][id if START_BIND][total length][total chunks]
             {
-                int u = 0;
                 long startNanos = System.nanoTime();
-                for (byte[] urgentMessage; null != (urgentMessage = sts.writeUrgentMessages.poll()); ) {
-                    sws.wire.write(urgentMessage, 0, urgentMessage.length, 0);
-                    u += 1;
+                {
+                    int c = 0;
+                    controlBuffer[c] = F_MESSAGE_START;
+                    c += 1;
+                    controlBuffer[c] = (byte) index;
+                    c += 1;
+                    controlBuffer[c] = (byte) ((null != writeState.codec ? writeState.codec.id << START_CODEC_SHIFT : 0)
+                            | (writeState.lut ? START_LUT : 0)
+                            | (bind ? START_BIND : 0));
+                    c += 1;
+                    c = putVarint(controlBuffer, c, sessionId);
+                    if (bind) {
+                        Id.toBytes(entry.id, controlBuffer, c);
+                        c += Id.LENGTH;
+                    }
+                    WireValue.putint(controlBuffer, c, writeState.bytes.getLength());
+                    c += 4;
+                    WireValue.putint(controlBuffer, c, n);
+                    c += 4;
+                    sws.wire.write(controlBuffer, 0, c, 0);
                 }
-                if (0 < u) {
-                    NL.nl.metric("node.nextop.write.urgent", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                NL.nl.metric("node.nextop.write.start", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private boolean removeNacked(Id id) {
+            synchronized (sws.nacked) {
+                return !sws.nacked.isEmpty() && sws.nacked.remove(id);
+            }
+        }
+
+        private void close(Stream stream) {
+            assert stream == streams[stream.index];
+            streams[stream.index] = null;
+            streamCount -= 1;
+        }
+
+        /** if every stream is open, a more important entry replaces the least important stream.
+         * The replaced message keeps its write state and resumes at its next unwritten chunk. */
+        private void preempt() throws IOException {
+            Stream min = null;
+            for (Stream stream : streams) {
+                if (null == min || stream.entry.groupPriority < min.entry.groupPriority) {
+                    min = stream;
+                }
+            }
+            final int minGroupPriority = min.entry.groupPriority;
+            @Nullable MessageControlState.Entry preemptEntry = mcs.takeFirstAvailable(new Func1<MessageControlState.Entry, Boolean>() {
+                @Override
+                public Boolean call(MessageControlState.Entry e) {
+                    return minGroupPriority < e.groupPriority;
+                }
+            }, NextopNode.this);
+            if (null != preemptEntry) {
+                close(min);
+                mcs.release(min.entry.id, NextopNode.this);
+                // an idle writer wakes to release the write state if the entry is removed
+                Subscription subscription = mcs.getObservable(min.entry.id).subscribe(new Observer<MessageControlState.Entry>() {
+                    @Override
+                    public void onNext(MessageControlState.Entry entry) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        mcs.wake(NextopNode.this);
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                    }
+                });
+                preempted.add(new Preempted(min.entry, subscription));
+                open(preemptEntry);
+            }
+        }
+
+        /** releases the segments and session id of preempted entries that were removed while waiting to resume */
+        private void releaseRemoved() {
+            for (int i = preempted.size() - 1; 0 <= i; --i) {
+                MessageControlState.Entry entry = preempted.get(i).entry;
+                if (null != entry.end) {
+                    preempted.remove(i).subscription.unsubscribe();
+                    removeWriteState(entry.id);
+                    sws.sendIds.unbind(entry.id);
+                }
+            }
+        }
+
+        /** the stream with the least pass. Ties go to the stream with fewer bytes left, then the older stream */
+        private Stream nextStream() {
+            @Nullable Stream next = null;
+            for (Stream stream : streams) {
+                if (null != stream && (null == next
+                        || stream.pass < next.pass
+                        || stream.pass == next.pass && (stream.remainingBytes() < next.remainingBytes()
+                            || stream.remainingBytes() == next.remainingBytes() && stream.openNanos < next.openNanos))) {
+                    next = stream;
+                }
+            }
+            assert null != next;
+            // new streams start here, so they do not jump ahead of or fall behind the open streams
+            pass = next.pass;
+            return next;
+        }
+
+        private void writeChunk(Stream stream) throws IOException {
+            MessageWriteState writeState = stream.writeState;
+            final int n = writeState.chunkOffsets.length;
+
+            int i = stream.chunkIndex;
+            assert i < n && !writeState.chunkWrites[i];
+
+            // write it
+            int start = writeState.chunkOffsets[i];
+            int end = i + 1 < n ? writeState.chunkOffsets[i + 1] : writeState.bytes.getLength();
+            assert start < end;
+
+            // F_MESSAGE_CHUNK [stream][chunk index][chunk offset][chunk length][data]
+            // the header and data go out in one write
+            {
+                long startNanos = System.nanoTime();
+                {
+                    int c = 0;
+                    {
+                        controlBuffer[c] = F_MESSAGE_CHUNK;
+                        c += 1;
+                        controlBuffer[c] = (byte) stream.index;
+                        c += 1;
+                        WireValue.putint(controlBuffer, c, i);
+                        c += 4;
+                        WireValue.putint(controlBuffer, c, start);
+                        c += 4;
+                        WireValue.putint(controlBuffer, c, end - start);
+                        c += 4;
+                    }
+                    sws.wire.write(gather(controlBuffer, c, writeState.bytes, start, end - start), 0);
+                }
+                sws.chunkSizer.onChunkWrite(end - start);
+                NL.nl.metric("node.nextop.write.chunk", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+
+            writeState.chunkWrites[i] = true;
+            stream.advance(end - start);
+            if (null != journal && TransferJournal.MIN_CHUNKS == ++writeState.writeCount) {
+                journal.writeState(writeState);
+            }
+        }
+
+        /** starts encoding the entry predicted to be opened next on the encode worker,
+         * against a copy of the lut. Keeps an encode in progress if the prediction has not changed. */
+        private void encodeAhead() {
+            if (null == ss.encodeExecutor) {
+                return;
+            }
+
+            @Nullable MessageControlState.Entry next = mcs.peekFirstAvailable(new Func1<MessageControlState.Entry, Boolean>() {
+                @Override
+                public Boolean call(MessageControlState.Entry e) {
+                    return !sts.writeStates.containsKey(e.id);
+                }
+            });
+
+            if (null != ahead) {
+                if (null != next && next.id.equals(ahead.entry.id) && isCurrent(ahead)) {
+                    return;
+                }
+                ahead.discard();
+                ahead = null;
+            }
+            if (null != next) {
+                ahead = new EncodeAhead(next, lutVersion, null != lut ? lut.copy() : null, ss, sws.codecs,
+                        sws.chunkSizer.chunkBytes);
+                try {
+                    ss.encodeExecutor.execute(ahead.task);
+                } catch (RejectedExecutionException e) {
+                    ahead = null;
+                }
+            }
+        }
+
+        private boolean isCurrent(EncodeAhead a) {
+            return null == lut || a.lutVersion == lutVersion;
+        }
+
+        /** @return the encode ahead of {@code entry} if it is current, and adopts its lut. Otherwise null. */
+        @Nullable
+        private Encoded takeEncodedAhead(MessageControlState.Entry entry) {
+            if (null == ahead) {
+                return null;
+            }
+            EncodeAhead a = ahead;
+            ahead = null;
+            if (!a.entry.id.equals(entry.id) || !isCurrent(a)) {
+                a.discard();
+                return null;
+            }
+
+            @Nullable Encoded encoded;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    encoded = a.task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // finish the handoff; the interrupt is seen by the next blocking call
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // encode again on this thread
+                    encoded = null;
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (null != encoded && encoded.lutRefs && sws.chunkSizer.chunkBytes < encoded.bytes.getLength()) {
+                // the chunk size dropped during the encode, so it would go out in several chunks against the lut.
+                // encode again; the writer lut is unchanged by the encode ahead
+                encoded.bytes.release();
+                encoded = null;
+            }
+            if (null != encoded) {
+                lut = a.lut;
+            }
+            return encoded;
+        }
+
+        /** writes the pending acks and nacks if they are due */
+        void writeAcks() throws IOException {
+            long startNanos = System.nanoTime();
+            if (0L < sts.acks.dueNanos(startNanos)) {
+                return;
+            }
+            List<Id> nacks = sts.acks.takeNacks();
+            if (!nacks.isEmpty()) {
+                writeAcks(F_SESSION_NACK_BATCH, F_NACK_BATCH, nacks, null, false);
+            }
+            Acks acks = sts.acks.takeAcks();
+            if (!acks.ids.isEmpty()) {
+                writeAcks(F_SESSION_ACK_BATCH, F_ACK_BATCH, acks.ids, acks.addNanos, true);
+            }
+            NL.nl.metric("node.nextop.write.acks", acks.ids.size() + nacks.size(), "messages");
+            NL.nl.metric("node.nextop.write.urgent", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /** ids with a session id on this wire go in a session frame, the rest in a full frame
+         * @param addNanos when each id was added to the batch, or null if not timed (nacks)
+         * @param unbind release the session ids. The other side releases them when it reads the frame */
+        private void writeAcks(byte sessionType, byte type, List<Id> ids, @Nullable long[] addNanos, boolean unbind) throws IOException {
+            long nanos = System.nanoTime();
+            int n = ids.size();
+            List<Id> fullIds = new ArrayList<Id>(4);
+            long[] fullAddNanos = null != addNanos ? new long[n] : null;
+            // F_SESSION_ACK_BATCH/F_SESSION_NACK_BATCH [length][hold][session id+]
+            // session ids written as varints
+            {
+                int c = 1 + 4 + 4;
+                int hold = 0;
+                for (int i = 0; i < n; ++i) {
+                    Id id = ids.get(i);
+                    @Nullable Integer sessionId = unbind ? sws.receiveIds.unbind(id) : sws.receiveIds.indexes.get(id);
+                    if (null == sessionId) {
+                        if (null != addNanos) {
+                            fullAddNanos[fullIds.size()] = addNanos[i];
+                        }
+                        fullIds.add(id);
+                        continue;
+                    }
+                    if (1 + 4 + 4 == c) {
+                        hold = holdMicros(addNanos, i, nanos);
+                    }
+                    int d = putVarint(controlBuffer, c, sessionId);
+                    if (d < 0) {
+                        writeSessionAcks(sessionType, c, hold);
+                        hold = holdMicros(addNanos, i, nanos);
+                        c = putVarint(controlBuffer, 1 + 4 + 4, sessionId);
+                    } else {
+                        c = d;
+                    }
+                }
+                if (1 + 4 + 4 < c) {
+                    writeSessionAcks(sessionType, c, hold);
+                }
+            }
+            if (!fullIds.isEmpty()) {
+                writeFullAcks(type, fullIds, fullAddNanos, nanos);
+            }
+        }
+
+        private void writeSessionAcks(byte sessionType, int c, int hold) throws IOException {
+            controlBuffer[0] = sessionType;
+            WireValue.putint(controlBuffer, 1, c - (1 + 4 + 4));
+            WireValue.putint(controlBuffer, 1 + 4, hold);
+            sws.wire.write(controlBuffer, 0, c, 0);
+        }
+
+        /** F_ACK_BATCH/F_NACK_BATCH [count][hold][id+] */
+        private void writeFullAcks(byte type, List<Id> ids, @Nullable long[] addNanos, long nanos) throws IOException {
+            final int bytesPerFrame = Id.LENGTH;
+            for (int i = 0, n = ids.size(); i < n; ) {
+                int count = Math.min(n - i, MAX_ACK_BATCH);
+                {
+                    int c = 0;
+                    controlBuffer[c] = type;
+                    c += 1;
+                    WireValue.putint(controlBuffer, c, count);
+                    c += 4;
+                    WireValue.putint(controlBuffer, c, holdMicros(addNanos, i, nanos));
+                    c += 4;
+                    sws.wire.write(controlBuffer, 0, c, 0);
+                }
+                for (int writeCount; 0 < count; count -= writeCount, i += writeCount) {
+                    writeCount = Math.min(count, controlBuffer.length / bytesPerFrame);
+                    for (int k = 0; k < writeCount; ++k) {
+                        Id.toBytes(ids.get(i + k), controlBuffer, k * bytesPerFrame);
+                    }
+                    sws.wire.write(controlBuffer, 0, writeCount * bytesPerFrame, 0);
+                }
+            }
+        }
+
+        /** how long the ack at the index was held in the batch, in micros. 0 if not timed */
+        private int holdMicros(@Nullable long[] addNanos, int i, long nanos) {
+            if (null == addNanos) {
+                return 0;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(Math.max(0L, nanos - addNanos[i])));
+        }
+    }
+
+    /** a message open on the wire. Streams are interleaved by stride scheduling:
+     * each chunk advances the pass of its stream by (length / weight), and the stream with the least pass goes next.
+     * The weight is the group priority, raised for a stream close to its end, so a short message
+     * finishes within a few chunks of the others even behind a large upload. */
+    static final class Stream {
+        // the weight at or below this many chunks left
+        static final int[] TAIL_CHUNKS = {1, 4};
+        static final int[] TAIL_WEIGHT_MULTIPLIERS = {4, 2};
+
+        final int index;
+        final MessageControlState.Entry entry;
+        final MessageWriteState writeState;
+        final long openNanos = System.nanoTime();
+
+        long pass;
+        // the next unwritten chunk
+        int chunkIndex = 0;
+
+
+        Stream(int index, MessageControlState.Entry entry, MessageWriteState writeState, long pass) {
+            this.index = index;
+            this.entry = entry;
+            this.writeState = writeState;
+            this.pass = pass;
+            skipWritten();
+        }
+
+
+        int remainingBytes() {
+            return chunkIndex < writeState.chunkOffsets.length
+                    ? writeState.bytes.getLength() - writeState.chunkOffsets[chunkIndex]
+                    : 0;
+        }
+
+        int weight() {
+            int weight = 1 + Math.max(0, entry.groupPriority);
+            int remainingChunks = writeState.chunkOffsets.length - chunkIndex;
+            for (int i = 0; i < TAIL_CHUNKS.length; ++i) {
+                if (remainingChunks <= TAIL_CHUNKS[i]) {
+                    weight *= TAIL_WEIGHT_MULTIPLIERS[i];
+                    break;
+                }
+            }
+            return weight;
+        }
+
+        void advance(int length) {
+            pass += ((long) length << 8) / weight();
+            chunkIndex += 1;
+            skipWritten();
+        }
+
+        private void skipWritten() {
+            while (chunkIndex < writeState.chunkOffsets.length && writeState.chunkWrites[chunkIndex]) {
+                chunkIndex += 1;
+            }
+        }
+    }
+
+    /** an entry released by WriteLooper#preempt, with the subscription that wakes the writer if it is removed.
+     * The subscription ends when the entry resumes, when it is removed, or when the write loop ends. */
+    static final class Preempted {
+        final MessageControlState.Entry entry;
+        final Subscription subscription;
+
+        Preempted(MessageControlState.Entry entry, Subscription subscription) {
+            this.entry = entry;
+            this.subscription = subscription;
+        }
+    }
+
+    final class EncodeAhead implements Callable<Encoded> {
+        final MessageControlState.Entry entry;
+        final int lutVersion;
+        // a copy of the writer lut at lutVersion, owned by the encode
+        @Nullable
+        final WireValue.SessionLut lut;
+        final SerializationState ss;
+        final int codecs;
+        // the chunk size when the encode started
+        final int chunkBytes;
+
+        final FutureTask<Encoded> task = new FutureTask<Encoded>(this);
+
+        // guarded by this
+        boolean discarded = false;
+        @Nullable
+        Encoded result = null;
+
+        EncodeAhead(MessageControlState.Entry entry, int lutVersion, @Nullable WireValue.SessionLut lut,
+                    SerializationState ss, int codecs, int chunkBytes) {
+            this.entry = entry;
+            this.lutVersion = lutVersion;
+            this.lut = lut;
+            this.ss = ss;
+            this.codecs = codecs;
+            this.chunkBytes = chunkBytes;
+        }
+
+        @Override
+        @Nullable
+        public Encoded call() throws Exception {
+            synchronized (this) {
+                if (discarded) {
+                    return null;
+                }
+            }
+            Encoded encoded = encode(entry, lut, ss.pool, ss.encodeCompressors, codecs, chunkBytes);
+            synchronized (this) {
+                if (discarded) {
+                    encoded.bytes.release();
+                    return null;
+                }
+                result = encoded;
+                return encoded;
+            }
+        }
+
+        /** the result will not be used. Returns its segments to the pool. */
+        synchronized void discard() {
+            if (!discarded) {
+                discarded = true;
+                if (null != result) {
+                    result.bytes.release();
+                    result = null;
                 }
             }
         }
@@ -761,13 +1951,21 @@ public class NextopNode extends AbstractMessageControlNode {
 
     final class ReadLooper extends Thread {
         final SharedWireState sws;
+        final SerializationState ss;
         final MessageControlState mcs = getMessageControlState();
 
         final byte[] controlBuffer = new byte[1024];
 
+        // scoped to the wire
+        WireValue.SessionLutTable lut = WireValue.SessionLutTable.EMPTY;
 
-        ReadLooper(SharedWireState sws) {
+        // decompressors for dispatch, reused across messages
+        final Queue<Compressors> compressors = new ConcurrentLinkedQueue<Compressors>();
+
+
+        ReadLooper(SharedWireState sws, SerializationState ss) {
             this.sws = sws;
+            this.ss = ss;
         }
 
 
@@ -781,8 +1979,8 @@ public class NextopNode extends AbstractMessageControlNode {
 
             sts.membar();
 
-            @Nullable Id id = null;
-            @Nullable MessageReadState readState = null;
+            // open streams by stream id (see WriteLooper)
+            MessageReadState[] streams = new MessageReadState[MAX_STREAMS];
 
             try {
 
@@ -796,42 +1994,84 @@ public class NextopNode extends AbstractMessageControlNode {
                         byte type = controlBuffer[0];
                         switch (type) {
                             case F_MESSAGE_START: {
-                                // F_MESSAGE_START [id][total length][total chunks][compressed]
-                                int c = Id.LENGTH + 4 + 4 + 1;
+                                // F_MESSAGE_START [stream][flags][session id][id if START_BIND][total length][total chunks]
+                                sws.wire.read(controlBuffer, 0, 2, 0);
+                                int stream = 0xFF & controlBuffer[0];
+                                int flags = 0xFF & controlBuffer[1];
+                                int sessionId = readVarint(sws.wire);
+                                Id id;
+                                if (0 != (flags & START_BIND)) {
+                                    sws.wire.read(controlBuffer, 0, Id.LENGTH, 0);
+                                    id = Id.fromBytes(controlBuffer, 0);
+                                    sws.receiveIds.bind(id, sessionId);
+                                } else {
+                                    id = sws.receiveIds.ids.get(sessionId);
+                                    if (null == id) {
+                                        throw new IOException(String.format("Unknown session id %d.", sessionId));
+                                    }
+                                }
+                                int c = 4 + 4;
                                 sws.wire.read(controlBuffer, 0, c, 0);
                                 c = 0;
-                                id = Id.fromBytes(controlBuffer, c);
-                                c += Id.LENGTH;
                                 int length = WireValue.getint(controlBuffer, c);
                                 c += 4;
                                 int chunkCount = WireValue.getint(controlBuffer, c);
-                                c += 4;
-                                boolean compressed = (0xFF & controlBuffer[c]) != 0;
-
-                                readState = sts.readStates.get(id);
-                                if (null == readState) {
-                                    // create it
-                                    readState = new MessageReadState(id, length, chunkCount, compressed);
+                                int codecId = (flags & START_CODEC_MASK) >>> START_CODEC_SHIFT;
+                                if (0 == (READ_CODECS & (1 << codecId)) && 0 != codecId) {
+                                    throw new IOException(String.format("Unknown codec %d.", codecId));
+                                }
+                                @Nullable Codec codec = CODECS[codecId];
+                                // the message was encoded against the current lut
+                                @Nullable WireValue.SessionLutTable readLut = 0 != (flags & START_LUT) ? lut : null;
+
+                                @Nullable MessageReadState readState = sts.readStates.get(id);
+                                if (null == readState || !readState.matches(length, chunkCount, codec)) {
+                                    // create it. a mismatch means the other side encoded the message again
+                                    if (null != readState && null != readState.stream) {
+                                        readState.stream.fail(new IOException("Resent."));
+                                    }
+                                    readState = new MessageReadState(id, length, chunkCount, codec, readLut);
                                     sts.readStates.put(id, readState);
                                 }
+                                streams[stream] = readState;
+
+                                // the bytes of a lut message are not readable without the lut, so it is not streamed
+                                if (null == readState.stream && null == readState.lut && receiveStreamBytes <= length) {
+                                    final ReceiveStream receiveStream = new ReceiveStream(id, codec, readState.bytes);
+                                    // restored chunks
+                                    receiveStream.receive(readState.prefixLength());
+                                    readState.stream = receiveStream;
+                                    post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            receiveStreams.onNext(receiveStream);
+                                        }
+                                    });
+                                }
 
                                 break;
                             }
                             case F_MESSAGE_CHUNK: {
-                                if (null == readState) {
-                                    continue top;
-                                }
-
-                                // F_MESSAGE_CHUNK [chunk index][chunk offset][chunk length][data]
-                                int c = 4 + 4 + 4;
+                                // F_MESSAGE_CHUNK [stream][chunk index][chunk offset][chunk length][data]
+                                int c = 1 + 4 + 4 + 4;
                                 sws.wire.read(controlBuffer, 0, c, 0);
                                 c = 0;
+                                int stream = 0xFF & controlBuffer[c];
+                                c += 1;
                                 int chunkIndex = WireValue.getint(controlBuffer, c);
                                 c += 4;
                                 int start = WireValue.getint(controlBuffer, c);
                                 c += 4;
                                 int chunkLength = WireValue.getint(controlBuffer, c);
 
+                                @Nullable MessageReadState readState = streams[stream];
+                                if (null == readState) {
+                                    // discard chunk content
+                                    sws.wire.skip(chunkLength, 0);
+                                    continue top;
+                                }
+                                Id id = readState.id;
+
                                 int end = start + chunkLength;
 
                                 // verify that the values do not conflict with existing values
@@ -876,10 +2116,10 @@ public class NextopNode extends AbstractMessageControlNode {
                                     sws.wire.skip(chunkLength, 0);
 
                                     // FIXME log this
-                                    sts.writeUrgentMessages.add(nack(id));
-                                    sws.writeLooper.interrupt();
+                                    nack(id);
                                     // discard the read state
-                                    sts.readStates.remove(id);
+                                    removeReadState(id);
+                                    streams[stream] = null;
                                     continue top;
                                 }
 
@@ -892,24 +2132,38 @@ public class NextopNode extends AbstractMessageControlNode {
                                     // set the next start, used for conflict detection (see above)
                                     readState.chunkOffsets[chunkIndex + 1] = end;
                                 }
+                                if (null != journal) {
+                                    readState.readCount += 1;
+                                    if (readState.journaled) {
+                                        journal.readChunk(readState, chunkIndex, start, end);
+                                    } else if (TransferJournal.MIN_CHUNKS <= readState.readCount) {
+                                        // with the chunks so far
+                                        journal.readState(readState);
+                                    }
+                                }
+                                if (null != readState.stream) {
+                                    readState.stream.receive(readState.prefixLength());
+                                }
 
                                 break;
                             }
                             case F_MESSAGE_END: {
+                                // F_MESSAGE_END [stream]
+                                sws.wire.read(controlBuffer, 0, 1, 0);
+                                int stream = 0xFF & controlBuffer[0];
+
+                                @Nullable MessageReadState readState = streams[stream];
                                 if (null == readState) {
                                     continue top;
                                 }
-
-                                // F_MESSAGE_END
-                                // nothing to read
+                                streams[stream] = null;
+                                Id id = readState.id;
 
                                 for (int i = 0, n = readState.chunkOffsets.length; i < n; ++i) {
                                     if (!readState.chunkReads[i]) {
-                                        sts.writeUrgentMessages.add(nack(id));
-                                        sws.writeLooper.interrupt();
+                                        nack(id);
                                         // discard the read state
-                                        sts.readStates.remove(id);
-                                        readState = null;
+                                        removeReadState(id);
                                         continue top;
                                     }
                                 }
@@ -917,48 +2171,103 @@ public class NextopNode extends AbstractMessageControlNode {
                                 // received
                                 // TODO move this to where the message is actually completed (ack on complete not receive)
                                 // TODO when ack changed, move message to readPending
-                                sts.writeUrgentMessages.offer(ack(id));
-                                sws.writeLooper.interrupt();
+                                ack(id);
 
-                                sts.readStates.remove(id);
+                                if (null != readState.stream) {
+                                    readState.stream.complete();
+                                }
+                                removeReadState(id);
 
-                                // defer the parsing to the context thread
-                                // TODO is this better thank inline? (get numbers)
-                                post(new Dispatch(id, readState));
-                                readState = null;
+                                // decompress and parse off the reader and the context thread
+                                decodes.add(new Decode(id, readState), ss.decodeExecutor);
 
                                 break;
                             }
-                            case F_ACK: {
-                                // F_ACK [id]
-                                int c = Id.LENGTH;
+                            case F_LUT_DEFINE: {
+                                // F_LUT_DEFINE [length][definitions]
+                                int c = 4;
                                 sws.wire.read(controlBuffer, 0, c, 0);
-                                c = 0;
-                                Id uid = Id.fromBytes(controlBuffer, c);
+                                int length = WireValue.getint(controlBuffer, 0);
+                                byte[] lutBytes = new byte[length];
+                                sws.wire.read(lutBytes, 0, length, 0);
 
-                                // remove from pending
-                                sts.writePendingAck.remove(uid, MessageControlState.End.COMPLETED);
+                                try {
+                                    lut = lut.define(lutBytes, 0, length);
+                                } catch (Exception e) {
+                                    // the luts are out of sync; everything after this would be corrupt
+                                    throw new IOException(e);
+                                }
 
                                 break;
                             }
+                            case F_ACK: {
+                                // F_ACK [id]
+                                sws.wire.read(controlBuffer, 0, Id.LENGTH, 0);
+                                onAck(Id.fromBytes(controlBuffer, 0), 0L);
+                                break;
+                            }
                             case F_NACK: {
-                                NL.nl.count("node.nextop.read.nack");
-
                                 // F_NACK [id]
-                                int c = Id.LENGTH;
-                                sws.wire.read(controlBuffer, 0, c, 0);
-                                c = 0;
-                                Id uid = Id.fromBytes(controlBuffer, c);
-
-                                // move from pending to active
-                                @Nullable MessageControl mc = sts.writePendingAck.remove(uid, MessageControlState.End.ERROR);
-                                if (null != mc) {
-                                    mcs.add(mc);
-                                } else {
-                                    // this would be a bug in sync state - one node thought the other had something it doesn't
-                                    assert false;
+                                sws.wire.read(controlBuffer, 0, Id.LENGTH, 0);
+                                onNack(Id.fromBytes(controlBuffer, 0));
+                                break;
+                            }
+                            case F_SESSION_ACK_BATCH:
+                            case F_SESSION_NACK_BATCH: {
+                                // F_SESSION_ACK_BATCH/F_SESSION_NACK_BATCH [length][hold][session id+]
+                                sws.wire.read(controlBuffer, 0, 4 + 4, 0);
+                                int length = WireValue.getint(controlBuffer, 0);
+                                long holdNanos = TimeUnit.MICROSECONDS.toNanos(WireValue.getint(controlBuffer, 4));
+                                if (length <= 0 || controlBuffer.length < length || holdNanos < 0L) {
+                                    throw new IOException("Protocol error.");
+                                }
+                                sws.wire.read(controlBuffer, 0, length, 0);
+                                for (int c = 0; c < length; holdNanos = -1L) {
+                                    int sessionId = 0;
+                                    int shift = 0;
+                                    int b;
+                                    do {
+                                        if (length <= c || 28 < shift) {
+                                            throw new IOException("Protocol error.");
+                                        }
+                                        b = 0xFF & controlBuffer[c++];
+                                        sessionId |= (b & 0x7F) << shift;
+                                        shift += 7;
+                                    } while (0 != (b & 0x80));
+
+                                    @Nullable Id uid = sws.sendIds.unbind(sessionId);
+                                    if (null == uid) {
+                                        NL.nl.count("node.nextop.read.unknownSessionId");
+                                    } else if (F_SESSION_ACK_BATCH == type) {
+                                        onAck(uid, holdNanos);
+                                    } else {
+                                        onNack(uid);
+                                    }
+                                }
+                                break;
+                            }
+                            case F_ACK_BATCH:
+                            case F_NACK_BATCH: {
+                                // F_ACK_BATCH/F_NACK_BATCH [count][hold][id+]
+                                sws.wire.read(controlBuffer, 0, 4 + 4, 0);
+                                int count = WireValue.getint(controlBuffer, 0);
+                                long holdNanos = TimeUnit.MICROSECONDS.toNanos(WireValue.getint(controlBuffer, 4));
+                                if (count <= 0 || MAX_ACK_BATCH < count || holdNanos < 0L) {
+                                    throw new IOException("Protocol error.");
+                                }
+                                final int bytesPerFrame = Id.LENGTH;
+                                for (int readCount; 0 < count; count -= readCount) {
+                                    readCount = Math.min(count, controlBuffer.length / bytesPerFrame);
+                                    sws.wire.read(controlBuffer, 0, readCount * bytesPerFrame, 0);
+                                    for (int k = 0; k < readCount; ++k, holdNanos = -1L) {
+                                        Id uid = Id.fromBytes(controlBuffer, k * bytesPerFrame);
+                                        if (F_ACK_BATCH == type) {
+                                            onAck(uid, holdNanos);
+                                        } else {
+                                            onNack(uid);
+                                        }
+                                    }
                                 }
-
                                 break;
                             }
                             default:
@@ -981,36 +2290,113 @@ public class NextopNode extends AbstractMessageControlNode {
             sts.membar();
         }
 
-        final class Dispatch implements Runnable {
+        /** @param holdNanos how long the other side held the ack in its batch,
+         *                  or -1 if not known (not the first in the frame). The round trip is sampled only if known */
+        private void onAck(Id uid, long holdNanos) {
+            @Nullable ChunkSizer.End end = sws.ends.remove(uid);
+            if (null != end) {
+                sws.chunkSizer.onAck(end, System.nanoTime(), holdNanos);
+            }
+
+            // remove from pending
+            sts.writePendingAck.remove(uid, MessageControlState.End.COMPLETED);
+        }
+
+        /** The other side dropped the message: a chunk conflicted, chunks were missing at the end, or it did not decode.
+         * A message pending ack is sent again. A message the writer still has (a conflict is nacked
+         * before the end) is marked for the writer, which drops the stream and sends it again (see SharedWireState#nacked).
+         * Any other nack is stale (the message already completed or was removed) and is dropped. */
+        private void onNack(Id uid) {
+            NL.nl.count("node.nextop.read.nack");
+
+            // a full id nack of a message still bound
+            sws.sendIds.unbind(uid);
+
+            @Nullable MessageControl mc;
+            synchronized (sws.nacked) {
+                // move from pending to active
+                mc = sts.writePendingAck.remove(uid, MessageControlState.End.ERROR);
+                if (null == mc && sts.writeStates.containsKey(uid)) {
+                    sws.nacked.add(uid);
+                }
+            }
+            if (null != mc) {
+                mcs.add(mc);
+            }
+        }
+
+        /** queues an ack for the writer. The writer wakes to start the batch, and again when it fills */
+        private void ack(Id id) {
+            if (sts.acks.ack(id)) {
+                mcs.wake(NextopNode.this);
+            }
+        }
+
+        private void nack(Id id) {
+            sts.acks.nack(id);
+            mcs.wake(NextopNode.this);
+        }
+
+        final class Decode extends DecodeEntry {
             final Id id;
             final MessageReadState readState;
 
-            Dispatch(Id id, MessageReadState readState) {
+            @Nullable
+            MessageControl mc = null;
+            @Nullable
+            Throwable e = null;
+
+            Decode(Id id, MessageReadState readState) {
                 this.id = id;
                 this.readState = readState;
             }
 
             @Override
-            public void run() {
+            void decode() {
+                long startNanos = System.nanoTime();
+                @Nullable Compressors c = null;
+                boolean decoded = false;
                 try {
                     WireValue pkg;
-                    if (readState.compressed) {
-                        NoCopyByteArrayOutputStream os = new NoCopyByteArrayOutputStream(1024);
-                        ByteStreams.copy(new GZIPInputStream(new ByteArrayInputStream(readState.bytes)), os);
-                        // TODO copy this if the overhead is too large (the byte buffer has padding at the end)
-                        pkg = WireValue.valueOf(os.getBytes(), os.getOffset());
+                    if (null != readState.codec) {
+                        c = compressors.poll();
+                        if (null == c) {
+                            c = new Compressors(Deflater.DEFAULT_COMPRESSION);
+                        }
+                        // parse as the bytes are decompressed; the decompressed value is never held as a whole
+                        pkg = WireValue.valueOf(new BufferedInputStream(
+                                c.get(readState.codec).decompress(new ByteArrayInputStream(readState.bytes))), readState.lut);
                     } else {
-                        pkg = WireValue.valueOf(readState.bytes);
+                        pkg = WireValue.valueOf(readState.bytes, 0, readState.lut);
                     }
 
-                    MessageControl mc = unpkg(pkg);
+                    mc = unpkg(pkg);
+                    decoded = true;
+                } catch (Throwable t) {
+                    // includes errors (e.g. a stack overflow on a deep value), so the entry still dispatches a nack
+                    e = t;
+                } finally {
+                    if (null != c) {
+                        if (decoded) {
+                            compressors.add(c);
+                        } else {
+                            // the inflater may be mid stream
+                            c.end();
+                        }
+                    }
+                }
+                NL.nl.metric("node.nextop.read.decode", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            void dispatch() {
+                if (null != mc) {
                     NL.nl.count("node.nextop.read.%s", mc.type);
                     upstream.onMessageControl(MessageControl.receive(mc.type, mc.message));
-                } catch (Exception e) {
+                } else {
                     // FIXME the nack might create an infinite retry here; think about something better
                     // FIXME possibly just ban the session since it's running an incompatible version
-                    sts.writeUrgentMessages.add(nack(id));
-                    sws.writeLooper.interrupt();
+                    nack(id);
 
                     NL.nl.unhandled("node.nextop.read", e);
                 }
@@ -1018,26 +2404,223 @@ public class NextopNode extends AbstractMessageControlNode {
         }
     }
 
-    // urgent messages
+    /** Dispatches received messages to the context thread in the order received, as they are decoded.
+     * The group of a message is not known until it is parsed, so the order is kept across all messages,
+     * which keeps the order within each group. A slow decode holds back later dispatches but not later decodes. */
+    final class DecodeQueue {
+        // in the order received. Guarded by this
+        final Deque<DecodeEntry> entries = new ArrayDeque<DecodeEntry>(8);
+
+        /** reader thread
+         * @param executor null to decode on the context thread */
+        void add(final DecodeEntry entry, @Nullable ExecutorService executor) {
+            entry.receiveNanos = System.nanoTime();
+            if (null == executor) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        entry.decode();
+                        entry.dispatch();
+                        NL.nl.metric("node.nextop.read.dispatch", System.nanoTime() - entry.receiveNanos, TimeUnit.NANOSECONDS);
+                    }
+                });
+                return;
+            }
+
+            int depth;
+            synchronized (this) {
+                entries.addLast(entry);
+                depth = entries.size();
+            }
+            NL.nl.metric("node.nextop.read.decodeQueue", depth, "messages");
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        entry.decode();
+                    } finally {
+                        // later entries wait on this one
+                        onDecoded(entry);
+                    }
+                }
+            });
+        }
 
-    static byte[] nack(Id id) {
-        // F_NACK [id]
-        byte[] nack = new byte[1 + Id.LENGTH];
-        int c = 0;
-        nack[c] = F_NACK;
-        c += 1;
-        Id.toBytes(id, nack, c);
-        return nack;
+        private void onDecoded(DecodeEntry entry) {
+            synchronized (this) {
+                entry.decoded = true;
+                // post under the lock, so the posts are in order
+                for (DecodeEntry head; null != (head = entries.peekFirst()) && head.decoded; ) {
+                    entries.removeFirst();
+                    final DecodeEntry e = head;
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            e.dispatch();
+                            NL.nl.metric("node.nextop.read.dispatch", System.nanoTime() - e.receiveNanos, TimeUnit.NANOSECONDS);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    abstract static class DecodeEntry {
+        long receiveNanos;
+        // guarded by the DecodeQueue
+        boolean decoded = false;
+
+        /** decode thread. Records a failure for dispatch rather than throwing */
+        abstract void decode();
+        /** context thread */
+        abstract void dispatch();
+    }
+
+    // transfer state
+
+    /** releases the bytes and drops the state from the journal */
+    void removeWriteState(Id id) {
+        @Nullable MessageWriteState writeState = sts.writeStates.remove(id);
+        if (null != writeState) {
+            releaseWriteState(writeState);
+        }
+    }
+
+    /** releases the bytes and drops the state from the journal. The caller removes it from the map */
+    void releaseWriteState(MessageWriteState writeState) {
+        if (null != journal) {
+            // after any pending journal write of the bytes
+            journal.removeWriteState(writeState);
+        } else {
+            writeState.bytes.release();
+        }
     }
 
-    static byte[] ack(Id id) {
-        // F_NACK [id]
-        byte[] ack = new byte[1 + Id.LENGTH];
+    void removeReadState(Id id) {
+        @Nullable MessageReadState readState = sts.readStates.remove(id);
+        if (null != readState) {
+            if (null != readState.stream) {
+                // no-op if complete
+                readState.stream.fail(new IOException("Dropped."));
+            }
+            if (null != journal) {
+                journal.removeReadState(id);
+            }
+        }
+    }
+
+    // chunk sets
+
+    /** chunk set := [CHUNK_SET_BITMAP][bitmap] | [CHUNK_SET_RUNS][run+]
+     * bitmap := bit (i % 8) of byte (i / 8) is set if chunk i is in the set
+     * run := varint count of consecutive chunks, alternating out of and in the set, starting with out.
+     * varint := 7 bits per byte, low bits first; the high bit is set on all but the last byte.
+     * Chunks are mostly received in order, so the set is usually a few runs; the bitmap bounds the worst case.
+     * @return the smaller encoding */
+    static byte[] encodeChunkSet(boolean[] chunks) {
+        final int n = chunks.length;
+        final int bitmapLength = 1 + (n + 7) / 8;
+
+        // runs, up to the size of the bitmap
+        byte[] runs = new byte[bitmapLength];
         int c = 0;
-        ack[c] = F_ACK;
+        runs[c] = CHUNK_SET_RUNS;
         c += 1;
-        Id.toBytes(id, ack, c);
-        return ack;
+        boolean in = false;
+        for (int i = 0; i < n && 0 <= c; ) {
+            int j = i;
+            while (j < n && chunks[j] == in) {
+                j += 1;
+            }
+            c = putVarint(runs, c, j - i);
+            i = j;
+            in = !in;
+        }
+        if (0 <= c) {
+            return Arrays.copyOf(runs, c);
+        }
+
+        byte[] bitmap = new byte[bitmapLength];
+        bitmap[0] = CHUNK_SET_BITMAP;
+        for (int i = 0; i < n; ++i) {
+            if (chunks[i]) {
+                bitmap[1 + i / 8] |= 1 << (i % 8);
+            }
+        }
+        return bitmap;
+    }
+
+    /** @return false if the chunk set is malformed or does not have {@code chunks.length} chunks */
+    static boolean decodeChunkSet(byte[] chunkSet, boolean[] chunks) {
+        final int n = chunks.length;
+        if (chunkSet.length < 1) {
+            return false;
+        }
+        switch (chunkSet[0]) {
+            case CHUNK_SET_BITMAP:
+                if (1 + (n + 7) / 8 != chunkSet.length) {
+                    return false;
+                }
+                for (int i = 0; i < n; ++i) {
+                    chunks[i] = 0 != (chunkSet[1 + i / 8] & (1 << (i % 8)));
+                }
+                return true;
+            case CHUNK_SET_RUNS: {
+                int i = 0;
+                boolean in = false;
+                for (int c = 1; c < chunkSet.length; ) {
+                    int run = 0;
+                    int shift = 0;
+                    int b;
+                    do {
+                        if (chunkSet.length <= c || 28 < shift) {
+                            return false;
+                        }
+                        b = 0xFF & chunkSet[c++];
+                        run |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (0 != (b & 0x80));
+                    if (run < 0 || n - i < run) {
+                        return false;
+                    }
+                    Arrays.fill(chunks, i, i + run, in);
+                    i += run;
+                    in = !in;
+                }
+                return n == i;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /** reads a varint one byte at a time. see {@link #encodeChunkSet} */
+    static int readVarint(Wire wire) throws IOException {
+        byte[] b = new byte[1];
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (28 < shift) {
+                throw new IOException("Bad varint.");
+            }
+            wire.read(b, 0, 1, 0);
+            value |= (b[0] & 0x7F) << shift;
+            if (0 == (b[0] & 0x80)) {
+                return value;
+            }
+        }
+    }
+
+    /** @return the new position, or -1 if the varint does not fit */
+    static int putVarint(byte[] bytes, int c, int value) {
+        do {
+            if (bytes.length <= c) {
+                return -1;
+            }
+            int b = value & 0x7F;
+            value >>>= 7;
+            bytes[c++] = (byte) (0 != value ? b | 0x80 : b);
+        } while (0 != value);
+        return c;
     }
 
     // message packaging
@@ -1065,7 +2648,7 @@ public class NextopNode extends AbstractMessageControlNode {
         // TODO store here until the complete/ack (so the message isn't lost)
 //        MessageControlState readPendingAck;
 
-        /** single-thread */
+        /** written by the writer; the reader checks it for nacks (see ReadLooper#onNack) */
         Map<Id, MessageWriteState> writeStates;
 
 
@@ -1074,7 +2657,7 @@ public class NextopNode extends AbstractMessageControlNode {
 
 
         /** thread-safe */
-        Queue<byte[]> writeUrgentMessages;
+        AckBatch acks;
 
 
 
@@ -1082,10 +2665,10 @@ public class NextopNode extends AbstractMessageControlNode {
             writePendingAck = new MessageControlState(context);
 //            readPendingAck = new MessageControlState(context);
 
-            writeStates = new HashMap<Id, MessageWriteState>(32);
+            writeStates = new ConcurrentHashMap<Id, MessageWriteState>(32);
             readStates = new HashMap<Id, MessageReadState>(32);
 
-            writeUrgentMessages = new ConcurrentLinkedQueue<byte[]>();
+            acks = new AckBatch();
         }
 
 
@@ -1094,21 +2677,104 @@ public class NextopNode extends AbstractMessageControlNode {
         }
     }
 
+    /** acks and nacks for the writer, coalesced into F_ACK_BATCH and F_NACK_BATCH frames.
+     * An ack waits up to FLUSH_DELAY_NANOS for others to share its frame; a nack goes out at once.
+     * Each frame carries how long its first id was held here, so the sender can take it out of the round trip.
+     * Thread-safe. */
+    static final class AckBatch {
+        static final long FLUSH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+        private List<Id> acks = new ArrayList<Id>(MAX_ACK_BATCH);
+        // when each pending ack was added, parallel to acks
+        private long[] ackNanos = new long[MAX_ACK_BATCH];
+        private List<Id> nacks = new ArrayList<Id>(4);
+
+
+        /** @return true if the writer should wake: the first pending ack starts the delay, or the batch is full */
+        synchronized boolean ack(Id id) {
+            int n = acks.size();
+            if (ackNanos.length <= n) {
+                ackNanos = Arrays.copyOf(ackNanos, 2 * ackNanos.length);
+            }
+            ackNanos[n] = System.nanoTime();
+            acks.add(id);
+            return 1 == acks.size() || MAX_ACK_BATCH == acks.size();
+        }
+
+        synchronized void nack(Id id) {
+            nacks.add(id);
+        }
+
+        /** @return nanos until the pending acks and nacks are due: 0 if due now, Long.MAX_VALUE if none */
+        synchronized long dueNanos(long nanos) {
+            if (!nacks.isEmpty() || MAX_ACK_BATCH <= acks.size()) {
+                return 0L;
+            }
+            if (acks.isEmpty()) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0L, ackNanos[0] + FLUSH_DELAY_NANOS - nanos);
+        }
+
+        synchronized Acks takeAcks() {
+            if (acks.isEmpty()) {
+                return Acks.EMPTY;
+            }
+            Acks taken = new Acks(acks, ackNanos);
+            acks = new ArrayList<Id>(MAX_ACK_BATCH);
+            ackNanos = new long[MAX_ACK_BATCH];
+            return taken;
+        }
+
+        synchronized List<Id> takeNacks() {
+            if (nacks.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Id> taken = nacks;
+            nacks = new ArrayList<Id>(4);
+            return taken;
+        }
+    }
+
+    static final class Acks {
+        static final Acks EMPTY = new Acks(Collections.<Id>emptyList(), new long[0]);
+
+        final List<Id> ids;
+        // when each id was added to the batch
+        final long[] addNanos;
+
+        Acks(List<Id> ids, long[] addNanos) {
+            this.ids = ids;
+            this.addNanos = addNanos;
+        }
+    }
+
     static final class MessageWriteState {
         final Id id;
 
-        final byte[] bytes;
-        final boolean compressed;
+        // released when the state is removed
+        final SegmentedOutputStream bytes;
+        @Nullable
+        final Codec codec;
+        // the bytes reference the session lut of the wire the state was created on
+        final boolean lut;
         // [0] is the start of the first chunk
         final int[] chunkOffsets;
         final boolean[] chunkWrites;
+        // restored from the journal and not yet opened. see RESTORE_TTL_MS
+        boolean restored = false;
+        // chunks written on any wire. see TransferJournal#MIN_CHUNKS
+        int writeCount = 0;
+        // see TransferJournal#writeState
+        boolean journaled = false;
 
 
-        MessageWriteState(Id id, byte[] bytes, int[] chunkOffsets, boolean compressed) {
+        MessageWriteState(Id id, SegmentedOutputStream bytes, int[] chunkOffsets, @Nullable Codec codec, boolean lut) {
             this.id = id;
             this.bytes = bytes;
             this.chunkOffsets = chunkOffsets;
-            this.compressed = compressed;
+            this.codec = codec;
+            this.lut = lut;
             // init all false
             chunkWrites = new boolean[chunkOffsets.length];
         }
@@ -1116,24 +2782,52 @@ public class NextopNode extends AbstractMessageControlNode {
 
     static final class MessageReadState {
         final Id id;
-        final boolean compressed;
+        @Nullable
+        final Codec codec;
+        // the lut at the start of the message. null if the message does not use the lut
+        @Nullable
+        final WireValue.SessionLutTable lut;
 
         final byte[] bytes;
         // [0] is the start of the first chunk
         final int[] chunkOffsets;
         final boolean[] chunkReads;
+        // the chunks before this are read
+        int prefixChunks = 0;
+
+        // see #getReceiveStreams
+        @Nullable
+        ReceiveStream stream = null;
+        // chunks read on any wire. see TransferJournal#MIN_CHUNKS
+        int readCount = 0;
+        // see TransferJournal#readState
+        boolean journaled = false;
 
 
-        MessageReadState(Id id, int length, int chunkCount, boolean compressed) {
+        MessageReadState(Id id, int length, int chunkCount, @Nullable Codec codec, @Nullable WireValue.SessionLutTable lut) {
             if (length < chunkCount) {
                 throw new IllegalArgumentException();
             }
             this.id = id;
-            this.compressed = compressed;
+            this.codec = codec;
+            this.lut = lut;
             bytes = new byte[length];
             chunkOffsets = new int[chunkCount];
             chunkReads = new boolean[chunkCount];
         }
+
+        boolean matches(int length, int chunkCount, @Nullable Codec codec) {
+            return bytes.length == length && chunkOffsets.length == chunkCount && this.codec == codec;
+        }
+
+        /** @return the length of the read bytes from the start */
+        int prefixLength() {
+            final int n = chunkReads.length;
+            while (prefixChunks < n && chunkReads[prefixChunks]) {
+                prefixChunks += 1;
+            }
+            return prefixChunks < n ? chunkOffsets[prefixChunks] : bytes.length;
+        }
     }
 
 
@@ -1142,13 +2836,21 @@ public class NextopNode extends AbstractMessageControlNode {
 
     // FIXME be able to transfer MessageControl not just message
 
-    /** [id][total length][total chunks][compressed] */
+    /** [stream][flags][session id][id if START_BIND][total length][total chunks]
+     * flags := (codec id << START_CODEC_SHIFT) | START_LUT | START_BIND
+     * codec id 0 is uncompressed. The writer only uses codecs the reader sent at sync.
+     * session id is a varint scoped to the wire and direction. The first start of a message binds it to the id;
+     * the acks use it. The writer binds again after the end. Sync frames use full ids, since they span wires.
+     * stream is one byte. It binds the message to the stream until the end; chunks of open streams interleave. */
     public static final byte F_MESSAGE_START = 0x01;
-    /** [chunk index][chunk offset][chunk length][data] */
+    /** [stream][chunk index][chunk offset][chunk length][data] */
     public static final byte F_MESSAGE_CHUNK = 0x02;
-    /** TODO checksum */
+    /** [stream]
+     * TODO checksum */
     public static final byte F_MESSAGE_END = 0x03;
 
+    static final int MAX_STREAMS = 0x100;
+
     /** [id]
      * ack indicates the node can remove its copy of the message. */
     static final byte F_ACK = 0x04;
@@ -1156,10 +2858,49 @@ public class NextopNode extends AbstractMessageControlNode {
      * nack indicates the node should resend its copy of the message */
     static final byte F_NACK = 0x05;
 
-    /** [frame count][frame+]
+    /** [length][definitions]
+     * adds definitions to the session lut of the wire (see {@link WireValue.SessionLut}).
+     * sent before the start of the first message that uses them. */
+    static final byte F_LUT_DEFINE = 0x06;
+
+    /** [count][hold][id+]
+     * the acks of up to MAX_ACK_BATCH messages in one frame. Supersedes F_ACK, which is still read.
+     * hold := micros the first id was held in the batch before the write (0 for nacks),
+     * which the sender takes out of its round trip sample (see ChunkSizer) */
+    static final byte F_ACK_BATCH = 0x07;
+    /** [count][hold][id+]
+     * see F_ACK_BATCH */
+    static final byte F_NACK_BATCH = 0x08;
+    static final int MAX_ACK_BATCH = 128;
+    /** [length][hold][session id+]
+     * F_ACK_BATCH with the session ids of the messages (see F_MESSAGE_START), as varints in length bytes. */
+    static final byte F_SESSION_ACK_BATCH = 0x09;
+    /** [length][hold][session id+]
+     * see F_SESSION_ACK_BATCH */
+    static final byte F_SESSION_NACK_BATCH = 0x0A;
+
+    /** the start binds the id to the session id. Later frames on the wire use the session id */
+    static final int START_BIND = 0x01;
+    /** the message references the session lut */
+    static final int START_LUT = 0x02;
+    static final int START_CODEC_SHIFT = 4;
+    static final int START_CODEC_MASK = 0xF0;
+
+    /** [frame count][codecs][frame+]
+     * codecs := mask of (1 << codec id) the sender reads
      * frame := [id] */
     static final byte F_SYNC_WRITE_STATE = 0x70;
 
+    /** [frame count][frame+]
+     * frame := [id][codec id][total length][total chunks][chunk set length][chunk set]
+     * chunk set := the chunks that were read (see {@link #encodeChunkSet}).
+     * Sent for each read state the other side has a write state for.
+     * The other side skips the read chunks if the rest of the frame matches its write state. */
+    static final byte F_SYNC_READ_STATE = 0x71;
+
+    static final byte CHUNK_SET_BITMAP = 0x00;
+    static final byte CHUNK_SET_RUNS = 0x01;
+
     /** [status]
      * status is a single byte, SYNC_STATUS_OK, SYNC_STATUS_ERROR */
     static final byte F_SYNC_END = 0x70;
@@ -1170,7 +2911,75 @@ public class NextopNode extends AbstractMessageControlNode {
 
 
     public static interface CompressionStrategy {
-        boolean isCompress(Message message);
+        /** @return the codec for the message, or null to send it uncompressed.
+         * If the other side does not read the codec, the message is sent with {@link #GZIP}. */
+        @Nullable
+        Codec getCodec(Message message);
+    }
+
+    /** A compression format for message bytes. The id goes on the wire, so it is fixed per format. */
+    public static abstract class Codec {
+        public final int id;
+        public final String name;
+
+
+        Codec(int id, String name) {
+            if (id <= 0 || (START_CODEC_MASK >>> START_CODEC_SHIFT) < id) {
+                throw new IllegalArgumentException();
+            }
+            this.id = id;
+            this.name = name;
+        }
+
+
+        /** @return state for one thread */
+        abstract Compressor newCompressor(int level);
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /** Not thread-safe. */
+    static interface Compressor {
+        /** Closing the returned stream ends the compressed stream and closes {@code out}. */
+        OutputStream compress(OutputStream out) throws IOException;
+        InputStream decompress(InputStream in) throws IOException;
+        void end();
+    }
+
+    static final class DeflateCodec extends Codec {
+        @Nullable
+        final byte[] dictionary;
+
+
+        DeflateCodec(int id, String name, @Nullable byte[] dictionary) {
+            super(id, name);
+            this.dictionary = dictionary;
+        }
+
+
+        @Override
+        Compressor newCompressor(int level) {
+            final ReusableGzip gzip = new ReusableGzip(level);
+            return new Compressor() {
+                @Override
+                public OutputStream compress(OutputStream out) {
+                    return gzip.newDeflateOutputStream(out, dictionary);
+                }
+
+                @Override
+                public InputStream decompress(InputStream in) {
+                    return gzip.newInflateInputStream(in, dictionary);
+                }
+
+                @Override
+                public void end() {
+                    gzip.end();
+                }
+            };
+        }
     }
 
 
@@ -0,0 +1,173 @@
+package io.nextop.client.node.nextop;
+
+import io.nextop.Id;
+import io.nextop.client.MessageControl;
+
+import javax.annotation.Nullable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.zip.Deflater;
+
+/** A large message as it is received, before its end (see {@link NextopNode#getReceiveStreams}).
+ * The content of the message can be read in order as the chunks arrive,
+ * e.g. to start a progressive image or an incremental parse on the first chunk.
+ * If the transfer is dropped, reads fail and a resend shows up as a new stream. */
+public final class ReceiveStream {
+    public final Id id;
+    /** of the bytes on the wire, before decompression */
+    public final int length;
+
+    @Nullable
+    final NextopNode.Codec codec;
+    final byte[] bytes;
+
+    // the bytes before this are received. Guarded by this
+    int receivedBytes = 0;
+    boolean complete = false;
+    @Nullable
+    IOException error = null;
+
+
+    ReceiveStream(Id id, @Nullable NextopNode.Codec codec, byte[] bytes) {
+        this.id = id;
+        this.length = bytes.length;
+        this.codec = codec;
+        this.bytes = bytes;
+    }
+
+
+    public synchronized int getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /** Opens the content of the message ({@link io.nextop.Message#getContent}) from the start:
+     * the bytes of a blob or image, or the utf8 bytes of a string.
+     * Blocks until the parts of the message before the content are received; reads block until the bytes are received.
+     * Each call opens an independent stream. Close it to release the decompressor.
+     * @return null if the message has no content, or content of another type */
+    @Nullable
+    public InputStream open() throws IOException {
+        InputStream in = openEncoded();
+        try {
+            @Nullable InputStream content = MessageControl.openContent(in);
+            if (null == content) {
+                in.close();
+            }
+            // closes the encoded stream
+            return content;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        } catch (RuntimeException e) {
+            in.close();
+            throw new IOException(e);
+        }
+    }
+
+    /** the encoded message after decompression, from the start */
+    InputStream openEncoded() throws IOException {
+        InputStream in = new ReceivedInputStream();
+        if (null == codec) {
+            return in;
+        }
+        final NextopNode.Compressor compressor = codec.newCompressor(Deflater.DEFAULT_COMPRESSION);
+        return new FilterInputStream(compressor.decompress(in)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    compressor.end();
+                }
+            }
+        };
+    }
+
+
+    /** reader thread */
+    synchronized void receive(int receivedBytes) {
+        if (this.receivedBytes < receivedBytes) {
+            this.receivedBytes = receivedBytes;
+            notifyAll();
+        }
+    }
+
+    /** reader thread */
+    synchronized void complete() {
+        receivedBytes = length;
+        complete = true;
+        notifyAll();
+    }
+
+    /** reader thread */
+    synchronized void fail(IOException e) {
+        if (!complete && null == error) {
+            error = e;
+            notifyAll();
+        }
+    }
+
+
+    private final class ReceivedInputStream extends InputStream {
+        int index = 0;
+
+
+        @Override
+        public int read() throws IOException {
+            if (!await()) {
+                return -1;
+            }
+            return 0xFF & bytes[index++];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (0 == len) {
+                return 0;
+            }
+            if (!await()) {
+                return -1;
+            }
+            int n;
+            synchronized (ReceiveStream.this) {
+                n = Math.min(len, receivedBytes - index);
+            }
+            System.arraycopy(bytes, index, b, off, n);
+            index += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            synchronized (ReceiveStream.this) {
+                return receivedBytes - index;
+            }
+        }
+
+        /** @return false at the end */
+        private boolean await() throws IOException {
+            synchronized (ReceiveStream.this) {
+                while (receivedBytes <= index) {
+                    if (length <= index) {
+                        return false;
+                    }
+                    if (null != error) {
+                        throw error;
+                    }
+                    try {
+                        ReceiveStream.this.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,610 @@
+package io.nextop.client.node.nextop;
+
+import io.nextop.Id;
+import io.nextop.log.NL;
+import io.nextop.util.SegmentedOutputStream;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/** An append-only file of the partial transfers of a {@link NextopNode}, so that a transfer
+ * interrupted by a process kill resumes from the chunks the other side already has
+ * (see {@link NextopNode#setTransferJournal}).
+ * Only states that do not reference the session lut are journaled; the lut does not outlive the wire.
+ * Messages of more than one chunk are encoded without the lut (see {@link NextopNode#encode}).
+ *
+ * file := [MAGIC][VERSION] [record]*
+ * record := [length][type][payload][crc32 of length, type and payload]
+ * A record with a bad crc ends the file (a write torn by the kill). The file is rewritten with just the live
+ * states on restore, and again when it grows past twice the live size.
+ *
+ * A transfer is journaled once it is past {@link #MIN_CHUNKS}.
+ * The appends and the rewrites run in order on one io thread, so the node's writer and reader never wait on the disk.
+ * Records are flushed to the OS when that thread goes idle, which survives a process kill but not a power loss. */
+public final class TransferJournal {
+    static final int MAGIC = 0x4e584a31;
+    static final byte VERSION = 1;
+
+    /** [id][codec id][chunk count][chunk offset*][length][bytes] */
+    static final byte R_WRITE_STATE = 0x01;
+    /** [id] */
+    static final byte R_REMOVE_WRITE_STATE = 0x02;
+    /** [id][codec id][length][chunk count] */
+    static final byte R_READ_STATE = 0x03;
+    /** [id][chunk index][chunk offset][chunk length][data] */
+    static final byte R_READ_CHUNK = 0x04;
+    /** [id] */
+    static final byte R_REMOVE_READ_STATE = 0x05;
+
+    /** a transfer is journaled once this many of its chunks have gone through,
+     * so a transfer that finishes in a few chunks does not touch the disk */
+    static final int MIN_CHUNKS = 4;
+    // don't compact below this size
+    static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+
+    final File file;
+
+    @Nullable
+    private DataOutputStream out = null;
+    // the current record goes through this; the crc goes straight to out
+    @Nullable
+    private DataOutputStream checked = null;
+    private final CRC32 crc = new CRC32();
+    private long length = 0L;
+
+    // the live states in the file, for the rewrite. io thread
+    private final Map<Id, NextopNode.MessageWriteState> writeStates = new LinkedHashMap<Id, NextopNode.MessageWriteState>(32);
+    private final Map<Id, NextopNode.MessageReadState> readStates = new LinkedHashMap<Id, NextopNode.MessageReadState>(32);
+    // the chunks of each read state in the file
+    private final Map<Id, BitSet> readChunks = new HashMap<Id, BitSet>(32);
+    // record bytes of each live state
+    private final Map<Id, Long> writeStateBytes = new HashMap<Id, Long>(32);
+    private final Map<Id, Long> readStateBytes = new HashMap<Id, Long>(32);
+    private long liveBytes = 0L;
+
+    @Nullable
+    private ThreadPoolExecutor ioExecutor = null;
+    private boolean closed = false;
+
+    // set on the first io error. The journal closes and the node continues in memory
+    private boolean failed = false;
+
+
+    public TransferJournal(File file) {
+        this.file = file;
+    }
+
+
+    /** Reads the journal into the maps, then rewrites it with just those states.
+     * Nothing is written to the journal before this. */
+    synchronized void restore(Map<Id, NextopNode.MessageWriteState> writeStates,
+                              Map<Id, NextopNode.MessageReadState> readStates,
+                              SegmentedOutputStream.Pool pool) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (file.exists()) {
+                read(writeStates, readStates, pool);
+            }
+            for (NextopNode.MessageWriteState writeState : writeStates.values()) {
+                writeState.journaled = true;
+                this.writeStates.put(writeState.id, writeState);
+            }
+            for (NextopNode.MessageReadState readState : readStates.values()) {
+                readState.journaled = true;
+                this.readStates.put(readState.id, readState);
+                BitSet chunks = new BitSet(readState.chunkReads.length);
+                for (int i = 0, n = readState.chunkReads.length; i < n; ++i) {
+                    if (readState.chunkReads[i]) {
+                        chunks.set(i);
+                    }
+                }
+                readChunks.put(readState.id, chunks);
+            }
+            rewrite();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Journals the state. Its bytes must not change or be released after this,
+     * except through {@link #removeWriteState}. */
+    void writeState(final NextopNode.MessageWriteState writeState) {
+        if (writeState.lut || writeState.journaled) {
+            return;
+        }
+        writeState.journaled = true;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                doWriteState(writeState);
+            }
+        });
+    }
+
+    /** Drops the state from the journal and releases its bytes, after any pending write of them. */
+    void removeWriteState(final NextopNode.MessageWriteState writeState) {
+        if (!writeState.journaled) {
+            writeState.bytes.release();
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                doRemoveWriteState(writeState.id);
+                writeState.bytes.release();
+            }
+        });
+    }
+
+    /** Journals the state and the chunks read so far. */
+    void readState(final NextopNode.MessageReadState readState) {
+        if (null != readState.lut || readState.journaled) {
+            return;
+        }
+        readState.journaled = true;
+        final BitSet chunks = new BitSet(readState.chunkReads.length);
+        for (int i = 0, n = readState.chunkReads.length; i < n; ++i) {
+            if (readState.chunkReads[i]) {
+                chunks.set(i);
+            }
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                doReadState(readState, chunks);
+            }
+        });
+    }
+
+    /** The bytes of the chunk must not change after this. */
+    void readChunk(final NextopNode.MessageReadState readState, final int chunkIndex, final int start, final int end) {
+        if (!readState.journaled) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                doReadChunk(readState, chunkIndex, start, end);
+            }
+        });
+    }
+
+    void removeReadState(final Id id) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                doRemoveReadState(id);
+            }
+        });
+    }
+
+    /** Finishes the pending appends, then closes the file. */
+    public void close() {
+        @Nullable ExecutorService e;
+        synchronized (this) {
+            closed = true;
+            e = ioExecutor;
+            ioExecutor = null;
+        }
+        if (null != e) {
+            e.shutdown();
+            try {
+                e.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            closeFile();
+        }
+    }
+
+
+    private void execute(final Runnable r) {
+        synchronized (this) {
+            if (!closed) {
+                if (null == ioExecutor) {
+                    final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+                    ioExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "TransferJournal.io");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+                final BlockingQueue<Runnable> queue = ioExecutor.getQueue();
+                ioExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        r.run();
+                        // flush a burst of appends once
+                        if (queue.isEmpty()) {
+                            flush();
+                        }
+                    }
+                });
+                return;
+            }
+        }
+        // closed; the appends are no-ops, and the releases still happen
+        r.run();
+    }
+
+    private synchronized void doWriteState(NextopNode.MessageWriteState writeState) {
+        if (null == out) {
+            return;
+        }
+        try {
+            long start = length;
+            append(writeState);
+            writeStates.put(writeState.id, writeState);
+            put(writeStateBytes, writeState.id, length - start);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void doRemoveWriteState(Id id) {
+        if (null == out || null == writeStates.remove(id)) {
+            return;
+        }
+        try {
+            appendId(R_REMOVE_WRITE_STATE, id);
+            liveBytes -= writeStateBytes.remove(id);
+            compact();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void doReadState(NextopNode.MessageReadState readState, BitSet chunks) {
+        if (null == out) {
+            return;
+        }
+        try {
+            long start = length;
+            appendReadState(readState);
+            for (int i = chunks.nextSetBit(0); 0 <= i; i = chunks.nextSetBit(i + 1)) {
+                appendReadChunk(readState, i);
+            }
+            readStates.put(readState.id, readState);
+            readChunks.put(readState.id, chunks);
+            put(readStateBytes, readState.id, length - start);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void doReadChunk(NextopNode.MessageReadState readState, int chunkIndex, int start, int end) {
+        // a removed state, or a newer state with the same id
+        if (null == out || readState != readStates.get(readState.id)) {
+            return;
+        }
+        try {
+            long s = length;
+            appendReadChunk(readState, chunkIndex, start, end);
+            readChunks.get(readState.id).set(chunkIndex);
+            put(readStateBytes, readState.id, length - s);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void doRemoveReadState(Id id) {
+        if (null == out || null == readStates.remove(id)) {
+            return;
+        }
+        try {
+            readChunks.remove(id);
+            appendId(R_REMOVE_READ_STATE, id);
+            liveBytes -= readStateBytes.remove(id);
+            compact();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void flush() {
+        if (null != out) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (null != out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                NL.nl.handled("node.nextop.journal", e);
+            }
+            out = null;
+        }
+    }
+
+
+    private void put(Map<Id, Long> stateBytes, Id id, long bytes) {
+        @Nullable Long previous = stateBytes.get(id);
+        stateBytes.put(id, null != previous ? previous + bytes : bytes);
+        liveBytes += bytes;
+    }
+
+    private void fail(IOException e) {
+        NL.nl.handled("node.nextop.journal", e);
+        failed = true;
+        closeFile();
+    }
+
+
+    /////// WRITE ///////
+
+    /** rewrites the file with just the live states once it has grown past twice their size */
+    private void compact() throws IOException {
+        if (length < MIN_COMPACT_BYTES || length < 2 * liveBytes) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        rewrite();
+        NL.nl.metric("node.nextop.journal.compact", System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void rewrite() throws IOException {
+        closeFile();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        open(tmp, false);
+        writeStateBytes.clear();
+        readStateBytes.clear();
+        liveBytes = 0L;
+        for (NextopNode.MessageWriteState writeState : writeStates.values()) {
+            long start = length;
+            append(writeState);
+            put(writeStateBytes, writeState.id, length - start);
+        }
+        for (NextopNode.MessageReadState readState : readStates.values()) {
+            long start = length;
+            appendReadState(readState);
+            BitSet chunks = readChunks.get(readState.id);
+            for (int i = chunks.nextSetBit(0); 0 <= i; i = chunks.nextSetBit(i + 1)) {
+                appendReadChunk(readState, i);
+            }
+            put(readStateBytes, readState.id, length - start);
+        }
+        closeFile();
+
+        if (!tmp.renameTo(file)) {
+            // some platforms do not replace on rename
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException(String.format("Could not replace %s", file));
+            }
+        }
+        open(file, true);
+    }
+
+    private void open(File f, boolean append) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, append), 8 * 1024));
+        if (append) {
+            length = f.length();
+        } else {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.flush();
+            length = 5;
+        }
+    }
+
+    private void append(NextopNode.MessageWriteState writeState) throws IOException {
+        int n = writeState.chunkOffsets.length;
+        int bytesLength = writeState.bytes.getLength();
+        DataOutputStream dos = startRecord(R_WRITE_STATE, Id.LENGTH + 1 + 4 + 4 * n + 4 + bytesLength);
+        writeId(dos, writeState.id);
+        dos.writeByte(null != writeState.codec ? writeState.codec.id : 0);
+        dos.writeInt(n);
+        for (int i = 0; i < n; ++i) {
+            dos.writeInt(writeState.chunkOffsets[i]);
+        }
+        dos.writeInt(bytesLength);
+        int segmentBytes = writeState.bytes.getSegmentBytes();
+        for (int i = 0, m = writeState.bytes.getSegmentCount(); i < m; ++i) {
+            dos.write(writeState.bytes.getSegment(i), 0, Math.min(segmentBytes, bytesLength - i * segmentBytes));
+        }
+        endRecord();
+    }
+
+    private void appendReadState(NextopNode.MessageReadState readState) throws IOException {
+        DataOutputStream dos = startRecord(R_READ_STATE, Id.LENGTH + 1 + 4 + 4);
+        writeId(dos, readState.id);
+        dos.writeByte(null != readState.codec ? readState.codec.id : 0);
+        dos.writeInt(readState.bytes.length);
+        dos.writeInt(readState.chunkReads.length);
+        endRecord();
+    }
+
+    /** a read chunk. Its offsets were set before it was queued */
+    private void appendReadChunk(NextopNode.MessageReadState readState, int chunkIndex) throws IOException {
+        int n = readState.chunkOffsets.length;
+        int end = chunkIndex + 1 < n ? readState.chunkOffsets[chunkIndex + 1] : readState.bytes.length;
+        appendReadChunk(readState, chunkIndex, readState.chunkOffsets[chunkIndex], end);
+    }
+
+    private void appendReadChunk(NextopNode.MessageReadState readState, int chunkIndex, int start, int end) throws IOException {
+        DataOutputStream dos = startRecord(R_READ_CHUNK, Id.LENGTH + 4 + 4 + 4 + (end - start));
+        writeId(dos, readState.id);
+        dos.writeInt(chunkIndex);
+        dos.writeInt(start);
+        dos.writeInt(end - start);
+        dos.write(readState.bytes, start, end - start);
+        endRecord();
+    }
+
+    private void appendId(byte type, Id id) throws IOException {
+        DataOutputStream dos = startRecord(type, Id.LENGTH);
+        writeId(dos, id);
+        endRecord();
+    }
+
+    private DataOutputStream startRecord(byte type, int payloadLength) throws IOException {
+        crc.reset();
+        checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+        checked.writeInt(1 + payloadLength);
+        checked.writeByte(type);
+        length += 4 + 1 + payloadLength + 4;
+        return checked;
+    }
+
+    private void endRecord() throws IOException {
+        // the data stream does not buffer, so the record is in out
+        out.writeInt((int) crc.getValue());
+        checked = null;
+    }
+
+    private static void writeId(DataOutputStream dos, Id id) throws IOException {
+        byte[] bytes = new byte[Id.LENGTH];
+        Id.toBytes(id, bytes, 0);
+        dos.write(bytes);
+    }
+
+
+    /////// READ ///////
+
+    private void read(Map<Id, NextopNode.MessageWriteState> writeStates,
+                      Map<Id, NextopNode.MessageReadState> readStates,
+                      SegmentedOutputStream.Pool pool) throws IOException {
+        long fileLength = file.length();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8 * 1024));
+        try {
+            if (fileLength < 5 || MAGIC != dis.readInt() || VERSION != dis.readByte()) {
+                // unknown format; start over
+                return;
+            }
+            long position = 5;
+
+            byte[] header = new byte[4];
+            while (position + 4 + 1 + 4 <= fileLength) {
+                dis.readFully(header);
+                int recordLength = ByteBuffer.wrap(header).getInt();
+                if (recordLength <= 0 || fileLength < position + 4 + recordLength + 4) {
+                    // torn
+                    break;
+                }
+                byte[] record = new byte[recordLength];
+                dis.readFully(record);
+                int recordCrc = dis.readInt();
+
+                crc.reset();
+                crc.update(header);
+                crc.update(record);
+                if (recordCrc != (int) crc.getValue()) {
+                    // torn
+                    break;
+                }
+                position += 4 + recordLength + 4;
+
+                try {
+                    apply(ByteBuffer.wrap(record), writeStates, readStates, pool);
+                } catch (RuntimeException e) {
+                    // a record that does not fit the states; skip it
+                    NL.nl.handled("node.nextop.journal", e);
+                }
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    private static void apply(ByteBuffer bb, Map<Id, NextopNode.MessageWriteState> writeStates,
+                              Map<Id, NextopNode.MessageReadState> readStates,
+                              SegmentedOutputStream.Pool pool) {
+        byte type = bb.get();
+        Id id = readId(bb);
+        switch (type) {
+            case R_WRITE_STATE: {
+                @Nullable NextopNode.Codec codec = codec(bb.get());
+                int n = bb.getInt();
+                int[] chunkOffsets = new int[n];
+                for (int i = 0; i < n; ++i) {
+                    chunkOffsets[i] = bb.getInt();
+                }
+                int bytesLength = bb.getInt();
+                SegmentedOutputStream bytes = new SegmentedOutputStream(pool);
+                bytes.write(bb.array(), bb.arrayOffset() + bb.position(), bytesLength);
+
+                NextopNode.MessageWriteState writeState = new NextopNode.MessageWriteState(id, bytes, chunkOffsets, codec, false);
+                writeState.restored = true;
+                @Nullable NextopNode.MessageWriteState previous = writeStates.put(id, writeState);
+                if (null != previous) {
+                    previous.bytes.release();
+                }
+                break;
+            }
+            case R_REMOVE_WRITE_STATE: {
+                @Nullable NextopNode.MessageWriteState writeState = writeStates.remove(id);
+                if (null != writeState) {
+                    writeState.bytes.release();
+                }
+                break;
+            }
+            case R_READ_STATE: {
+                @Nullable NextopNode.Codec codec = codec(bb.get());
+                int length = bb.getInt();
+                int chunkCount = bb.getInt();
+                readStates.put(id, new NextopNode.MessageReadState(id, length, chunkCount, codec, null));
+                break;
+            }
+            case R_READ_CHUNK: {
+                @Nullable NextopNode.MessageReadState readState = readStates.get(id);
+                if (null != readState) {
+                    int chunkIndex = bb.getInt();
+                    int start = bb.getInt();
+                    int chunkLength = bb.getInt();
+                    int end = start + chunkLength;
+                    bb.get(readState.bytes, start, chunkLength);
+                    readState.chunkReads[chunkIndex] = true;
+                    readState.chunkOffsets[chunkIndex] = start;
+                    if (chunkIndex + 1 < readState.chunkOffsets.length) {
+                        readState.chunkOffsets[chunkIndex + 1] = end;
+                    }
+                }
+                break;
+            }
+            case R_REMOVE_READ_STATE:
+                readStates.remove(id);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown record %d", type));
+        }
+    }
+
+    @Nullable
+    private static NextopNode.Codec codec(byte codecId) {
+        if (0 == codecId) {
+            return null;
+        }
+        if (codecId < 0 || NextopNode.CODECS.length <= codecId || null == NextopNode.CODECS[codecId]) {
+            throw new IllegalArgumentException(String.format("Unknown codec %d", codecId));
+        }
+        return NextopNode.CODECS[codecId];
+    }
+
+    private static Id readId(ByteBuffer bb) {
+        byte[] bytes = new byte[Id.LENGTH];
+        bb.get(bytes);
+        return Id.fromBytes(bytes, 0);
+    }
+}
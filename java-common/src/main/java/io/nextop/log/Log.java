@@ -77,6 +77,9 @@ public interface Log {
 
         // convert to this unit from "source"
         public long convert(long sourceValue, Unit sourceUnit) {
+            if (name.equals(sourceUnit.name)) {
+                return sourceValue;
+            }
             throw new UnsupportedOperationException();
         }
 
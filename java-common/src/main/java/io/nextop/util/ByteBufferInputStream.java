@@ -0,0 +1,64 @@
+package io.nextop.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Reads the remaining bytes of a buffer (heap or direct).
+ * Reads advance the position of the buffer. */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+
+    /////// InputStream ///////
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return 0xFF & buffer.get();
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (bytes.length < offset + length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (0 == length) {
+            return 0;
+        }
+        int n = Math.min(length, buffer.remaining());
+        if (n <= 0) {
+            return -1;
+        }
+        buffer.get(bytes, offset, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int k = (int) Math.min(Math.max(0L, n), buffer.remaining());
+        buffer.position(buffer.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        // Do nothing
+    }
+}
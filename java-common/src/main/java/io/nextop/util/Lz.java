@@ -0,0 +1,367 @@
+package io.nextop.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/** A fast LZ77 codec in the style of LZ4. It trades ratio for cpu; use it where deflate costs too much.
+ *
+ * stream := [block]* [0 2 bytes]
+ * block := [raw length 2 bytes][stored length 2 bytes][stored bytes]
+ * If stored length equals raw length, the block is stored as-is. Otherwise it is a list of sequences:
+ * sequence := [token][literal length ext*][literals][offset 2 bytes][match length ext*]
+ * token := [literal length 4 bits][match length - MIN_MATCH 4 bits]
+ * A length of 15 in the token continues into ext bytes, which add until a byte less than 255.
+ * The last sequence of a block has only literals. Matches do not cross blocks.
+ * All integers are little-endian.
+ *
+ * Not thread-safe: at most one output stream and one input stream are in use at a time. */
+public final class Lz {
+    static final int BLOCK_BYTES = 0x8000;
+    static final int MIN_MATCH = 4;
+
+    private static final int HASH_BITS = 12;
+    // the search step grows by one for each 2^SKIP_SHIFT bytes without a match
+    private static final int SKIP_SHIFT = 6;
+
+
+    // allocated on first use
+    private int[] table = null;
+    private byte[] outBlock = null;
+    private byte[] outStored = null;
+    private byte[] inBlock = null;
+    private byte[] inStored = null;
+
+
+    /** Close writes the end of the stream and closes {@code out}. */
+    public OutputStream newOutputStream(OutputStream out) {
+        if (null == table) {
+            table = new int[1 << HASH_BITS];
+            outBlock = new byte[BLOCK_BYTES];
+            outStored = new byte[BLOCK_BYTES];
+        }
+        return new LzOutputStream(out);
+    }
+
+    public InputStream newInputStream(InputStream in) {
+        if (null == inBlock) {
+            inBlock = new byte[BLOCK_BYTES];
+            inStored = new byte[BLOCK_BYTES];
+        }
+        return new LzInputStream(in);
+    }
+
+
+    /** @return the stored length, or -1 if the block does not compress to fewer than {@code n} bytes */
+    static int compress(byte[] src, int n, byte[] dst, int[] table) {
+        Arrays.fill(table, -1);
+
+        // stored must be less than raw
+        final int dmax = n - 1;
+        final int limit = n - MIN_MATCH;
+
+        int d = 0;
+        int anchor = 0;
+        int i = 0;
+        while (i <= limit) {
+            int seq = getIntLe(src, i);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = i;
+            if (0 <= ref && i - ref <= 0xFFFF && getIntLe(src, ref) == seq) {
+                int length = MIN_MATCH;
+                while (i + length < n && src[ref + length] == src[i + length]) {
+                    length += 1;
+                }
+                d = putSequence(src, anchor, i - anchor, i - ref, length, dst, d, dmax);
+                if (d < 0) {
+                    return -1;
+                }
+                i += length;
+                anchor = i;
+            } else {
+                i += 1 + ((i - anchor) >>> SKIP_SHIFT);
+            }
+        }
+        return putSequence(src, anchor, n - anchor, 0, 0, dst, d, dmax);
+    }
+
+    /** @param matchLength 0 for the last sequence, which has no match
+     * @return the new position in {@code dst}, or -1 if it would pass {@code dmax} */
+    private static int putSequence(byte[] src, int offset, int literalLength, int matchOffset, int matchLength,
+                                   byte[] dst, int d, int dmax) {
+        int m = 0 < matchLength ? matchLength - MIN_MATCH : 0;
+        int needed = 1 + literalLength + literalLength / 255 + 1 + (0 < matchLength ? 2 + m / 255 + 1 : 0);
+        if (dmax < d + needed) {
+            return -1;
+        }
+
+        dst[d++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(m, 15));
+        d = putExt(literalLength, dst, d);
+        System.arraycopy(src, offset, dst, d, literalLength);
+        d += literalLength;
+        if (0 < matchLength) {
+            dst[d++] = (byte) matchOffset;
+            dst[d++] = (byte) (matchOffset >>> 8);
+            d = putExt(m, dst, d);
+        }
+        return d;
+    }
+
+    private static int putExt(int length, byte[] dst, int d) {
+        if (15 <= length) {
+            for (length -= 15; 255 <= length; length -= 255) {
+                dst[d++] = (byte) 255;
+            }
+            dst[d++] = (byte) length;
+        }
+        return d;
+    }
+
+    /** @return the raw length */
+    static int decompress(byte[] src, int n, byte[] dst) throws ZipException {
+        int s = 0;
+        int d = 0;
+        try {
+            while (true) {
+                int token = 0xFF & src[s++];
+
+                int literalLength = token >>> 4;
+                if (15 == literalLength) {
+                    int b;
+                    do {
+                        b = 0xFF & src[s++];
+                        literalLength += b;
+                    } while (255 == b);
+                }
+                if (n < s + literalLength) {
+                    throw new ZipException("Corrupt LZ block");
+                }
+                System.arraycopy(src, s, dst, d, literalLength);
+                s += literalLength;
+                d += literalLength;
+
+                if (n == s) {
+                    return d;
+                }
+
+                int matchOffset = (0xFF & src[s]) | ((0xFF & src[s + 1]) << 8);
+                s += 2;
+                int matchLength = token & 0x0F;
+                if (15 == matchLength) {
+                    int b;
+                    do {
+                        b = 0xFF & src[s++];
+                        matchLength += b;
+                    } while (255 == b);
+                }
+                matchLength += MIN_MATCH;
+
+                int ref = d - matchOffset;
+                if (0 == matchOffset || ref < 0 || dst.length < d + matchLength) {
+                    throw new ZipException("Corrupt LZ block");
+                }
+                // the match can overlap the bytes it produces
+                for (int k = 0; k < matchLength; ++k) {
+                    dst[d + k] = dst[ref + k];
+                }
+                d += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new ZipException("Corrupt LZ block");
+        }
+    }
+
+
+    private final class LzOutputStream extends OutputStream {
+        final OutputStream out;
+        final byte[] header = new byte[4];
+        int length = 0;
+        boolean closed = false;
+
+
+        LzOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            if (BLOCK_BYTES == length) {
+                writeBlock();
+            }
+            outBlock[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int n) throws IOException {
+            if (bytes.length < offset + n) {
+                throw new IndexOutOfBoundsException();
+            }
+            while (0 < n) {
+                if (BLOCK_BYTES == length) {
+                    writeBlock();
+                }
+                int k = Math.min(n, BLOCK_BYTES - length);
+                System.arraycopy(bytes, offset, outBlock, length, k);
+                length += k;
+                offset += k;
+                n -= k;
+            }
+        }
+
+        /** Ends the current block early. */
+        @Override
+        public void flush() throws IOException {
+            if (0 < length) {
+                writeBlock();
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                if (0 < length) {
+                    writeBlock();
+                }
+                header[0] = 0;
+                header[1] = 0;
+                out.write(header, 0, 2);
+                out.close();
+            }
+        }
+
+
+        private void writeBlock() throws IOException {
+            int storedLength = compress(outBlock, length, outStored, table);
+            if (storedLength < 0) {
+                putShortLe(header, 0, length);
+                putShortLe(header, 2, length);
+                out.write(header);
+                out.write(outBlock, 0, length);
+            } else {
+                putShortLe(header, 0, length);
+                putShortLe(header, 2, storedLength);
+                out.write(header);
+                out.write(outStored, 0, storedLength);
+            }
+            length = 0;
+        }
+    }
+
+    private final class LzInputStream extends InputStream {
+        final InputStream in;
+        final byte[] header = new byte[4];
+        int position = 0;
+        int length = 0;
+        boolean eos = false;
+
+
+        LzInputStream(InputStream in) {
+            this.in = in;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return 0xFF & inBlock[position++];
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int n) throws IOException {
+            if (bytes.length < offset + n) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (0 == n) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int k = Math.min(n, length - position);
+            System.arraycopy(inBlock, position, bytes, offset, k);
+            position += k;
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+
+        /** @return false at the end of the stream */
+        private boolean fill() throws IOException {
+            while (position == length) {
+                if (eos) {
+                    return false;
+                }
+                readFully(in, header, 0, 2);
+                int rawLength = getShortLe(header, 0);
+                if (0 == rawLength) {
+                    eos = true;
+                    return false;
+                }
+                readFully(in, header, 2, 2);
+                int storedLength = getShortLe(header, 2);
+                if (BLOCK_BYTES < rawLength || rawLength < storedLength) {
+                    throw new ZipException("Corrupt LZ block");
+                }
+                if (storedLength == rawLength) {
+                    readFully(in, inBlock, 0, rawLength);
+                } else {
+                    readFully(in, inStored, 0, storedLength);
+                    if (rawLength != decompress(inStored, storedLength, inBlock)) {
+                        throw new ZipException("Corrupt LZ block");
+                    }
+                }
+                position = 0;
+                length = rawLength;
+            }
+            return true;
+        }
+    }
+
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int getIntLe(byte[] bytes, int offset) {
+        return (0xFF & bytes[offset])
+                | ((0xFF & bytes[offset + 1]) << 8)
+                | ((0xFF & bytes[offset + 2]) << 16)
+                | ((0xFF & bytes[offset + 3]) << 24);
+    }
+
+    private static int getShortLe(byte[] bytes, int offset) {
+        return (0xFF & bytes[offset]) | ((0xFF & bytes[offset + 1]) << 8);
+    }
+
+    private static void putShortLe(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int offset, int n) throws IOException {
+        for (int k; 0 < n; offset += k, n -= k) {
+            k = in.read(bytes, offset, n);
+            if (k < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
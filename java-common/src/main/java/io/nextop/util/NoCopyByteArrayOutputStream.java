@@ -40,6 +40,11 @@ public class NoCopyByteArrayOutputStream extends OutputStream {
         return bufferHead - bufferOffset;
     }
 
+    /** Drops the bytes written so far. The buffer is kept. */
+    public void reset() {
+        bufferHead = bufferOffset;
+    }
+
     public byte[] toByteArray() {
         int n = bufferHead - bufferOffset;
         byte[] copy = new byte[n];
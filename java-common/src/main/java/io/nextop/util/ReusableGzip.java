@@ -0,0 +1,249 @@
+package io.nextop.util;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/** gzip (RFC 1952) and raw deflate (RFC 1951) streams over one reused {@link Deflater} and {@link Inflater}.
+ * The gzip format is the same as {@link java.util.zip.GZIPOutputStream}/{@link java.util.zip.GZIPInputStream},
+ * without allocating native compressor state per stream.
+ * Not thread-safe: at most one output stream and one input stream are in use at a time. */
+public final class ReusableGzip {
+    private static final int MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int BUFFER_BYTES = 8 * 1024;
+
+    private static final byte[] HEADER = {
+            (byte) MAGIC, (byte) (MAGIC >>> 8), Deflater.DEFLATED,
+            0, 0, 0, 0, 0, 0, 0
+    };
+
+
+    private final int level;
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+
+
+    public ReusableGzip() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ReusableGzip(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || Deflater.BEST_COMPRESSION < level) {
+            throw new IllegalArgumentException();
+        }
+        this.level = level;
+    }
+
+
+    public int getLevel() {
+        return level;
+    }
+
+    /** {@link DeflaterOutputStream#finish} writes the trailer. Close closes {@code out}. */
+    public DeflaterOutputStream newOutputStream(OutputStream out) throws IOException {
+        if (null == deflater) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.reset();
+        }
+        return new GzipOutputStream(out, deflater);
+    }
+
+    /** Reads one gzip member. The trailer is checked when the end of the member is read. */
+    public InflaterInputStream newInputStream(InputStream in) throws IOException {
+        if (null == inflater) {
+            inflater = new Inflater(true);
+        } else {
+            inflater.reset();
+        }
+        return new GzipInputStream(in, inflater);
+    }
+
+    /** Raw deflate, with no header or trailer. Close finishes the stream and closes {@code out}.
+     * @param dictionary preset dictionary. The reader must use the same dictionary. */
+    public DeflaterOutputStream newDeflateOutputStream(OutputStream out, @Nullable byte[] dictionary) {
+        if (null == deflater) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.reset();
+        }
+        if (null != dictionary) {
+            deflater.setDictionary(dictionary);
+        }
+        return new DeflaterOutputStream(out, deflater, BUFFER_BYTES);
+    }
+
+    /** Reads a stream written by {@link #newDeflateOutputStream}. */
+    public InflaterInputStream newInflateInputStream(InputStream in, @Nullable byte[] dictionary) {
+        if (null == inflater) {
+            inflater = new Inflater(true);
+        } else {
+            inflater.reset();
+        }
+        if (null != dictionary) {
+            inflater.setDictionary(dictionary);
+        }
+        return new InflaterInputStream(in, inflater, BUFFER_BYTES);
+    }
+
+    /** Releases the native state. */
+    public void end() {
+        if (null != deflater) {
+            deflater.end();
+            deflater = null;
+        }
+        if (null != inflater) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+
+    private static final class GzipOutputStream extends DeflaterOutputStream {
+        private final CRC32 crc = new CRC32();
+        private boolean finished = false;
+
+
+        GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, deflater, BUFFER_BYTES);
+            out.write(HEADER);
+        }
+
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            super.write(bytes, offset, length);
+            crc.update(bytes, offset, length);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!finished) {
+                finished = true;
+                super.finish();
+                byte[] trailer = new byte[8];
+                putIntLe(trailer, 0, (int) crc.getValue());
+                putIntLe(trailer, 4, def.getTotalIn());
+                out.write(trailer);
+            }
+        }
+    }
+
+    private static final class GzipInputStream extends InflaterInputStream {
+        private final CRC32 crc = new CRC32();
+        private boolean eos = false;
+
+
+        GzipInputStream(InputStream in, Inflater inflater) throws IOException {
+            super(in, inflater, BUFFER_BYTES);
+            readHeader();
+        }
+
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (eos) {
+                return -1;
+            }
+            int n = super.read(bytes, offset, length);
+            if (n < 0) {
+                eos = true;
+                readTrailer();
+            } else {
+                crc.update(bytes, offset, n);
+            }
+            return n;
+        }
+
+
+        private void readHeader() throws IOException {
+            if (MAGIC != readShortLe(in)) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (Deflater.DEFLATED != readByte(in)) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readByte(in);
+            // mtime, xfl, os
+            skipFully(in, 6);
+            if (0 != (flags & FEXTRA)) {
+                skipFully(in, readShortLe(in));
+            }
+            if (0 != (flags & FNAME)) {
+                while (0 != readByte(in)) {
+                }
+            }
+            if (0 != (flags & FCOMMENT)) {
+                while (0 != readByte(in)) {
+                }
+            }
+            if (0 != (flags & FHCRC)) {
+                skipFully(in, 2);
+            }
+        }
+
+        private void readTrailer() throws IOException {
+            // the start of the trailer may already be in the input buffer
+            byte[] trailer = new byte[8];
+            int n = Math.min(8, inf.getRemaining());
+            System.arraycopy(buf, len - inf.getRemaining(), trailer, 0, n);
+            for (int k; n < 8; n += k) {
+                k = in.read(trailer, n, 8 - n);
+                if (k < 0) {
+                    throw new EOFException();
+                }
+            }
+            if (getIntLe(trailer, 0) != (int) crc.getValue()
+                    || getIntLe(trailer, 4) != inf.getTotalOut()) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+    }
+
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static int readShortLe(InputStream in) throws IOException {
+        return readByte(in) | (readByte(in) << 8);
+    }
+
+    private static void skipFully(InputStream in, int n) throws IOException {
+        for (int i = 0; i < n; ++i) {
+            readByte(in);
+        }
+    }
+
+    private static void putIntLe(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int getIntLe(byte[] bytes, int offset) {
+        return (0xFF & bytes[offset])
+                | ((0xFF & bytes[offset + 1]) << 8)
+                | ((0xFF & bytes[offset + 2]) << 16)
+                | ((0xFF & bytes[offset + 3]) << 24);
+    }
+}
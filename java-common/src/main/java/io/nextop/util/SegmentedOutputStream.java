@@ -0,0 +1,195 @@
+package io.nextop.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/** Writes into fixed-size segments taken from a {@link Pool}.
+ * There is no size ceiling and bytes are never moved once written.
+ * {@link #release} returns the segments to the pool. */
+public class SegmentedOutputStream extends OutputStream {
+
+    /** thread-safe */
+    public static final class Pool {
+        private final int segmentBytes;
+        private final int maxIdleCount;
+        private final Deque<byte[]> idle;
+
+
+        /** @param maxIdleCount the number of released segments held for reuse.
+         *                     Segments released past this are left to the gc. */
+        public Pool(int segmentBytes, int maxIdleCount) {
+            if (segmentBytes <= 0 || maxIdleCount < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.segmentBytes = segmentBytes;
+            this.maxIdleCount = maxIdleCount;
+            idle = new ArrayDeque<byte[]>(Math.min(maxIdleCount, 64));
+        }
+
+
+        public int getSegmentBytes() {
+            return segmentBytes;
+        }
+
+        public synchronized int getIdleCount() {
+            return idle.size();
+        }
+
+        public synchronized byte[] take() {
+            byte[] segment = idle.pollFirst();
+            return null != segment ? segment : new byte[segmentBytes];
+        }
+
+        public synchronized void recycle(byte[] segment) {
+            if (segmentBytes != segment.length) {
+                throw new IllegalArgumentException();
+            }
+            if (idle.size() < maxIdleCount) {
+                idle.addFirst(segment);
+            }
+        }
+    }
+
+
+    private final Pool pool;
+    private final int segmentBytes;
+    private final List<byte[]> segments = new ArrayList<byte[]>(4);
+    private int length = 0;
+    private boolean released = false;
+
+    private final byte[] one = new byte[1];
+
+
+    public SegmentedOutputStream(Pool pool) {
+        this.pool = pool;
+        segmentBytes = pool.getSegmentBytes();
+    }
+
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** Segment {@code i} holds bytes {@code [i * segmentBytes, min(length, (i + 1) * segmentBytes))}. */
+    public byte[] getSegment(int i) {
+        if (released) {
+            throw new IllegalStateException();
+        }
+        return segments.get(i);
+    }
+
+    public InputStream toInputStream() {
+        if (released) {
+            throw new IllegalStateException();
+        }
+        return new SegmentInputStream();
+    }
+
+    /** Returns the segments to the pool. The stream can't be used after this. */
+    public void release() {
+        if (!released) {
+            released = true;
+            for (byte[] segment : segments) {
+                pool.recycle(segment);
+            }
+            segments.clear();
+        }
+    }
+
+
+    /////// OutputStream ///////
+
+    @Override
+    public void write(int b) {
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int n) {
+        if (bytes.length < offset + n) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (released) {
+            throw new IllegalStateException();
+        }
+        while (0 < n) {
+            int i = length % segmentBytes;
+            if (0 == i && segments.size() * segmentBytes == length) {
+                segments.add(pool.take());
+            }
+            int k = Math.min(n, segmentBytes - i);
+            System.arraycopy(bytes, offset, segments.get(segments.size() - 1), i, k);
+            offset += k;
+            n -= k;
+            length += k;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Do nothing
+    }
+
+    @Override
+    public void close() {
+        // Do nothing; see #release
+    }
+
+
+    private final class SegmentInputStream extends InputStream {
+        int position = 0;
+
+
+        @Override
+        public int read() throws IOException {
+            if (length <= position) {
+                return -1;
+            }
+            int b = 0xFF & getSegment(position / segmentBytes)[position % segmentBytes];
+            position += 1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int n) throws IOException {
+            if (bytes.length < offset + n) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (0 == n) {
+                return 0;
+            }
+            if (length <= position) {
+                return -1;
+            }
+            int i = position % segmentBytes;
+            int k = Math.min(n, Math.min(segmentBytes - i, length - position));
+            System.arraycopy(getSegment(position / segmentBytes), i, bytes, offset, k);
+            position += k;
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return length - position;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import rx.subjects.BehaviorSubject;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 import java.util.Queue;
@@ -126,6 +127,11 @@ public final class Pipe {
             out.write(buffer, offset, length, messageBoundary);
         }
 
+        @Override
+        public void write(ByteBuffer[] buffers, int messageBoundary) throws IOException {
+            out.write(buffers, messageBoundary);
+        }
+
         @Override
         public void flush() throws IOException {
             out.flush();
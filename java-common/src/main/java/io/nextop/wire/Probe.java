@@ -1,8 +1,10 @@
 package io.nextop.wire;
 
 import io.nextop.Wire;
+import io.nextop.Wires;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 
 public class Probe implements Wire.Adapter {
@@ -115,6 +117,18 @@ public class Probe implements Wire.Adapter {
             }
         }
         @Override
+        public void write(ByteBuffer[] buffers, int messageBoundary) throws IOException {
+            try {
+                long length = Wires.remaining(buffers);
+                impl.write(buffers, messageBoundary);
+                synchronized (mutex) {
+                    writeBytes += length;
+                }
+            } catch (IOException e) {
+                error(e);
+            }
+        }
+        @Override
         public void flush() throws IOException {
             try {
                 impl.flush();
@@ -7,6 +7,7 @@ import rx.functions.Action0;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -165,6 +166,14 @@ public class Throttle implements Wire.Adapter {
             }
         }
         @Override
+        public void write(ByteBuffer[] buffers, int messageBoundary) throws IOException {
+            try {
+                impl.write(buffers, messageBoundary);
+            } finally {
+                destroy();
+            }
+        }
+        @Override
         public void flush() throws IOException {
             try {
                 impl.flush();
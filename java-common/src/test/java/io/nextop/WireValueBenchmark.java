@@ -132,4 +132,51 @@ public class WireValueBenchmark extends TestCase {
 
     }
 
+
+    // LutMode.VALUE vs LutMode.NONE encode time (and size, before and after gzip)
+    public void testEncodeTime1() throws Exception {
+        Random r = new Random();
+
+        // api-response shaped: a list of records that share a keyset
+        List<WireValue> list = new ArrayList<WireValue>(512);
+        for (int i = 0; i < 512; ++i) {
+            Map<WireValue, WireValue> m = new HashMap<WireValue, WireValue>(8);
+            m.put(WireValue.of("id"), WireValue.of(r.nextLong()));
+            m.put(WireValue.of("name"), WireValue.of(Long.toHexString(r.nextLong())));
+            m.put(WireValue.of("score"), WireValue.of(r.nextDouble()));
+            m.put(WireValue.of("active"), WireValue.of(r.nextBoolean()));
+            m.put(WireValue.of("tags"), WireValue.of(Arrays.asList(WireValue.of("a"), WireValue.of("b"))));
+            list.add(WireValue.of(m));
+        }
+        WireValue value = WireValue.of(list);
+
+        ByteBuffer bb = ByteBuffer.allocate(1024 * 1024);
+
+        int warmup = 200;
+        int n = 200;
+        for (WireValue.LutMode lutMode : new WireValue.LutMode[]{WireValue.LutMode.VALUE, WireValue.LutMode.NONE}) {
+            for (int i = 0; i < warmup; ++i) {
+                bb.clear();
+                value.toBytes(bb, null, lutMode);
+            }
+            long t = System.nanoTime();
+            for (int i = 0; i < n; ++i) {
+                bb.clear();
+                value.toBytes(bb, null, lutMode);
+            }
+            long nanos = (System.nanoTime() - t) / n;
+            bb.flip();
+            int bytes = bb.remaining();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            GZIPOutputStream gzos = new GZIPOutputStream(baos);
+            Channels.newChannel(gzos).write(bb);
+            gzos.finish();
+            gzos.close();
+
+            System.out.printf("%s %.3fms %d bytes (c %d bytes)\n", lutMode, (nanos / 1000) / 1000.f,
+                    bytes, baos.size());
+        }
+    }
+
 }
@@ -1,11 +1,20 @@
 package io.nextop;
 
+import com.google.common.io.ByteStreams;
 import com.google.gson.*;
 import io.nextop.util.HexBytes;
+import io.nextop.util.NoCopyByteArrayOutputStream;
+import io.nextop.util.SegmentedOutputStream;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -52,6 +61,13 @@ public class WireValueTest extends TestCase {
             assertEquals(in, out);
             assertEquals(in.toJson(), out.toJson());
             assertEquals(in.toText(), out.toText());
+
+            // later changes to the source map don't reach the value
+            valueMap.put(WireValue.of(randomString(r, 8) + " added"), WireValue.of(m));
+            bb.clear();
+            in.toBytes(bb);
+            bb.flip();
+            assertEquals(out, WireValue.valueOf(bb));
         }
 
 
@@ -127,6 +143,347 @@ public class WireValueTest extends TestCase {
         }
     }
 
+    public void testJsonTranscode() throws Exception {
+        Random r = new Random();
+        for (int i = 0; i < 16; ++i) {
+            String json = randomJson(r, 6).toString();
+            WireValue v = WireValue.transcodeJson(new StringReader(json));
+            assertEquals(WireValue.valueOfJson(json), v);
+            // back to json, from the bytes
+            assertEquals(v, WireValue.transcodeJson(new StringReader(v.toJson())));
+        }
+
+        WireValue v = WireValue.transcodeJson(new StringReader("{\"b\": null, \"a\": [1, 2.5, {\"c\": \"\u00e9\"}]}"));
+        assertEquals(WireValue.Type.NULL, v.asMap().get(WireValue.of("b")).getType());
+        // key order is kept
+        assertEquals("{\"b\":null,\"a\":[1,2.5,{\"c\":\"\u00e9\"}]}", v.toJson());
+
+        try {
+            WireValue.transcodeJson(new StringReader("{\"a\": 1, \"a\": 2}"));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    public void testStreamCodec() throws Exception {
+        Random r = new Random();
+        ByteBuffer bb = ByteBuffer.allocate(8 * 1024 * 1024);
+        ByteBuffer dbb = ByteBuffer.allocateDirect(8 * 1024 * 1024);
+        for (int i = 0; i < 8; ++i) {
+            WireValue v = WireValue.of(randomJson(r, 5));
+
+            bb.clear();
+            v.toBytes(bb);
+            bb.flip();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+
+            // trailing bytes must not be consumed
+            ByteArrayInputStream is = new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length + 3));
+            assertEquals(v, WireValue.valueOf(is));
+            assertEquals(3, is.available());
+
+            dbb.clear();
+            dbb.put(bytes);
+            dbb.flip();
+            assertEquals(v, WireValue.valueOf(dbb));
+            assertEquals(0, dbb.remaining());
+        }
+
+        Message m = randomMessage(r);
+        bb.clear();
+        WireValue.of(m).toBytes(bb);
+        bb.flip();
+        byte[] bytes = new byte[bb.remaining()];
+        bb.get(bytes);
+        assertEquals(m, WireValue.valueOf(new ByteArrayInputStream(bytes)).asMessage());
+    }
+
+
+    public void testBufferView() throws Exception {
+        Random r = new Random();
+        ByteBuffer bb = ByteBuffer.allocate(8 * 1024 * 1024);
+        ByteBuffer dbb = ByteBuffer.allocateDirect(8 * 1024 * 1024);
+        for (int i = 0; i < 8; ++i) {
+            Map<String, Object> map = new HashMap<String, Object>(4);
+            map.put("json", randomJson(r, 5));
+            map.put("image", randomImage(r));
+            map.put("blob", randomString(r, 64).getBytes());
+            map.put("ints", new int[]{r.nextInt(), r.nextInt()});
+            WireValue v = WireValue.of(map);
+
+            bb.clear();
+            v.toBytes(bb);
+            bb.flip();
+
+            // at an offset, with trailing bytes
+            dbb.clear();
+            dbb.put((byte) 7);
+            int offset = dbb.position();
+            dbb.put(bb);
+            dbb.put((byte) 7);
+            dbb.flip();
+            dbb.position(offset);
+
+            WireValue u = WireValue.valueOf(dbb);
+            assertEquals(1, dbb.remaining());
+            assertEquals(v, u);
+
+            // slices of the buffer, not copies
+            EncodedImage image = u.asMap().get(WireValue.of("image")).asImage();
+            assertFalse(image.hasArray());
+            assertTrue(image.toBuffer().isDirect());
+            assertEquals(v.asMap().get(WireValue.of("image")).asImage(), image);
+            assertTrue(u.asMap().get(WireValue.of("blob")).asBlob().isDirect());
+            assertTrue(u.asMap().get(WireValue.of("ints")).asIntBuffer().isDirect());
+        }
+    }
+
+
+    public void testFlatCodec() throws Exception {
+        Random r = new Random();
+        ByteBuffer bb = ByteBuffer.allocate(8 * 1024 * 1024);
+        WireValue.SessionLut lut = new WireValue.SessionLut();
+        for (int i = 0; i < 8; ++i) {
+            Map<String, Object> map = new HashMap<String, Object>(4);
+            map.put("json", randomJson(r, 5));
+            map.put("message", randomMessage(r));
+            map.put("image", randomImage(r));
+            map.put("ints", new int[]{r.nextInt(), r.nextInt()});
+            WireValue v = WireValue.of(map);
+
+            bb.clear();
+            v.toBytes(bb, null, WireValue.LutMode.NONE);
+            bb.flip();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+            assertEquals(v, WireValue.valueOf(bytes));
+
+            // re-encode the parsed value
+            bb.clear();
+            WireValue.valueOf(bytes).toBytes(bb, null, WireValue.LutMode.NONE);
+            bb.flip();
+            byte[] bytes2 = new byte[bb.remaining()];
+            bb.get(bytes2);
+            assertTrue(Arrays.equals(bytes, bytes2));
+
+            bb.clear();
+            v.toBytes(bb, lut, WireValue.LutMode.NONE);
+            bb.flip();
+            bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+            bb.clear();
+            lut.writeDefinitions(bb);
+            assertEquals(v, WireValue.valueOf(bytes, 0, lut.toTable()));
+        }
+    }
+
+
+    public void testSegmentedCodec() throws Exception {
+        Random r = new Random();
+        ByteBuffer bb = ByteBuffer.allocate(8 * 1024 * 1024);
+        // small segments so values and chunks straddle segment boundaries
+        SegmentedOutputStream.Pool pool = new SegmentedOutputStream.Pool(100, 1 << 16);
+        WireValue.SessionLut lut = new WireValue.SessionLut();
+        WireValue.SessionLutTable table = WireValue.SessionLutTable.EMPTY;
+        for (int i = 0; i < 8; ++i) {
+            Map<String, Object> map = new HashMap<String, Object>(4);
+            map.put("json", randomJson(r, 5));
+            map.put("message", randomMessage(r));
+            map.put("image", randomImage(r));
+            map.put("blob", randomString(r, 64).getBytes());
+            WireValue v = WireValue.of(map);
+
+            // the stream encoding is the same as the flat encoding
+            bb.clear();
+            v.toBytes(bb, null, WireValue.LutMode.NONE);
+            bb.flip();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+
+            int idleCount = pool.getIdleCount();
+            SegmentedOutputStream out = new SegmentedOutputStream(pool);
+            v.toBytes(out, null);
+            assertEquals(bytes.length, out.getLength());
+            int segmentCount = out.getSegmentCount();
+            assertEquals((bytes.length + 99) / 100, segmentCount);
+            assertTrue(Arrays.equals(bytes, ByteStreams.toByteArray(out.toInputStream())));
+            out.release();
+            // segments are reused
+            assertEquals(Math.max(idleCount, segmentCount), pool.getIdleCount());
+
+            // with the session lut
+            out = new SegmentedOutputStream(pool);
+            v.toBytes(out, lut);
+            NoCopyByteArrayOutputStream defs = new NoCopyByteArrayOutputStream(16);
+            lut.writeDefinitions(defs);
+            table = table.define(defs.getBytes(), defs.getOffset(), defs.getLength());
+            assertEquals(v, WireValue.valueOf(out.toInputStream(), table));
+            out.release();
+        }
+    }
+
+
+    public void testSessionLut() throws Exception {
+        Random r = new Random();
+        ByteBuffer bb = ByteBuffer.allocate(1024 * 1024);
+
+        // small capacity to exercise eviction
+        WireValue.SessionLut lut = new WireValue.SessionLut(8);
+        WireValue.SessionLutTable table = WireValue.SessionLutTable.EMPTY;
+
+        int[] sizes = new int[64];
+        for (int i = 0; i < sizes.length; ++i) {
+            // the first key sets repeat; the rest are one-off
+            Map<String, Object> map = new HashMap<String, Object>(8);
+            map.put("$code", r.nextInt());
+            map.put("$content", randomString(r, 8));
+            map.put(i < 32 ? "$version" : "$" + i, r.nextLong());
+
+            WireValue v = WireValue.of(map);
+            bb.clear();
+            v.toBytes(bb, lut);
+            bb.flip();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+            sizes[i] = bytes.length;
+
+            if (lut.hasDefinitions()) {
+                bb.clear();
+                lut.writeDefinitions(bb);
+                bb.flip();
+                byte[] lutBytes = new byte[bb.remaining()];
+                bb.get(lutBytes);
+                table = table.define(lutBytes, 0, lutBytes.length);
+            }
+
+            assertEquals(v, WireValue.valueOf(bytes, 0, table));
+            assertEquals(v, WireValue.valueOf(new ByteArrayInputStream(bytes), table));
+        }
+
+        // defined on the second sighting
+        assertTrue(sizes[2] < sizes[0]);
+        assertTrue(0 < lut.getRefCount());
+        assertTrue(lut.size() <= 8);
+    }
+
+
+    public void testPrimitiveLists() throws Exception {
+        Random r = new Random();
+        int n = 1 + r.nextInt(1024);
+        int[] ints = new int[n];
+        long[] longs = new long[n];
+        float[] floats = new float[n];
+        double[] doubles = new double[n];
+        List<WireValue> intList = new ArrayList<WireValue>(n);
+        List<WireValue> longList = new ArrayList<WireValue>(n);
+        List<WireValue> floatList = new ArrayList<WireValue>(n);
+        List<WireValue> doubleList = new ArrayList<WireValue>(n);
+        for (int i = 0; i < n; ++i) {
+            ints[i] = r.nextInt();
+            longs[i] = r.nextLong();
+            floats[i] = r.nextFloat();
+            doubles[i] = r.nextDouble();
+            intList.add(WireValue.of(ints[i]));
+            longList.add(WireValue.of(longs[i]));
+            floatList.add(WireValue.of(floats[i]));
+            doubleList.add(WireValue.of(doubles[i]));
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(64 * 1024);
+        for (WireValue v : new WireValue[]{
+                WireValue.of(intList), WireValue.of(longList), WireValue.of(floatList), WireValue.of(doubleList),
+                WireValue.of(ints), WireValue.of(longs), WireValue.of(floats), WireValue.of(doubles)}) {
+            bb.clear();
+            v.toBytes(bb);
+            bb.flip();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+
+            WireValue u = WireValue.valueOf(bytes);
+            assertEquals(v, u);
+            assertEquals(v.hashCode(), u.hashCode());
+            assertEquals(v, WireValue.valueOf(new ByteArrayInputStream(bytes)));
+
+            switch (v.asList().get(0).getType()) {
+                case INT32:
+                    assertTrue(Arrays.equals(ints, u.asIntArray()));
+                    assertEquals(n, u.asIntBuffer().remaining());
+                    break;
+                case INT64:
+                    assertTrue(Arrays.equals(longs, u.asLongArray()));
+                    assertEquals(n, u.asLongBuffer().remaining());
+                    break;
+                case FLOAT32:
+                    assertTrue(Arrays.equals(floats, u.asFloatArray()));
+                    assertEquals(n, u.asFloatBuffer().remaining());
+                    break;
+                case FLOAT64:
+                    assertTrue(Arrays.equals(doubles, u.asDoubleArray()));
+                    assertEquals(n, u.asDoubleBuffer().remaining());
+                    break;
+                default:
+                    fail();
+            }
+        }
+
+        assertEquals(WireValue.of(intList), WireValue.of(ints));
+        assertTrue(Arrays.equals(ints, WireValue.of(intList).asIntArray()));
+
+        // packed lists nested in a compressed value
+        Map<String, Object> map = new HashMap<String, Object>(4);
+        map.put("a", ints);
+        map.put("b", ints);
+        map.put("c", Arrays.asList(WireValue.of(doubles), WireValue.of(doubles)));
+        WireValue v = WireValue.of(map);
+        bb.clear();
+        v.toBytes(bb);
+        bb.flip();
+        assertEquals(v, WireValue.valueOf(bb));
+    }
+
+
+    public void testHashCode() throws Exception {
+        Random r = new Random();
+        ByteBuffer bb = ByteBuffer.allocate(8 * 1024 * 1024);
+        for (int i = 0; i < 16; ++i) {
+            Map<String, Object> map = new HashMap<String, Object>(8);
+            map.put("json", randomJson(r, 5));
+            map.put("message", randomMessage(r));
+            map.put("image", randomImage(r));
+            map.put("blob", randomString(r, 64).getBytes());
+            map.put("ints", new int[]{r.nextInt(), r.nextInt()});
+            map.put("doubles", Arrays.asList(r.nextDouble(), r.nextDouble()));
+            map.put("\u00e9t\u00e9 \u2603", Arrays.asList("\u00e9", "\ud83d\ude00"));
+            WireValue v = WireValue.of(map);
+
+            for (WireValue.LutMode lutMode : WireValue.LutMode.values()) {
+                bb.clear();
+                v.toBytes(bb, null, lutMode);
+                bb.flip();
+                byte[] bytes = new byte[bb.remaining()];
+                bb.get(bytes);
+
+                // compressed and memory values hash the same
+                WireValue c = WireValue.valueOf(bytes);
+                assertEquals(v.hashCode(), c.hashCode());
+                assertEquals(v, c);
+                assertEquals(c, v);
+                for (Map.Entry<WireValue, WireValue> e : c.asMap().entrySet()) {
+                    assertEquals(v.asMap().get(e.getKey()), e.getValue());
+                    assertEquals(v.asMap().get(e.getKey()).hashCode(), e.getValue().hashCode());
+                }
+
+                // same bytes in a different array
+                WireValue c2 = WireValue.valueOf(Arrays.copyOf(bytes, bytes.length));
+                assertEquals(c, c2);
+                assertEquals(c.hashCode(), c2.hashCode());
+            }
+        }
+    }
+
 
     public void testBasicMessage() {
         ByteBuffer bb = ByteBuffer.allocate(1024);
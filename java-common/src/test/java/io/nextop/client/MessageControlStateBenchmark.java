@@ -0,0 +1,171 @@
+package io.nextop.client;
+
+import io.nextop.Id;
+import io.nextop.Message;
+import io.nextop.rx.MoreSchedulers;
+import junit.framework.TestCase;
+import rx.functions.Action1;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Contention on {@link MessageControlState} with 1/4/16 consumers blocked in a take,
+ * like the request loopers of the http node, and the cost of progress updates. */
+public class MessageControlStateBenchmark extends TestCase {
+
+    public void testContention() throws Exception {
+        for (int consumerCount : new int[]{1, 4, 16}) {
+            // warm up
+            run(consumerCount, 5000);
+            long nanos = run(consumerCount, 50000);
+            System.out.printf("%d consumers: %.0f messages/s\n", consumerCount, 50000 / (nanos / 1e9));
+        }
+    }
+
+    // a take skips groups with an owned head without visiting them
+    public void testOwnedHeads() throws Exception {
+        final int groupCount = 1000;
+        MessageContext context = MessageContexts.create(MoreSchedulers.serial());
+        MessageControlState mcs = new MessageControlState(context);
+        MessageControlChannel owner = new NoopChannel(mcs, context);
+
+        Id[] heads = new Id[groupCount];
+        for (int i = 0; i < groupCount; ++i) {
+            Id groupId = Id.create();
+            for (int j = 0; j < 2; ++j) {
+                Message message = Message.newBuilder()
+                        .setGroupId(groupId)
+                        .setRoute("GET http://nextop.io")
+                        .build();
+                mcs.add(MessageControl.send(message));
+                if (0 == j) {
+                    heads[i] = message.id;
+                }
+            }
+        }
+        for (int i = 0; i < groupCount - 1; ++i) {
+            assertEquals(heads[i], mcs.takeFirstAvailable(owner).id);
+        }
+        // the owned heads lock their groups
+        assertEquals(heads[0], mcs.get(0).id);
+        assertFalse(mcs.isAvailable(mcs.get(1).id));
+        // stops at the min
+        assertNull(mcs.takeFirstAvailable(heads[groupCount - 2], owner));
+
+        int n = 100000;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < n; ++i) {
+            MessageControlState.Entry entry = mcs.takeFirstAvailable(owner);
+            assertEquals(heads[groupCount - 1], entry.id);
+            mcs.release(entry.id, owner);
+        }
+        long nanos = System.nanoTime() - startNanos;
+        System.out.printf("%d owned heads: %.0f take+release/s\n", groupCount - 1, n / (nanos / 1e9));
+
+        mcs.release(heads[0], owner);
+        assertEquals(heads[0], mcs.takeFirstAvailable(owner).id);
+    }
+
+    // many progress updates publish at most at the max progress rate, ending with the latest
+    public void testProgressCoalescing() throws Exception {
+        MessageControlState mcs = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        mcs.setMaxProgressRate(10);
+        Message message = Message.newBuilder().setRoute("GET http://nextop.io").build();
+        mcs.add(MessageControl.send(message));
+
+        final AtomicInteger publishCount = new AtomicInteger(0);
+        final AtomicLong lastCompletedBytes = new AtomicLong(-1);
+        mcs.getObservable(message.id).subscribe(new Action1<MessageControlState.Entry>() {
+            @Override
+            public void call(MessageControlState.Entry entry) {
+                publishCount.incrementAndGet();
+                lastCompletedBytes.set(entry.outboxTransferProgress.completedBytes);
+            }
+        });
+
+        int n = 100000;
+        long startNanos = System.nanoTime();
+        for (int i = 1; i <= n; ++i) {
+            mcs.setOutboxTransferProgress(message.id, MessageControlState.TransferProgress.create(message.id, i, n));
+        }
+        long nanos = System.nanoTime() - startNanos;
+        Thread.sleep(300);
+
+        System.out.printf("%d progress updates: %.0f/s, %d publishes\n", n, n / (nanos / 1e9), publishCount.get());
+        // one on subscribe, then at most one per 100ms
+        assertTrue(publishCount.get() <= 2 + (int) (TimeUnit.NANOSECONDS.toMillis(nanos) + 300) / 100);
+        assertEquals(n, lastCompletedBytes.get());
+    }
+
+    private long run(int consumerCount, final int n) throws Exception {
+        final int groupCount = 32;
+        final MessageContext context = MessageContexts.create(MoreSchedulers.serial());
+        final MessageControlState mcs = new MessageControlState(context);
+
+        final Id[] groupIds = new Id[groupCount];
+        for (int i = 0; i < groupCount; ++i) {
+            groupIds[i] = Id.create();
+        }
+
+        final AtomicInteger removeCount = new AtomicInteger(0);
+        // a group has at most one owned entry
+        final Set<Id> ownedGroupIds = Collections.newSetFromMap(new ConcurrentHashMap<Id, Boolean>(groupCount));
+        final Throwable[] errors = new Throwable[consumerCount];
+
+        Thread[] consumers = new Thread[consumerCount];
+        for (int i = 0; i < consumerCount; ++i) {
+            final int index = i;
+            final MessageControlChannel owner = new NoopChannel(mcs, context);
+            consumers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (removeCount.get() < n) {
+                            MessageControlState.Entry entry = mcs.takeFirstAvailable(owner, 10, TimeUnit.MILLISECONDS);
+                            if (null == entry) {
+                                continue;
+                            }
+                            assertTrue(ownedGroupIds.add(entry.groupId));
+                            mcs.setOutboxTransferProgress(entry.id, MessageControlState.TransferProgress.create(entry.id, 1, 2));
+                            mcs.setOutboxTransferProgress(entry.id, MessageControlState.TransferProgress.create(entry.id, 2, 2));
+                            assertTrue(ownedGroupIds.remove(entry.groupId));
+                            mcs.remove(entry.id, MessageControlState.End.COMPLETED);
+                            removeCount.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        errors[index] = t;
+                        removeCount.set(n);
+                    }
+                }
+            });
+        }
+
+        long startNanos = System.nanoTime();
+        for (Thread consumer : consumers) {
+            consumer.start();
+        }
+        for (int i = 0; i < n; ++i) {
+            mcs.add(MessageControl.send(Message.newBuilder()
+                    .setGroupId(groupIds[i % groupCount])
+                    .setRoute("GET http://nextop.io")
+                    .build()));
+        }
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+        long nanos = System.nanoTime() - startNanos;
+
+        for (Throwable t : errors) {
+            if (null != t) {
+                throw new AssertionError(t);
+            }
+        }
+        assertEquals(n, removeCount.get());
+        assertEquals(0, mcs.size());
+        return nanos;
+    }
+}
@@ -0,0 +1,329 @@
+package io.nextop.client;
+
+import io.nextop.Id;
+import io.nextop.Message;
+import io.nextop.rx.MoreSchedulers;
+import junit.framework.TestCase;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.schedulers.TestScheduler;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MessageControlStateTest extends TestCase {
+
+    // the changes applied in sequence to the snapshot keep a mirror equal to the order
+    public void testChanges() throws Exception {
+        Random r = new Random(1337);
+        MessageContext context = MessageContexts.create(MoreSchedulers.serial());
+        MessageControlState mcs = new MessageControlState(context);
+        MessageControlChannel owner = new NoopChannel(mcs, context);
+
+        Id[] groupIds = new Id[8];
+        for (int i = 0; i < groupIds.length; ++i) {
+            groupIds[i] = Id.create();
+        }
+        // some entries before the subscribe, for the snapshot
+        for (int i = 0; i < 20; ++i) {
+            add(mcs, groupIds[r.nextInt(groupIds.length)], r.nextInt(3));
+        }
+
+        final List<MessageControlState.Entry> mirror = new ArrayList<MessageControlState.Entry>();
+        final int[] changeCount = {0};
+        Subscription s = mcs.getChangeObservable().subscribe(new Action1<MessageControlState.Change>() {
+            @Override
+            public void call(MessageControlState.Change change) {
+                switch (change.type) {
+                    case REMOVED:
+                    case MOVED:
+                    case UPDATED:
+                        assertSame(change.entry, mirror.get(change.index));
+                        break;
+                    default:
+                        break;
+                }
+                change.apply(mirror);
+                changeCount[0] += 1;
+            }
+        });
+        assertMirror(mcs, mirror);
+
+        List<MessageControlState.Entry> owned = new ArrayList<MessageControlState.Entry>();
+        for (int i = 0; i < 2000; ++i) {
+            switch (r.nextInt(5)) {
+                case 0:
+                    add(mcs, groupIds[r.nextInt(groupIds.length)], r.nextInt(3));
+                    break;
+                case 1: {
+                    MessageControlState.Entry entry = mcs.takeFirstAvailable(owner);
+                    if (null != entry) {
+                        owned.add(entry);
+                    }
+                    break;
+                }
+                case 2:
+                    if (!owned.isEmpty()) {
+                        mcs.release(owned.remove(r.nextInt(owned.size())).id, owner);
+                    }
+                    break;
+                case 3:
+                    if (0 < mcs.size()) {
+                        mcs.yield(mcs.get(r.nextInt(mcs.size())).id);
+                    }
+                    break;
+                case 4:
+                    if (!owned.isEmpty()) {
+                        mcs.remove(owned.remove(r.nextInt(owned.size())).id, MessageControlState.End.COMPLETED);
+                    } else if (0 < mcs.size()) {
+                        mcs.remove(mcs.get(r.nextInt(mcs.size())).id, MessageControlState.End.ERROR);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            assertMirror(mcs, mirror);
+        }
+        assertTrue(2000 < changeCount[0]);
+
+        s.unsubscribe();
+    }
+
+    // updates every 1ms for 1s publish the latest value at most max progress rate times
+    public void testProgressCoalescing() {
+        TestScheduler scheduler = new TestScheduler();
+        MessageControlState mcs = new MessageControlState(MessageContexts.create(scheduler));
+        mcs.setMaxProgressRate(10);
+        Message message = Message.newBuilder().setRoute("GET http://nextop.io").build();
+        mcs.add(MessageControl.send(message));
+
+        final List<MessageControlState.TransferProgress> published = new ArrayList<MessageControlState.TransferProgress>();
+        mcs.getObservable(message.id).subscribe(new Action1<MessageControlState.Entry>() {
+            @Override
+            public void call(MessageControlState.Entry entry) {
+                published.add(entry.outboxTransferProgress);
+            }
+        });
+        // the entry on subscribe
+        assertEquals(1, published.size());
+        published.clear();
+
+        int n = 1000;
+        MessageControlState.TransferProgress last = null;
+        for (int i = 1; i <= n; ++i) {
+            last = MessageControlState.TransferProgress.create(message.id, i, n);
+            mcs.setOutboxTransferProgress(message.id, last);
+            scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        }
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        assertTrue(published.size() <= 10 + 1);
+        assertTrue(5 <= published.size());
+        assertEquals(last, published.get(published.size() - 1));
+        // each publish is the latest at the time, so in order
+        for (int i = 1; i < published.size(); ++i) {
+            assertTrue(published.get(i - 1).completedBytes < published.get(i).completedBytes);
+        }
+
+        // nothing more is published when quiet, and updates before the flush runs coalesce
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        int size = published.size();
+        mcs.setMaxProgressRate(1);
+        mcs.setOutboxTransferProgress(message.id, MessageControlState.TransferProgress.create(message.id, n, n + 1));
+        mcs.setOutboxTransferProgress(message.id, MessageControlState.TransferProgress.create(message.id, n + 1, n + 1));
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        assertEquals(size + 1, published.size());
+        assertEquals(n + 1, published.get(size).completedBytes);
+    }
+
+    // a blocked take is woken by an add and by a release. A take that can't take what is available
+    // passes the signal to the next take, which can
+    public void testBlockingTake() throws Exception {
+        MessageContext context = MessageContexts.create(MoreSchedulers.serial());
+        MessageControlState mcs = new MessageControlState(context);
+        MessageControlChannel a = new NoopChannel(mcs, context);
+        MessageControlChannel b = new NoopChannel(mcs, context);
+        MessageControlChannel c = new NoopChannel(mcs, context);
+
+        // add
+        Take take = new Take(mcs, null, null, a).startBlocked();
+        Id id = add(mcs, Id.create(), 0);
+        take.await();
+        assertEquals(id, take.entry.id);
+
+        // release
+        take = new Take(mcs, null, null, b).startBlocked();
+        mcs.release(id, a);
+        take.await();
+        assertEquals(id, take.entry.id);
+        mcs.remove(id, MessageControlState.End.COMPLETED);
+
+        // the first waiter rejects by predicate
+        Take rejecting = new Take(mcs, REJECT_ALL, null, a).startBlocked();
+        take = new Take(mcs, null, null, b).startBlocked();
+        id = add(mcs, Id.create(), 0);
+        take.await();
+        assertEquals(id, take.entry.id);
+        assertFalse(rejecting.done);
+        rejecting.interrupt();
+        rejecting.await();
+        assertTrue(rejecting.interrupted);
+
+        // the first waiter rejects by minExclusive: nothing is more important than the entry c holds
+        Id high = add(mcs, Id.create(), 10);
+        assertEquals(high, mcs.takeFirstAvailable(c).id);
+        rejecting = new Take(mcs, null, high, a).startBlocked();
+        Take takeAfter = new Take(mcs, null, null, c).startBlocked();
+        Id low = add(mcs, Id.create(), 0);
+        takeAfter.await();
+        assertEquals(low, takeAfter.entry.id);
+        assertFalse(rejecting.done);
+        rejecting.interrupt();
+        rejecting.await();
+    }
+
+    // wake returns a blocked take of the owner with null, or the next take if none is blocked
+    public void testWake() throws Exception {
+        MessageContext context = MessageContexts.create(MoreSchedulers.serial());
+        MessageControlState mcs = new MessageControlState(context);
+        MessageControlChannel a = new NoopChannel(mcs, context);
+        MessageControlChannel b = new NoopChannel(mcs, context);
+
+        Take take = new Take(mcs, null, null, a).startBlocked();
+        Take other = new Take(mcs, null, null, b).startBlocked();
+        mcs.wake(a);
+        take.await();
+        assertNull(take.entry);
+        assertFalse(take.interrupted);
+        assertFalse(other.done);
+
+        mcs.wake(b);
+        other.await();
+        assertNull(other.entry);
+
+        // not blocked: the next take returns at once, once
+        mcs.wake(a);
+        long startNanos = System.nanoTime();
+        assertNull(mcs.takeFirstAvailable(a, 10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(5));
+        assertNull(mcs.takeFirstAvailable(a, 10, TimeUnit.MILLISECONDS));
+    }
+
+    // a take that is signaled and then interrupted before it can take still passes the signal on
+    public void testSignalPassedOnInterrupt() throws Exception {
+        MessageContext context = MessageContexts.create(MoreSchedulers.serial());
+        final MessageControlState mcs = new MessageControlState(context);
+        final MessageControlChannel a = new NoopChannel(mcs, context);
+        MessageControlChannel b = new NoopChannel(mcs, context);
+        MessageControlChannel c = new NoopChannel(mcs, context);
+
+        Id id = add(mcs, Id.create(), 0);
+        final AtomicBoolean accept = new AtomicBoolean(false);
+        final Take first = new Take(mcs, REJECT_ALL, null, a).startBlocked();
+        Take second = new Take(mcs, new Func1<MessageControlState.Entry, Boolean>() {
+            @Override
+            public Boolean call(MessageControlState.Entry entry) {
+                return accept.get();
+            }
+        }, null, b).startBlocked();
+
+        // the predicate runs with the lock held, so the first take wakes from the interrupt only after
+        // it is also signaled. Only the first take is signaled
+        assertNull(mcs.takeFirstAvailable(new Func1<MessageControlState.Entry, Boolean>() {
+            @Override
+            public Boolean call(MessageControlState.Entry entry) {
+                first.interrupt();
+                // out of the wait and blocked on the lock, so the interrupt comes before the signal
+                while (Thread.State.WAITING != first.getState()) {
+                    Thread.yield();
+                }
+                accept.set(true);
+                mcs.wake(a);
+                return false;
+            }
+        }, c));
+
+        first.await();
+        assertTrue(first.interrupted);
+        second.await();
+        assertEquals(id, second.entry.id);
+    }
+
+    private static Id add(MessageControlState mcs, Id groupId, int groupPriority) {
+        Message message = Message.newBuilder()
+                .setGroupId(groupId)
+                .setGroupPriority(groupPriority)
+                .setRoute("GET http://nextop.io")
+                .build();
+        mcs.add(MessageControl.send(message));
+        return message.id;
+    }
+
+    private static final Func1<MessageControlState.Entry, Boolean> REJECT_ALL = new Func1<MessageControlState.Entry, Boolean>() {
+        @Override
+        public Boolean call(MessageControlState.Entry entry) {
+            return false;
+        }
+    };
+
+    /** a blocking take on its own thread */
+    private static final class Take extends Thread {
+        final MessageControlState mcs;
+        @Nullable
+        final Func1<MessageControlState.Entry, Boolean> predicate;
+        @Nullable
+        final Id minExclusive;
+        final MessageControlChannel owner;
+
+        volatile boolean done = false;
+        @Nullable
+        volatile MessageControlState.Entry entry = null;
+        volatile boolean interrupted = false;
+
+        Take(MessageControlState mcs, @Nullable Func1<MessageControlState.Entry, Boolean> predicate, @Nullable Id minExclusive,
+             MessageControlChannel owner) {
+            this.mcs = mcs;
+            this.predicate = predicate;
+            this.minExclusive = minExclusive;
+            this.owner = owner;
+        }
+
+        @Override
+        public void run() {
+            try {
+                entry = mcs.takeFirstAvailable(predicate, minExclusive, owner, 10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            done = true;
+        }
+
+        /** starts the take and waits until it blocks */
+        Take startBlocked() throws InterruptedException {
+            start();
+            while (State.TIMED_WAITING != getState()) {
+                assertFalse(done);
+                Thread.sleep(1);
+            }
+            return this;
+        }
+
+        void await() throws InterruptedException {
+            join(TimeUnit.SECONDS.toMillis(5));
+            assertTrue(done);
+        }
+    }
+
+    private static void assertMirror(MessageControlState mcs, List<MessageControlState.Entry> mirror) {
+        int n = mcs.size();
+        assertEquals(n, mirror.size());
+        for (int i = 0; i < n; ++i) {
+            assertSame(mcs.get(i), mirror.get(i));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package io.nextop.client;
+
+import rx.Scheduler;
+
+/** An owner for takes on a {@link MessageControlState} that drops everything sent to it.
+ * The context is the given context. */
+final class NoopChannel implements MessageControlChannel {
+    final MessageControlState mcs;
+    final MessageContext context;
+
+    NoopChannel(MessageControlState mcs, MessageContext context) {
+        this.mcs = mcs;
+        this.context = context;
+    }
+
+    @Override
+    public void onActive(boolean active) {
+    }
+
+    @Override
+    public void onMessageControl(MessageControl mc) {
+    }
+
+    @Override
+    public MessageControlState getMessageControlState() {
+        return mcs;
+    }
+
+    @Override
+    public void post(Runnable r) {
+        context.post(r);
+    }
+
+    @Override
+    public void postDelayed(Runnable r, int delayMs) {
+        context.postDelayed(r, delayMs);
+    }
+
+    @Override
+    public Scheduler getScheduler() {
+        return context.getScheduler();
+    }
+}
@@ -0,0 +1,189 @@
+package io.nextop.client;
+
+import io.nextop.Id;
+import io.nextop.Message;
+import io.nextop.rx.MoreSchedulers;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class OutboxJournalTest extends TestCase {
+
+    public void testRestore() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+
+        MessageControlState mcs = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        OutboxJournal journal = new OutboxJournal(file);
+        mcs.setJournal(journal);
+        mcs.restore();
+        assertEquals(0, mcs.size());
+
+        Id groupId = Id.create();
+        Message[] messages = new Message[4];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Message.newBuilder()
+                    .setGroupId(groupId)
+                    .setRoute("POST http://nextop.io/" + i)
+                    .setContent("content " + i)
+                    .build();
+            mcs.add(MessageControl.send(messages[i]));
+        }
+        mcs.remove(messages[1].id, MessageControlState.End.COMPLETED);
+        // the journal is not closed or committed, like a process kill. The appends are in the map
+
+        MessageControlState restoredMcs = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        OutboxJournal restoredJournal = new OutboxJournal(file);
+        restoredMcs.setJournal(restoredJournal);
+        restoredMcs.restore();
+
+        assertEquals(3, restoredMcs.size());
+        for (int i = 0, j = 0; i < messages.length; ++i) {
+            if (1 != i) {
+                MessageControlState.Entry entry = restoredMcs.get(j++);
+                assertEquals(messages[i].id, entry.id);
+                assertEquals(groupId, entry.groupId);
+                assertEquals(messages[i].route, entry.message.route);
+                assertEquals(messages[i].getContent(), entry.message.getContent());
+            }
+        }
+
+        // the restore rewrote the file with just the live sends; removes after it are journaled
+        restoredMcs.remove(messages[0].id, MessageControlState.End.ERROR);
+        restoredJournal.close();
+        journal.close();
+
+        MessageControlState restoredMcs2 = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        OutboxJournal restoredJournal2 = new OutboxJournal(file);
+        restoredMcs2.setJournal(restoredJournal2);
+        restoredMcs2.restore();
+        restoredJournal2.close();
+
+        assertEquals(2, restoredMcs2.size());
+        assertEquals(messages[2].id, restoredMcs2.get(0).id);
+        assertEquals(messages[3].id, restoredMcs2.get(1).id);
+    }
+
+    // the commit compacts a journal that is mostly removes
+    public void testCompact() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+
+        MessageControlState mcs = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        // only the explicit commit below
+        OutboxJournal journal = new OutboxJournal(file, 60 * 1000);
+        mcs.setJournal(journal);
+        mcs.restore();
+
+        StringBuilder sb = new StringBuilder(8 * 1024);
+        for (int i = 0; i < 8 * 1024; ++i) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String content = sb.toString();
+
+        Message live = Message.newBuilder().setRoute("POST http://nextop.io/live").setContent(content).build();
+        mcs.add(MessageControl.send(live));
+        for (int i = 0; i < 400; ++i) {
+            Message message = Message.newBuilder().setRoute("POST http://nextop.io/" + i).setContent(content).build();
+            mcs.add(MessageControl.send(message));
+            mcs.remove(message.id, MessageControlState.End.COMPLETED);
+        }
+        journal.commit();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(OutboxJournal.MAGIC, raf.readInt());
+            assertEquals(OutboxJournal.MIN_MAP_BYTES, raf.length());
+        } finally {
+            raf.close();
+        }
+        journal.close();
+
+        MessageControlState restoredMcs = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        OutboxJournal restoredJournal = new OutboxJournal(file);
+        restoredMcs.setJournal(restoredJournal);
+        restoredMcs.restore();
+        restoredJournal.close();
+
+        assertEquals(1, restoredMcs.size());
+        assertEquals(live.id, restoredMcs.get(0).id);
+        assertEquals(content, restoredMcs.get(0).message.getContent().toString());
+    }
+
+    // adds and removes during a compaction are carried over to the new file
+    public void testCompactConcurrent() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+
+        final MessageControlState mcs = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        final OutboxJournal journal = new OutboxJournal(file, 60 * 1000);
+        mcs.setJournal(journal);
+        mcs.restore();
+
+        StringBuilder sb = new StringBuilder(8 * 1024);
+        for (int i = 0; i < 8 * 1024; ++i) {
+            sb.append((char) ('a' + i % 26));
+        }
+        final String content = sb.toString();
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    journal.commit();
+                }
+            }
+        });
+        committer.start();
+
+        Random r = new Random(1337);
+        List<Id> live = new ArrayList<Id>();
+        try {
+            for (int i = 0; i < 2000; ++i) {
+                Message message = Message.newBuilder().setRoute("POST http://nextop.io/" + i).setContent(content).build();
+                mcs.add(MessageControl.send(message));
+                live.add(message.id);
+                if (0 != r.nextInt(8)) {
+                    mcs.remove(live.remove(r.nextInt(live.size())), MessageControlState.End.COMPLETED);
+                }
+            }
+        } finally {
+            done.set(true);
+            committer.join();
+        }
+        journal.close();
+
+        MessageControlState restoredMcs = new MessageControlState(MessageContexts.create(MoreSchedulers.serial()));
+        OutboxJournal restoredJournal = new OutboxJournal(file);
+        restoredMcs.setJournal(restoredJournal);
+        restoredMcs.restore();
+        restoredJournal.close();
+
+        assertEquals(live.size(), restoredMcs.size());
+        for (Id id : live) {
+            assertTrue(0 <= restoredMcs.indexOf(id));
+        }
+    }
+
+    // a journal past the largest map fails with an io exception, which the journal handles
+    public void testCapacity() throws Exception {
+        assertEquals(OutboxJournal.MIN_MAP_BYTES, OutboxJournal.capacity(1));
+        assertEquals(1 << 30, OutboxJournal.capacity(1 << 30));
+        try {
+            OutboxJournal.capacity((1L << 30) + 1);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -3,15 +3,21 @@ package io.nextop.client.node.nextop;
 import com.google.common.base.Objects;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
 import io.nextop.Id;
 import io.nextop.Message;
+import io.nextop.Wire;
+import io.nextop.WireValue;
+import io.nextop.Wires;
 import io.nextop.client.MessageContext;
 import io.nextop.client.MessageContexts;
+import io.nextop.client.MessageControl;
 import io.nextop.client.MessageControlState;
 import io.nextop.client.test.WorkloadRunner;
 import io.nextop.wire.Pipe;
 import io.nextop.client.node.Head;
 import io.nextop.rx.MoreSchedulers;
+import io.nextop.util.SegmentedOutputStream;
 import junit.framework.TestCase;
 import rx.Notification;
 import rx.Observer;
@@ -22,22 +28,624 @@ import rx.functions.Action1;
 
 import javax.annotation.Nullable;
 import javax.tools.Diagnostic;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 // connects two nextop nodes in memory
 public class NextopNodeTest extends TestCase {
 
 
+    public void testChunkSizer() {
+        NextopNode.Config config = new NextopNode.Config(4 * 1024, 1024, -1, true, 8, 1024, 64 * 1024);
+
+        // 10KB/s, though the writes return at once into the socket buffers
+        NextopNode.ChunkSizer slow = new NextopNode.ChunkSizer(config);
+        ack(slow, 100, 1024, TimeUnit.MILLISECONDS.toNanos(100), 0L, false);
+        assertEquals(config.minChunkBytes, slow.chunkBytes);
+
+        // 100MB/s
+        NextopNode.ChunkSizer fast = new NextopNode.ChunkSizer(config);
+        ack(fast, 100, 64 * 1024, TimeUnit.MICROSECONDS.toNanos(640), 0L, false);
+        assertEquals(config.maxChunkBytes, fast.chunkBytes);
+
+        // 1MB/s with a 10ms round trip: a chunk is at most half the round trip, ~5KB
+        NextopNode.ChunkSizer rtt = new NextopNode.ChunkSizer(config);
+        ack(rtt, 100, 16 * 1024, TimeUnit.MILLISECONDS.toNanos(16), TimeUnit.MILLISECONDS.toNanos(10), false);
+        assertTrue(4 * 1024 < rtt.chunkBytes && rtt.chunkBytes < 6 * 1024);
+
+        // a writer that idles between small messages does not pull down the estimate of a fast link
+        ack(fast, 100, 1024, TimeUnit.MILLISECONDS.toNanos(100), 0L, true);
+        assertEquals(config.maxChunkBytes, fast.chunkBytes);
+    }
+
+    /** writes count messages of the given bytes, each acked nanos after the last */
+    private static void ack(NextopNode.ChunkSizer sizer, int count, int bytes, long nanos, long rttNanos, boolean idle) {
+        long ackNanos = Math.max(1L, sizer.ackNanos);
+        for (int i = 0; i < count; ++i) {
+            if (idle) {
+                sizer.onIdle();
+            }
+            sizer.onChunkWrite(bytes);
+            ackNanos += nanos;
+            NextopNode.ChunkSizer.End end = sizer.onEnd(ackNanos - rttNanos);
+            sizer.onAck(end, ackNanos, 0L < rttNanos ? 0L : -1L);
+        }
+    }
+
+    public void testChunkSet() {
+        Random r = new Random(1337);
+
+        // a prefix, as after an interrupted in-order transfer: a few runs
+        boolean[] prefix = new boolean[10000];
+        Arrays.fill(prefix, 0, 6000, true);
+        byte[] prefixSet = NextopNode.encodeChunkSet(prefix);
+        assertEquals(NextopNode.CHUNK_SET_RUNS, prefixSet[0]);
+        assertTrue(prefixSet.length < 8);
+        assertChunkSet(prefix, prefixSet);
+
+        // random: falls back to the bitmap
+        boolean[] random = new boolean[10000];
+        for (int i = 0; i < random.length; ++i) {
+            random[i] = r.nextBoolean();
+        }
+        byte[] randomSet = NextopNode.encodeChunkSet(random);
+        assertEquals(NextopNode.CHUNK_SET_BITMAP, randomSet[0]);
+        assertChunkSet(random, randomSet);
+
+        for (int n : new int[]{1, 7, 8, 9, 200}) {
+            for (int k = 0; k < 50; ++k) {
+                boolean[] chunks = new boolean[n];
+                for (int i = 0; i < n; ++i) {
+                    chunks[i] = r.nextInt(4) == 0;
+                }
+                assertChunkSet(chunks, NextopNode.encodeChunkSet(chunks));
+            }
+        }
+
+        // wrong chunk count
+        assertFalse(NextopNode.decodeChunkSet(prefixSet, new boolean[9999]));
+    }
+
+    public void testAckBatch() {
+        NextopNode.AckBatch batch = new NextopNode.AckBatch();
+        long nanos = System.nanoTime();
+        assertEquals(Long.MAX_VALUE, batch.dueNanos(nanos));
+
+        // the first ack wakes the writer to start the delay
+        assertTrue(batch.ack(Id.create()));
+        assertFalse(batch.ack(Id.create()));
+        assertTrue(0L < batch.dueNanos(nanos));
+        assertEquals(0L, batch.dueNanos(nanos + NextopNode.AckBatch.FLUSH_DELAY_NANOS + TimeUnit.SECONDS.toNanos(1)));
+
+        // a full batch is due at once
+        for (int i = 2; i < NextopNode.MAX_ACK_BATCH - 1; ++i) {
+            assertFalse(batch.ack(Id.create()));
+        }
+        assertTrue(batch.ack(Id.create()));
+        assertEquals(0L, batch.dueNanos(nanos));
+        NextopNode.Acks acks = batch.takeAcks();
+        assertEquals(NextopNode.MAX_ACK_BATCH, acks.ids.size());
+        // when each was added, so the writer can send how long the first of each frame was held
+        assertTrue(nanos <= acks.addNanos[0]);
+        for (int i = 1; i < acks.ids.size(); ++i) {
+            assertTrue(acks.addNanos[i - 1] <= acks.addNanos[i]);
+        }
+        assertEquals(Long.MAX_VALUE, batch.dueNanos(nanos));
+
+        // a nack is due at once
+        batch.nack(Id.create());
+        assertEquals(0L, batch.dueNanos(nanos));
+        assertEquals(1, batch.takeNacks().size());
+        assertTrue(batch.takeAcks().ids.isEmpty());
+    }
+
+    public void testGather() throws Exception {
+        Random r = new Random(1337);
+        byte[] bytes = new byte[5000];
+        r.nextBytes(bytes);
+        SegmentedOutputStream out = new SegmentedOutputStream(new SegmentedOutputStream.Pool(1024, 0));
+        out.write(bytes);
+        byte[] header = new byte[]{1, 2, 3, 4};
+
+        // starts and ends mid segment
+        ByteBuffer[] buffers = NextopNode.gather(header, 3, out, 1000, 3100);
+        assertEquals(1 + 5, buffers.length);
+        assertEquals(3 + 3100, Wires.remaining(buffers));
+
+        Wire wire = Wires.transfer();
+        wire.write(buffers, 0);
+        assertEquals(0, Wires.remaining(buffers));
+        byte[] read = new byte[3 + 3100];
+        wire.read(read, 0, read.length, 0);
+        assertTrue(Arrays.equals(Arrays.copyOf(header, 3), Arrays.copyOf(read, 3)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 1000, 4100), Arrays.copyOfRange(read, 3, read.length)));
+
+        // one segment
+        assertEquals(1 + 1, NextopNode.gather(header, 4, out, 2048, 1024).length);
+    }
+
+    // the first start binds; the end drops the index so a later start binds again, while the old
+    // session id still resolves the ack; the ack or nack that resolves a session id unbinds the rest
+    public void testSessionIds() {
+        NextopNode.SessionIds ids = new NextopNode.SessionIds();
+        Id id = Id.create();
+
+        ids.bind(id, 0);
+        assertEquals(Integer.valueOf(0), ids.indexes.get(id));
+        assertEquals(id, ids.ids.get(0));
+
+        // the end, then a start of the same message (e.g. sent again after a nack)
+        ids.indexes.remove(id);
+        ids.bind(id, 1);
+        assertEquals(Integer.valueOf(1), ids.indexes.get(id));
+        assertEquals(id, ids.ids.get(0));
+        assertEquals(id, ids.ids.get(1));
+
+        // the ack of the first transfer leaves the second bound
+        assertEquals(id, ids.unbind(0));
+        assertEquals(Integer.valueOf(1), ids.indexes.get(id));
+        // a nack of the second while it is written unbinds it
+        assertEquals(id, ids.unbind(1));
+        assertTrue(ids.indexes.isEmpty());
+        assertTrue(ids.ids.isEmpty());
+
+        assertNull(ids.unbind(2));
+        assertNull(ids.unbind(id));
+    }
+
+    // the acks and nacks one node writes, read by the other: session ids where bound, full ids otherwise
+    public void testSessionAcks() throws Exception {
+        NextopNode.Config config = NextopNode.DEFAULT_CONFIG;
+        NextopNode a = initNode(config);
+        NextopNode b = initNode(config);
+        MessageControlState bMcs = b.getMessageControlState();
+
+        // a writes to b
+        Wire wire = Wires.transfer();
+        NextopNode.SharedWireState aSws = new NextopNode.SharedWireState(wire, NextopNode.READ_CODECS, config);
+        NextopNode.SharedWireState bSws = new NextopNode.SharedWireState(wire, NextopNode.READ_CODECS, config);
+        NextopNode.SerializationState ss = new NextopNode.SerializationState(config);
+        NextopNode.WriteLooper aWriter = a.new WriteLooper(aSws, ss);
+        bSws.writeLooper = b.new WriteLooper(bSws, ss);
+        bSws.readLooper = b.new ReadLooper(bSws, ss);
+        bSws.readLooper.start();
+
+        MessageControl[] mcs = new MessageControl[6];
+        for (int i = 0; i < mcs.length; ++i) {
+            mcs[i] = MessageControl.send(Message.newBuilder().setRoute("POST http://nextop.io/" + i).build());
+        }
+        // 0: ended, acked by session id
+        // 1: ended, acked by full id (a has no session id for it)
+        // 2: ended, nacked by session id. b sends it again
+        // 3: still being written by b, nacked by session id. b's writer starts it over
+        // 4: ended and bound again by a later start. the ack of the first resolves; the second stays bound
+        // 5: stale, neither pending ack nor being written by b. the nack is dropped
+        int[] sessionIds = {0, -1, 1, 2, 3, -1};
+        for (int i = 0; i < mcs.length; ++i) {
+            Id id = mcs[i].message.id;
+            if (0 <= sessionIds[i]) {
+                bSws.sendIds.bind(id, sessionIds[i]);
+                aSws.receiveIds.bind(id, sessionIds[i]);
+            }
+            if (3 == i) {
+                b.sts.writeStates.put(id, new NextopNode.MessageWriteState(id, new SegmentedOutputStream(ss.pool),
+                        new int[]{0}, null, false));
+            } else if (5 != i) {
+                bSws.sendIds.indexes.remove(id);
+                b.sts.writePendingAck.add(mcs[i]);
+            }
+        }
+        bSws.sendIds.bind(mcs[4].message.id, 4);
+
+        a.sts.acks.ack(mcs[0].message.id);
+        a.sts.acks.ack(mcs[1].message.id);
+        a.sts.acks.nack(mcs[2].message.id);
+        a.sts.acks.nack(mcs[3].message.id);
+        a.sts.acks.ack(mcs[4].message.id);
+        a.sts.acks.nack(mcs[5].message.id);
+        aWriter.writeAcks();
+
+        long timeoutNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (0 < b.sts.writePendingAck.size() && System.nanoTime() < timeoutNanos) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, b.sts.writePendingAck.size());
+        // the nacked message pending ack is sent again
+        assertTrue(0 <= bMcs.indexOf(mcs[2].message.id));
+        // the writer starts over the message it was writing; the stale nack is not recorded
+        assertTrue(bMcs.indexOf(mcs[5].message.id) < 0);
+        synchronized (bSws.nacked) {
+            assertEquals(Collections.singleton(mcs[3].message.id), bSws.nacked);
+        }
+        // only the later start of 4 is still bound
+        assertEquals(Collections.singletonMap(mcs[4].message.id, 4), bSws.sendIds.indexes);
+        assertEquals(Collections.singletonMap(4, mcs[4].message.id), bSws.sendIds.ids);
+        // the acks unbind on a; nacks leave the binding for the restart to replace
+        assertNull(aSws.receiveIds.indexes.get(mcs[0].message.id));
+        assertEquals(Integer.valueOf(1), aSws.receiveIds.indexes.get(mcs[2].message.id));
+
+        wire.close();
+        bSws.readLooper.join();
+    }
+
+    // three equal messages interleave chunk by chunk. A more important message that arrives while
+    // every stream is open replaces the least important stream, which resumes at its next chunk after
+    public void testStreams() throws Exception {
+        NextopNode.Config config = new NextopNode.Config(1024, 0, Deflater.DEFAULT_COMPRESSION, false, 3, 1024, 1024);
+        final NextopNode a = initNode(config);
+        final MessageControlState mcs = a.getMessageControlState();
+        Random r = new Random(1337);
+
+        final Message[] low = new Message[3];
+        for (int i = 0; i < low.length; ++i) {
+            low[i] = randomMessage(r, 0, 32 * 1024);
+            mcs.add(MessageControl.send(low[i]));
+        }
+        final Message high = randomMessage(r, 10, 8 * 1024);
+        final Message mid = randomMessage(r, 5, 8 * 1024);
+
+        FrameReader reader = new FrameReader(a, config) {
+            int lowChunks = 0;
+
+            @Override
+            void onFrame(Frame frame) {
+                // once the three are well under way
+                if (NextopNode.F_MESSAGE_CHUNK == frame.type && 24 == ++lowChunks) {
+                    mcs.add(MessageControl.send(high));
+                    mcs.add(MessageControl.send(mid));
+                }
+            }
+        };
+        List<Frame> frames = reader.run(5);
+
+        // each message is written once, every chunk once, in chunk order
+        for (Message message : new Message[]{low[0], low[1], low[2], high, mid}) {
+            List<Frame> messageFrames = frames(frames, message.id);
+            assertEquals(NextopNode.F_MESSAGE_START, messageFrames.get(0).type);
+            assertEquals(NextopNode.F_MESSAGE_END, messageFrames.get(messageFrames.size() - 1).type);
+            int chunkIndex = 0;
+            for (Frame frame : messageFrames) {
+                if (NextopNode.F_MESSAGE_CHUNK == frame.type) {
+                    assertEquals(chunkIndex++, frame.chunkIndex);
+                }
+            }
+            assertEquals(messageFrames.get(0).chunkCount, chunkIndex);
+        }
+        assertEquals(5, a.sts.writePendingAck.size());
+
+        // before the others arrive, the three take turns
+        int highStart = indexOf(frames, high.id, NextopNode.F_MESSAGE_START);
+        int[] counts = new int[low.length];
+        for (Frame frame : frames.subList(0, highStart)) {
+            if (NextopNode.F_MESSAGE_CHUNK == frame.type) {
+                counts[indexOf(low, frame.id)] += 1;
+                int min = Math.min(counts[0], Math.min(counts[1], counts[2]));
+                int max = Math.max(counts[0], Math.max(counts[1], counts[2]));
+                assertTrue(max - min <= 1);
+            }
+        }
+
+        // two of the three are replaced. The one left open gets about one chunk per 11 of the high message
+        int highEnd = indexOf(frames, high.id, NextopNode.F_MESSAGE_END);
+        int midEnd = indexOf(frames, mid.id, NextopNode.F_MESSAGE_END);
+        assertTrue(highEnd < midEnd);
+        int resumed = 0;
+        for (Message message : low) {
+            int starts = 0;
+            int chunksDuringHigh = 0;
+            List<Frame> messageFrames = frames(frames, message.id);
+            for (Frame frame : messageFrames) {
+                if (NextopNode.F_MESSAGE_START == frame.type) {
+                    starts += 1;
+                    if (1 < starts) {
+                        // resumes on the same session id, after the others
+                        assertEquals(0, frame.flags & NextopNode.START_BIND);
+                        assertEquals(messageFrames.get(0).sessionId, frame.sessionId);
+                        assertTrue(highEnd < frames.indexOf(frame));
+                    }
+                } else if (NextopNode.F_MESSAGE_CHUNK == frame.type
+                        && highStart < frames.indexOf(frame) && frames.indexOf(frame) < highEnd) {
+                    chunksDuringHigh += 1;
+                }
+            }
+            if (1 < starts) {
+                resumed += 1;
+            }
+            assertTrue(chunksDuringHigh <= 3);
+        }
+        assertEquals(2, resumed);
+    }
+
+    // a preempted message that is removed before it resumes releases its write state, session id, and subscription
+    public void testPreemptedRemoved() throws Exception {
+        NextopNode.Config config = new NextopNode.Config(1024, 0, Deflater.DEFAULT_COMPRESSION, false, 1, 1024, 1024);
+        final NextopNode a = initNode(config);
+        final MessageControlState mcs = a.getMessageControlState();
+        Random r = new Random(1337);
+
+        final Message low = randomMessage(r, 0, 32 * 1024);
+        final Message high = randomMessage(r, 10, 32 * 1024);
+        mcs.add(MessageControl.send(low));
+
+        final boolean[] released = {false};
+        FrameReader reader = new FrameReader(a, config) {
+            Subscription subscription;
+
+            @Override
+            void onFrame(Frame frame) {
+                if (NextopNode.F_MESSAGE_CHUNK == frame.type && low.id.equals(frame.id) && 4 == frame.chunkIndex) {
+                    mcs.add(MessageControl.send(high));
+                } else if (NextopNode.F_MESSAGE_START == frame.type && high.id.equals(frame.id)) {
+                    assertTrue(a.sts.writeStates.containsKey(low.id));
+                    subscription = sws.writeLooper.preempted.get(0).subscription;
+                    assertFalse(subscription.isUnsubscribed());
+                    mcs.remove(low.id, MessageControlState.End.ERROR);
+                } else if (NextopNode.F_MESSAGE_END == frame.type && high.id.equals(frame.id)) {
+                    released[0] = !a.sts.writeStates.containsKey(low.id) && !sws.sendIds.indexes.containsKey(low.id)
+                            && subscription.isUnsubscribed();
+                }
+            }
+        };
+        List<Frame> frames = reader.run(1);
+
+        assertTrue(released[0]);
+        // the high message keeps its session id until the ack
+        assertFalse(reader.sws.sendIds.ids.containsValue(low.id));
+        // the low message was not resumed
+        List<Frame> lowFrames = frames(frames, low.id);
+        assertEquals(NextopNode.F_MESSAGE_CHUNK, lowFrames.get(lowFrames.size() - 1).type);
+        assertTrue(indexOf(frames, high.id, NextopNode.F_MESSAGE_START) > frames.indexOf(lowFrames.get(lowFrames.size() - 1)));
+    }
+
+    // with the default config, large messages after the first are journaled too (not encoded against the lut)
+    public void testJournalRestore() throws Exception {
+        File file = File.createTempFile("transfer", ".journal");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+
+        NextopNode.Config config = NextopNode.DEFAULT_CONFIG;
+        NextopNode a = new NextopNode(config);
+        TransferJournal journal = new TransferJournal(file);
+        a.setTransferJournal(journal);
+        initNode(a);
+        MessageControlState mcs = a.getMessageControlState();
+        Random r = new Random(1337);
+
+        final Message[] messages = new Message[3];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = randomMessage(r, 0, 16 * config.chunkBytes);
+            mcs.add(MessageControl.send(messages[i]));
+        }
+        FrameReader reader = new FrameReader(a, config) {
+            @Override
+            void onFrame(Frame frame) {
+                // every message is part way, and past the chunks before it is journaled
+                if (NextopNode.F_MESSAGE_CHUNK == frame.type && messages[messages.length - 1].id.equals(frame.id)
+                        && TransferJournal.MIN_CHUNKS - 1 == frame.chunkIndex) {
+                    stop = true;
+                }
+            }
+        };
+        reader.run(messages.length);
+        // the appends reach the file on the io thread. A process kill after that keeps them
+        journal.close();
+
+        NextopNode b = new NextopNode(config);
+        TransferJournal restoredJournal = new TransferJournal(file);
+        b.setTransferJournal(restoredJournal);
+        initNode(b);
+        restoredJournal.close();
+
+        assertEquals(messages.length, b.sts.writeStates.size());
+        for (Message message : messages) {
+            NextopNode.MessageWriteState writeState = b.sts.writeStates.get(message.id);
+            assertNotNull(writeState);
+            assertTrue(writeState.restored);
+            assertFalse(writeState.lut);
+            InputStream in = writeState.bytes.toInputStream();
+            if (null != writeState.codec) {
+                in = writeState.codec.newCompressor(Deflater.DEFAULT_COMPRESSION).decompress(in);
+            }
+            assertEquals(message, NextopNode.unpkg(WireValue.valueOf(in, null)).message);
+        }
+    }
+
+    private static Message randomMessage(Random r, int groupPriority, int length) {
+        byte[] content = new byte[length];
+        r.nextBytes(content);
+        return Message.newBuilder()
+                .setGroupId(Id.create())
+                .setGroupPriority(groupPriority)
+                .setRoute("POST http://nextop.io")
+                .setContent(content)
+                .build();
+    }
+
+    private static List<Frame> frames(List<Frame> frames, Id id) {
+        List<Frame> messageFrames = new ArrayList<Frame>(8);
+        for (Frame frame : frames) {
+            if (id.equals(frame.id)) {
+                messageFrames.add(frame);
+            }
+        }
+        return messageFrames;
+    }
+
+    private static int indexOf(List<Frame> frames, Id id, byte type) {
+        for (int i = 0, n = frames.size(); i < n; ++i) {
+            Frame frame = frames.get(i);
+            if (type == frame.type && id.equals(frame.id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(Message[] messages, Id id) {
+        for (int i = 0; i < messages.length; ++i) {
+            if (messages[i].id.equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static final class Frame {
+        final byte type;
+        final Id id;
+        int flags = 0;
+        int sessionId = -1;
+        int chunkCount = 0;
+        int chunkIndex = -1;
+
+        Frame(byte type, Id id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    /** runs the write looper of a node over a wire and reads the message frames it writes, in place of the other side */
+    static class FrameReader {
+        final NextopNode node;
+        final Wire wire = Wires.transfer(4 * 1024);
+        final NextopNode.SharedWireState sws;
+        final NextopNode.SerializationState ss;
+
+        FrameReader(NextopNode node, NextopNode.Config config) {
+            this.node = node;
+            sws = new NextopNode.SharedWireState(wire, NextopNode.READ_CODECS, config);
+            ss = new NextopNode.SerializationState(config);
+            sws.writeLooper = node.new WriteLooper(sws, ss);
+            // not started; the frames are read here
+            sws.readLooper = node.new ReadLooper(sws, ss);
+        }
+
+        // set in #onFrame to stop before the ends, like a process kill
+        boolean stop = false;
+
+        /** called on the reader thread as each frame is read */
+        void onFrame(Frame frame) {
+        }
+
+        /** @return the frames, once endCount messages ended */
+        List<Frame> run(int endCount) throws Exception {
+            List<Frame> frames = new ArrayList<Frame>(256);
+            Id[] streamIds = new Id[NextopNode.MAX_STREAMS];
+            Map<Integer, Id> sessionIds = new HashMap<Integer, Id>(8);
+            byte[] buffer = new byte[64];
+
+            sws.writeLooper.start();
+            try {
+                while (0 < endCount && !stop) {
+                    wire.read(buffer, 0, 1, 0);
+                    byte type = buffer[0];
+                    Frame frame;
+                    switch (type) {
+                        case NextopNode.F_LUT_DEFINE: {
+                            wire.read(buffer, 0, 4, 0);
+                            wire.skip(WireValue.getint(buffer, 0), 0);
+                            continue;
+                        }
+                        case NextopNode.F_MESSAGE_START: {
+                            wire.read(buffer, 0, 2, 0);
+                            int stream = 0xFF & buffer[0];
+                            int flags = 0xFF & buffer[1];
+                            int sessionId = NextopNode.readVarint(wire);
+                            if (0 != (flags & NextopNode.START_BIND)) {
+                                wire.read(buffer, 0, Id.LENGTH, 0);
+                                sessionIds.put(sessionId, Id.fromBytes(buffer, 0));
+                            }
+                            wire.read(buffer, 0, 4 + 4, 0);
+                            streamIds[stream] = sessionIds.get(sessionId);
+                            frame = new Frame(type, streamIds[stream]);
+                            frame.flags = flags;
+                            frame.sessionId = sessionId;
+                            frame.chunkCount = WireValue.getint(buffer, 4);
+                            break;
+                        }
+                        case NextopNode.F_MESSAGE_CHUNK: {
+                            wire.read(buffer, 0, 1 + 4 + 4 + 4, 0);
+                            frame = new Frame(type, streamIds[0xFF & buffer[0]]);
+                            frame.chunkIndex = WireValue.getint(buffer, 1);
+                            wire.skip(WireValue.getint(buffer, 1 + 4 + 4), 0);
+                            break;
+                        }
+                        case NextopNode.F_MESSAGE_END: {
+                            wire.read(buffer, 0, 1, 0);
+                            frame = new Frame(type, streamIds[0xFF & buffer[0]]);
+                            endCount -= 1;
+                            break;
+                        }
+                        default:
+                            throw new IOException(String.format("Unexpected frame %d.", type));
+                    }
+                    frames.add(frame);
+                    onFrame(frame);
+                }
+                // the writer moves the last message to pending ack after its end
+                long timeoutNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (!stop && 0 < node.getMessageControlState().size() && System.nanoTime() < timeoutNanos) {
+                    Thread.sleep(10);
+                }
+            } finally {
+                sws.end();
+                wire.close();
+                sws.writeLooper.join();
+            }
+            return frames;
+        }
+    }
+
+    private static NextopNode initNode(NextopNode.Config config) {
+        return initNode(new NextopNode(config));
+    }
+
+    private static NextopNode initNode(NextopNode node) {
+        MessageContext context = MessageContexts.create(MoreSchedulers.serial());
+        Head head = Head.create(context, new MessageControlState(context), node, MoreSchedulers.serial());
+        head.init(null, null);
+        return node;
+    }
+
+    private static void assertChunkSet(boolean[] chunks, byte[] chunkSet) {
+        boolean[] decoded = new boolean[chunks.length];
+        assertTrue(NextopNode.decodeChunkSet(chunkSet, decoded));
+        assertTrue(Arrays.equals(chunks, decoded));
+    }
+
+
     public void testRandomStreaming() throws Throwable {
         Scheduler testScheduler = MoreSchedulers.serial();
 
         // run the test on the correct scheduler
-        RandomStreamingTest test = new RandomStreamingTest(testScheduler);
+        RandomStreamingTest test = new RandomStreamingTest(testScheduler, NextopNode.DEFAULT_CONFIG);
+        test.start();
+
+        test.join();
+    }
+
+    // decoded on the context thread. Compare node.nextop.read.dispatch with the default
+    public void testRandomStreamingInlineDecode() throws Throwable {
+        Scheduler testScheduler = MoreSchedulers.serial();
+
+        NextopNode.Config config = new NextopNode.Config(4 * 1024, WireValue.SessionLut.DEFAULT_CAPACITY,
+                -1, true, NextopNode.DEFAULT_MAX_STREAMS,
+                NextopNode.DEFAULT_MIN_CHUNK_BYTES, NextopNode.DEFAULT_MAX_CHUNK_BYTES, 0);
+        RandomStreamingTest test = new RandomStreamingTest(testScheduler, config);
         test.start();
 
         test.join();
@@ -61,16 +669,20 @@ public class NextopNodeTest extends TestCase {
         final List<Message> bReceive = new LinkedList<Message>();
 
 
-        RandomStreamingTest(Scheduler scheduler) {
+        final NextopNode.Config config;
+
+
+        RandomStreamingTest(Scheduler scheduler, NextopNode.Config config) {
             super(scheduler);
+            this.config = config;
         }
 
 
         @Override
         protected void run() throws Exception {
-            NextopNode a = new NextopNode();
+            NextopNode a = new NextopNode(config);
 
-            NextopNode b = new NextopNode();
+            NextopNode b = new NextopNode(config);
 
 
             Pipe wfp = new Pipe();
@@ -134,6 +746,136 @@ public class NextopNodeTest extends TestCase {
     }
 
 
+    // without the session lut every message is streamed
+    public void testReceiveStreams() throws Throwable {
+        NextopNode.Config config = new NextopNode.Config(4 * 1024, 0);
+        ReceiveStreamsTest test = new ReceiveStreamsTest(MoreSchedulers.serial(), config);
+        test.start();
+        test.join();
+
+        assertEquals(test.aSend.size(), test.streams.size());
+    }
+
+    // messages encoded against the session lut are not streamed, since the lut is not part of the stream
+    public void testReceiveStreamsLut() throws Throwable {
+        ReceiveStreamsTest test = new ReceiveStreamsTest(MoreSchedulers.serial(), NextopNode.DEFAULT_CONFIG);
+        test.start();
+        test.join();
+
+        assertTrue(test.streams.size() < test.aSend.size());
+    }
+    static final class ReceiveStreamsTest extends WorkloadRunner {
+        Random r = new Random(1337);
+
+        final List<Message> aSend = new ArrayList<Message>();
+        final List<Message> bReceive = new ArrayList<Message>();
+        // the content read from each stream, by id
+        final Map<Id, byte[]> streams = Collections.synchronizedMap(new HashMap<Id, byte[]>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Thread> readers = new ArrayList<Thread>();
+
+        final NextopNode.Config config;
+
+
+        ReceiveStreamsTest(Scheduler scheduler, NextopNode.Config config) {
+            super(scheduler);
+            this.config = config;
+            timeoutMs = 3000;
+        }
+
+
+        @Override
+        protected void run() throws Exception {
+            NextopNode a = new NextopNode(config);
+            NextopNode b = new NextopNode(config);
+            // every message
+            b.setReceiveStreamBytes(0);
+
+            Pipe wfp = new Pipe();
+            a.setWireFactory(wfp.getA());
+            b.setWireFactory(wfp.getB());
+
+            MessageContext aContext = MessageContexts.create(MoreSchedulers.serial());
+            MessageContext bContext = MessageContexts.create(MoreSchedulers.serial());
+            Head aHead = Head.create(aContext, new MessageControlState(aContext), a, scheduler);
+            Head bHead = Head.create(bContext, new MessageControlState(bContext), b, scheduler);
+
+            aHead.init(null);
+            bHead.init(null);
+            aHead.start();
+            bHead.start();
+
+            b.getReceiveStreams().subscribe(new Action1<ReceiveStream>() {
+                @Override
+                public void call(final ReceiveStream stream) {
+                    // reads block until the chunks arrive
+                    Thread reader = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                InputStream in = stream.open();
+                                try {
+                                    streams.put(stream.id, ByteStreams.toByteArray(in));
+                                } finally {
+                                    in.close();
+                                }
+                            } catch (Throwable e) {
+                                errors.add(e);
+                            }
+                        }
+                    });
+                    readers.add(reader);
+                    reader.start();
+                }
+            });
+            bHead.defaultReceive().subscribe(new Action1<Message>() {
+                @Override
+                public void call(Message message) {
+                    bReceive.add(message);
+                }
+            });
+
+            // the same shape repeats, so later messages use the lut when it is on
+            for (int i = 0; i < 4; ++i) {
+                Message message = Message.newBuilder()
+                        .setRoute("POST http://nextop.io/" + i)
+                        .setHeader("X-Test", "test")
+                        .setContent("content " + i)
+                        .build();
+                aSend.add(message);
+                aHead.send(message);
+            }
+            // spans many chunks
+            Message large = randomMessage(r, 0, 64 * 1024);
+            aSend.add(large);
+            aHead.send(large);
+        }
+
+        @Override
+        protected void check() throws Exception {
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+            assertEquals(new HashSet<Message>(aSend), new HashSet<Message>(bReceive));
+
+            assertFalse(streams.isEmpty());
+            // each stream reads as the content, without the lut
+            for (Message message : aSend) {
+                @Nullable byte[] streamed = streams.get(message.id);
+                if (null != streamed) {
+                    WireValue content = message.getContent();
+                    ByteBuffer expected = WireValue.Type.BLOB.equals(content.getType())
+                            ? content.asBlob() : ByteBuffer.wrap(content.asString().getBytes("UTF-8"));
+                    assertEquals(expected, ByteBuffer.wrap(streamed));
+                }
+            }
+        }
+    }
+
+
     // test that the full set of message control gets transferred
     public void testRandomStreamingMessageControl() throws Throwable {
         Scheduler testScheduler = MoreSchedulers.serial();
@@ -0,0 +1,132 @@
+package io.nextop.client.node.nextop;
+
+import io.nextop.Id;
+import io.nextop.Message;
+import io.nextop.client.MessageControl;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+public class ReceiveStreamTest extends TestCase {
+
+    public void testProgressive() throws Exception {
+        Random r = new Random(1337);
+        byte[] content = new byte[256 * 1024];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) ('a' + r.nextInt(4));
+        }
+
+        NextopNode.Compressor compressor = NextopNode.GZIP.newCompressor(Deflater.DEFAULT_COMPRESSION);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream cos = compressor.compress(baos);
+        cos.write(content);
+        cos.close();
+        compressor.end();
+        final byte[] compressed = baos.toByteArray();
+
+        final byte[] bytes = new byte[compressed.length];
+        final ReceiveStream stream = new ReceiveStream(Id.create(), NextopNode.GZIP, bytes);
+
+        // the first bytes read before the rest are received
+        final int chunkBytes = 1024;
+        System.arraycopy(compressed, 0, bytes, 0, chunkBytes);
+        stream.receive(chunkBytes);
+
+        InputStream in = stream.openEncoded();
+        assertEquals(0xFF & content[0], in.read());
+
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = chunkBytes; i < bytes.length; i += chunkBytes) {
+                    int end = Math.min(bytes.length, i + chunkBytes);
+                    System.arraycopy(compressed, i, bytes, i, end - i);
+                    stream.receive(end);
+                }
+                stream.complete();
+            }
+        });
+        receiver.start();
+
+        byte[] read = new byte[content.length];
+        read[0] = content[0];
+        for (int i = 1, k; i < read.length; i += k) {
+            k = in.read(read, i, read.length - i);
+            assertTrue(0 < k);
+        }
+        assertEquals(-1, in.read());
+        in.close();
+        receiver.join();
+
+        assertTrue(Arrays.equals(content, read));
+        assertTrue(stream.isComplete());
+    }
+
+    // the content is read from the first chunks, before the end of the message
+    public void testContent() throws Exception {
+        Random r = new Random(1337);
+        byte[] content = new byte[256 * 1024];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) ('a' + r.nextInt(4));
+        }
+        Message message = Message.newBuilder()
+                .setRoute("POST http://nextop.io")
+                .setHeader("X-Test", "test")
+                // sorts before the content, so it is skipped
+                .set("!before", "a parameter")
+                .setContent(content)
+                .build();
+
+        NextopNode.Compressor compressor = NextopNode.GZIP.newCompressor(Deflater.DEFAULT_COMPRESSION);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream cos = compressor.compress(baos);
+        NextopNode.pkg(MessageControl.send(message)).toBytes(cos, null);
+        cos.close();
+        compressor.end();
+        byte[] compressed = baos.toByteArray();
+
+        byte[] bytes = new byte[compressed.length];
+        ReceiveStream stream = new ReceiveStream(message.id, NextopNode.GZIP, bytes);
+        int chunkBytes = 4 * 1024;
+        System.arraycopy(compressed, 0, bytes, 0, chunkBytes);
+        stream.receive(chunkBytes);
+
+        InputStream in = stream.open();
+        byte[] read = new byte[content.length];
+        int k = in.read(read, 0, read.length);
+        assertTrue(0 < k && k < read.length);
+        assertFalse(stream.isComplete());
+
+        System.arraycopy(compressed, chunkBytes, bytes, chunkBytes, bytes.length - chunkBytes);
+        stream.complete();
+        for (int i = k; i < read.length; i += k) {
+            k = in.read(read, i, read.length - i);
+            assertTrue(0 < k);
+        }
+        assertEquals(-1, in.read());
+        in.close();
+        assertTrue(Arrays.equals(content, read));
+    }
+
+    public void testDropped() throws Exception {
+        byte[] bytes = new byte[4096];
+        ReceiveStream stream = new ReceiveStream(Id.create(), null, bytes);
+        stream.receive(1024);
+
+        InputStream in = stream.openEncoded();
+        assertEquals(1024, in.read(new byte[4096], 0, 4096));
+        stream.fail(new IOException("Dropped."));
+        try {
+            in.read();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
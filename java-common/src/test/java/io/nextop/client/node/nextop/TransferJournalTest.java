@@ -0,0 +1,153 @@
+package io.nextop.client.node.nextop;
+
+import io.nextop.Id;
+import io.nextop.util.SegmentedOutputStream;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class TransferJournalTest extends TestCase {
+
+    public void testRestore() throws Exception {
+        File file = File.createTempFile("transfer", ".journal");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+
+        Random r = new Random(1337);
+        SegmentedOutputStream.Pool pool = new SegmentedOutputStream.Pool(1024, 0);
+
+        Map<Id, NextopNode.MessageWriteState> writeStates = new HashMap<Id, NextopNode.MessageWriteState>(4);
+        Map<Id, NextopNode.MessageReadState> readStates = new HashMap<Id, NextopNode.MessageReadState>(4);
+
+        TransferJournal journal = new TransferJournal(file);
+        journal.restore(writeStates, readStates, pool);
+        assertTrue(writeStates.isEmpty());
+        assertTrue(readStates.isEmpty());
+
+        byte[] bytes = new byte[5000];
+        r.nextBytes(bytes);
+        SegmentedOutputStream out = new SegmentedOutputStream(pool);
+        out.write(bytes);
+        NextopNode.MessageWriteState writeState = new NextopNode.MessageWriteState(Id.create(), out,
+                new int[]{0, 2000, 4000}, NextopNode.LZ, false);
+        journal.writeState(writeState);
+        // not journaled
+        NextopNode.MessageWriteState lutWriteState = new NextopNode.MessageWriteState(Id.create(), new SegmentedOutputStream(pool),
+                new int[]{0}, null, true);
+        journal.writeState(lutWriteState);
+        NextopNode.MessageWriteState removedWriteState = new NextopNode.MessageWriteState(Id.create(), new SegmentedOutputStream(pool),
+                new int[]{0}, null, false);
+        journal.writeState(removedWriteState);
+        journal.removeWriteState(removedWriteState);
+
+        NextopNode.MessageReadState readState = new NextopNode.MessageReadState(Id.create(), 3000, 3, null, null);
+        journal.readState(readState);
+        r.nextBytes(readState.bytes);
+        journal.readChunk(readState, 1, 1000, 2000);
+        journal.close();
+
+        // a torn record at the end is dropped
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.write(new byte[]{0, 0, 0, 100, TransferJournal.R_REMOVE_READ_STATE, 1, 2});
+        fos.close();
+
+        journal = new TransferJournal(file);
+        journal.restore(writeStates, readStates, pool);
+        journal.close();
+
+        assertEquals(1, writeStates.size());
+        NextopNode.MessageWriteState restoredWriteState = writeStates.get(writeState.id);
+        assertNotNull(restoredWriteState);
+        assertTrue(restoredWriteState.restored);
+        assertEquals(NextopNode.LZ, restoredWriteState.codec);
+        assertTrue(Arrays.equals(writeState.chunkOffsets, restoredWriteState.chunkOffsets));
+        assertTrue(Arrays.equals(bytes, toBytes(restoredWriteState.bytes)));
+
+        assertEquals(1, readStates.size());
+        NextopNode.MessageReadState restoredReadState = readStates.get(readState.id);
+        assertNotNull(restoredReadState);
+        assertTrue(restoredReadState.matches(3000, 3, null));
+        assertTrue(Arrays.equals(new boolean[]{false, true, false}, restoredReadState.chunkReads));
+        assertEquals(1000, restoredReadState.chunkOffsets[1]);
+        assertEquals(2000, restoredReadState.chunkOffsets[2]);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(readState.bytes, 1000, 2000),
+                Arrays.copyOfRange(restoredReadState.bytes, 1000, 2000)));
+
+        // the restore rewrote the file with just the live states
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(TransferJournal.MAGIC, raf.readInt());
+            assertTrue(raf.length() < 5000 + 1000 + 512);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    // the file is compacted as states are removed, without a restore
+    public void testCompact() throws Exception {
+        File file = File.createTempFile("transfer", ".journal");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+
+        Random r = new Random(1337);
+        SegmentedOutputStream.Pool pool = new SegmentedOutputStream.Pool(1024, 0);
+
+        TransferJournal journal = new TransferJournal(file);
+        journal.restore(new HashMap<Id, NextopNode.MessageWriteState>(4), new HashMap<Id, NextopNode.MessageReadState>(4), pool);
+
+        byte[] bytes = new byte[64 * 1024];
+        r.nextBytes(bytes);
+        NextopNode.MessageWriteState live = writeState(pool, bytes);
+        journal.writeState(live);
+        for (int i = 0; i < 100; ++i) {
+            NextopNode.MessageWriteState writeState = writeState(pool, bytes);
+            journal.writeState(writeState);
+            journal.removeWriteState(writeState);
+
+            NextopNode.MessageReadState readState = new NextopNode.MessageReadState(Id.create(), bytes.length, 2, null, null);
+            System.arraycopy(bytes, 0, readState.bytes, 0, bytes.length);
+            readState.chunkReads[0] = true;
+            readState.chunkOffsets[1] = bytes.length / 2;
+            journal.readState(readState);
+            journal.readChunk(readState, 1, bytes.length / 2, bytes.length);
+            journal.removeReadState(readState.id);
+        }
+        journal.close();
+
+        // 100 * 128KB was appended
+        assertTrue(file.length() < TransferJournal.MIN_COMPACT_BYTES + 2 * bytes.length);
+
+        Map<Id, NextopNode.MessageWriteState> writeStates = new HashMap<Id, NextopNode.MessageWriteState>(4);
+        Map<Id, NextopNode.MessageReadState> readStates = new HashMap<Id, NextopNode.MessageReadState>(4);
+        journal = new TransferJournal(file);
+        journal.restore(writeStates, readStates, pool);
+        journal.close();
+
+        assertEquals(1, writeStates.size());
+        assertTrue(Arrays.equals(bytes, toBytes(writeStates.get(live.id).bytes)));
+        assertTrue(readStates.isEmpty());
+    }
+
+    private static NextopNode.MessageWriteState writeState(SegmentedOutputStream.Pool pool, byte[] bytes) {
+        SegmentedOutputStream out = new SegmentedOutputStream(pool);
+        out.write(bytes);
+        return new NextopNode.MessageWriteState(Id.create(), out, new int[]{0, bytes.length / 2}, null, false);
+    }
+
+
+    private static byte[] toBytes(SegmentedOutputStream bytes) {
+        byte[] b = new byte[bytes.getLength()];
+        int segmentBytes = bytes.getSegmentBytes();
+        for (int i = 0, n = bytes.getSegmentCount(); i < n; ++i) {
+            System.arraycopy(bytes.getSegment(i), 0, b, i * segmentBytes, Math.min(segmentBytes, b.length - i * segmentBytes));
+        }
+        return b;
+    }
+}
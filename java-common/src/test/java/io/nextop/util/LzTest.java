@@ -0,0 +1,70 @@
+package io.nextop.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LzTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        Random r = new Random(1337);
+        Lz lz = new Lz();
+
+        int[] lengths = {0, 1, 3, 4, 5, 15, 16, 255, 270, Lz.BLOCK_BYTES - 1, Lz.BLOCK_BYTES, Lz.BLOCK_BYTES + 1, 3 * Lz.BLOCK_BYTES + 17};
+        for (int length : lengths) {
+            for (int alphabet : new int[]{1, 4, 256}) {
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; ++i) {
+                    bytes[i] = (byte) r.nextInt(alphabet);
+                }
+                byte[] compressed = compress(lz, bytes);
+                if (1 == alphabet && Lz.MIN_MATCH + 8 < length) {
+                    assertTrue(compressed.length < length);
+                }
+                assertTrue(Arrays.equals(bytes, readAll(lz.newInputStream(new ByteArrayInputStream(compressed)))));
+            }
+        }
+    }
+
+    public void testText() throws Exception {
+        Lz lz = new Lz();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i % 7).append("\",\"tags\":[\"a\",\"b\"]}");
+        }
+        byte[] bytes = sb.toString().getBytes("UTF-8");
+        byte[] compressed = compress(lz, bytes);
+        assertTrue(compressed.length < bytes.length / 2);
+        assertTrue(Arrays.equals(bytes, readAll(lz.newInputStream(new ByteArrayInputStream(compressed)))));
+    }
+
+
+    private static byte[] compress(Lz lz, byte[] bytes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = lz.newOutputStream(baos);
+        // uneven writes cross block boundaries
+        for (int i = 0; i < bytes.length; ) {
+            int n = Math.min(bytes.length - i, 1 + i % 5000);
+            os.write(bytes, i, n);
+            i += n;
+        }
+        os.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n; 0 <= (n = is.read(buffer)); ) {
+            baos.write(buffer, 0, n);
+        }
+        return baos.toByteArray();
+    }
+}
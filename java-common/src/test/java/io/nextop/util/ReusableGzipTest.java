@@ -0,0 +1,105 @@
+package io.nextop.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+public class ReusableGzipTest extends TestCase {
+
+    public void testCompatibility() throws Exception {
+        Random r = new Random(1337);
+        ReusableGzip gzip = new ReusableGzip();
+
+        for (int i = 0; i < 32; ++i) {
+            byte[] bytes = randomBytes(r, r.nextInt(64 * 1024));
+
+            // reusable -> java.util.zip
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DeflaterOutputStream gzos = gzip.newOutputStream(baos);
+            gzos.write(bytes);
+            gzos.finish();
+            assertTrue(Arrays.equals(bytes, readAll(new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray())))));
+            assertTrue(Arrays.equals(bytes, readAll(gzip.newInputStream(new ByteArrayInputStream(baos.toByteArray())))));
+
+            // java.util.zip -> reusable
+            baos = new ByteArrayOutputStream();
+            GZIPOutputStream jgzos = new GZIPOutputStream(baos);
+            jgzos.write(bytes);
+            jgzos.close();
+            assertTrue(Arrays.equals(bytes, readAll(gzip.newInputStream(new ByteArrayInputStream(baos.toByteArray())))));
+        }
+
+        gzip.end();
+    }
+
+    public void testDeflateDictionary() throws Exception {
+        ReusableGzip gzip = new ReusableGzip();
+        byte[] dictionary = "Content-TypeContent-Lengthapplication/json".getBytes("UTF-8");
+        byte[] bytes = "{\"Content-Type\":\"application/json\"}".getBytes("UTF-8");
+
+        for (byte[] d : new byte[][]{null, dictionary}) {
+            for (int i = 0; i < 4; ++i) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                OutputStream os = gzip.newDeflateOutputStream(baos, d);
+                os.write(bytes);
+                os.close();
+                assertTrue(Arrays.equals(bytes, readAll(gzip.newInflateInputStream(new ByteArrayInputStream(baos.toByteArray()), d))));
+                if (null != d) {
+                    assertTrue(baos.size() < bytes.length);
+                }
+            }
+        }
+
+        gzip.end();
+    }
+
+    public void testCorruptTrailer() throws Exception {
+        ReusableGzip gzip = new ReusableGzip();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream gzos = gzip.newOutputStream(baos);
+        gzos.write(randomBytes(new Random(1337), 1024));
+        gzos.close();
+
+        byte[] bytes = baos.toByteArray();
+        // crc
+        bytes[bytes.length - 8] ^= 0x01;
+        try {
+            readAll(gzip.newInputStream(new ByteArrayInputStream(bytes)));
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+
+        gzip.end();
+    }
+
+
+    private static byte[] randomBytes(Random r, int n) {
+        byte[] bytes = new byte[n];
+        // compressible
+        for (int i = 0; i < n; ++i) {
+            bytes[i] = (byte) ('a' + r.nextInt(8));
+        }
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n; 0 <= (n = is.read(buffer)); ) {
+            baos.write(buffer, 0, n);
+        }
+        return baos.toByteArray();
+    }
+}